@@ -0,0 +1,81 @@
+package pltr;
+
+/*
+	End-to-end training throughput of BPR, PLTRN and PLTRB
+	on synthetic power-law data. Each invocation makes numProcs
+	passes over the data (same number of SGD updates for all
+	algorithms), user histories are built once.
+ */
+import java.io.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EpochBench {
+
+	@Param({"100000"})
+	int numUsers;
+
+	@Param({"50000"})
+	int numItems;
+
+	@Param({"5000000"})
+	int numInteractions;
+
+	@Param({"20"})
+	int numLatentFactors;
+
+	@Param({"SEQ", "PLTRN", "PLTRB"})
+	String algorithm;
+
+	@Param({"1", "2", "4", "8"})
+	int numProcs;
+
+	InteractionSet data;
+	UserHistory BPlus;
+	PLTR model;
+	PrintStream out;
+
+	@Setup(Level.Trial)
+	public void setupData() throws InterruptedException {
+		data = SyntheticData.generate(numUsers, numItems, numInteractions, 1.0, 1.0, 1L, Runtime.getRuntime().availableProcessors());
+		BPlus = UserHistory.build(data, numUsers, numItems, numProcs);
+		out = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		System.setOut(out);
+	}
+
+	@Setup(Level.Invocation)
+	public void setupModel(){
+		int numEpochs = numProcs;
+		switch (algorithm) {
+			case "SEQ":
+				model = new BPR(numUsers, numItems, numLatentFactors, 0.0, 0.01, 0.0025, 0.0025, 0.00025, 0.01, numEpochs);
+				break;
+			case "PLTRN":
+				model = new PLTRN(numUsers, numItems, numLatentFactors, 0.0, 0.01, 0.0025, 0.0025, 0.00025, 0.01, numEpochs);
+				break;
+			case "PLTRB":
+				model = new PLTRB(numUsers, numItems, numLatentFactors, 0.0, 0.01, 0.0025, 0.0025, 0.00025, 0.01, numEpochs);
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid algorithm !!!");
+		}
+		model.setUserHistory(BPlus);
+	}
+
+	@Benchmark
+	public PLTR epoch() throws InterruptedException {
+		model.learn(data, numProcs);
+		return model;
+	}
+}
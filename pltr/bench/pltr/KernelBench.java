@@ -0,0 +1,104 @@
+package pltr;
+
+/*
+	Microbenchmarks for the dot product kernels and the SGD steps
+	(16 triples of one user: single steps vs. a 4x4 mini-batch)
+ */
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KernelBench {
+
+	static final int NUM_ROWS = 4096;
+
+	@Param({"10", "20", "50", "100", "200"})
+	int numLatentFactors;
+
+	@Param({"HEAP", "OFF_HEAP"})
+	FactorStorage storage;
+
+	@Param({"DOUBLE", "FLOAT"})
+	FactorPrecision precision;
+
+	double[] x;
+	double[] y;
+	double[] z;
+	FactorMatrix P;
+	FactorMatrix Q;
+	int row;
+	int[] posItems = new int[4];
+	int[] negItems = new int[16];
+	double[] work;
+	double[] xs = new double[16];
+
+	@Setup
+	public void setup(){
+		x = MatrixOps.gaussianMatrixBuilder(0.0, 0.1, 1, numLatentFactors)[0];
+		y = MatrixOps.gaussianMatrixBuilder(0.0, 0.1, 1, numLatentFactors)[0];
+		z = MatrixOps.gaussianMatrixBuilder(0.0, 0.1, 1, numLatentFactors)[0];
+		P = MatrixOps.gaussianFactorMatrixBuilder(0.0, 0.1, NUM_ROWS, numLatentFactors, storage, precision);
+		Q = MatrixOps.gaussianFactorMatrixBuilder(0.0, 0.1, NUM_ROWS, numLatentFactors, storage, precision);
+		work = new double[2 * numLatentFactors + 4];
+	}
+
+	// rows change per call, as in training
+	private int nextRow(){
+		row = (row + 613) & (NUM_ROWS - 1);
+		return row;
+	}
+
+	@Benchmark
+	public double dotArray(){
+		return MatrixOps.dot(x, y);
+	}
+
+	@Benchmark
+	public double diffDotArray(){
+		return MatrixOps.diffDot(x, y, z);
+	}
+
+	@Benchmark
+	public double dotMatrix(){
+		int r = nextRow();
+		return MatrixOps.dot(P, r, Q, NUM_ROWS - 1 - r);
+	}
+
+	@Benchmark
+	public double diffDotMatrix(){
+		int r = nextRow();
+		return MatrixOps.diffDot(P, r, Q, NUM_ROWS - 1 - r, (r * 7) & (NUM_ROWS - 1));
+	}
+
+	@Benchmark
+	public double bprStep(){
+		int r = nextRow();
+		return MatrixOps.bprStep(P, r, Q, NUM_ROWS - 1 - r, (r * 7) & (NUM_ROWS - 1), 0.01, 0.0025, 0.0025, 0.00025);
+	}
+
+	@Benchmark
+	public double bprSteps16(){
+		int r = nextRow();
+		double x = 0.0;
+		for (int k = 0; k < 16; k++){
+			x += MatrixOps.bprStep(P, r, Q, (r + (k >> 2) * 31) & (NUM_ROWS - 1), (r * 7 + k * 97) & (NUM_ROWS - 1), 0.01, 0.0025, 0.0025, 0.00025);
+		}
+		return x;
+	}
+
+	@Benchmark
+	public int bprBatch4x4(){
+		int r = nextRow();
+		for (int k = 0; k < 16; k++){
+			posItems[k >> 2] = (r + (k >> 2) * 31) & (NUM_ROWS - 1);
+			negItems[k] = (r * 7 + k * 97) & (NUM_ROWS - 1);
+		}
+		return MatrixOps.bprBatch(P, r, Q, posItems, 0, 4, negItems, 4, 0.01, 0.0025, 0.0025, 0.00025, work, xs);
+	}
+}
@@ -0,0 +1,49 @@
+package pltr;
+
+/*
+	Microbenchmark for the PLTRB partitioning step
+	(shuffle, block counting, offsets and scatter of one epoch)
+ */
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PartitionBench {
+
+	@Param({"100000"})
+	int numUsers;
+
+	@Param({"50000"})
+	int numItems;
+
+	@Param({"5000000"})
+	int numInteractions;
+
+	@Param({"4", "16"})
+	int numBlocks;
+
+	@Param({"UNIFORM", "BALANCED"})
+	PartitionStrategy partitionStrategy;
+
+	PLTRB model;
+
+	@Setup
+	public void setup() throws InterruptedException {
+		InteractionSet data = SyntheticData.generate(numUsers, numItems, numInteractions, 1.0, 1.0, 1L, Runtime.getRuntime().availableProcessors());
+		model = new PLTRB(numUsers, numItems, 20, 0.0, 0.01, 0.0025, 0.0025, 0.00025, 0.01, 1);
+		model.setNumBlocks(numBlocks);
+		model.setPartitionStrategy(partitionStrategy);
+		model.initPartitioning(data, 4);
+	}
+
+	@Benchmark
+	public int permuteData(){
+		model.permuteData();
+		return model.blockOffsets[numBlocks * numBlocks];
+	}
+}
@@ -0,0 +1,69 @@
+package pltr;
+
+/*
+	Microbenchmark for negative sampling: the negative samplers
+	(rejection of items in the user history (BPlus), up to 10 tries)
+	and the history lookup itself
+ */
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SamplingBench {
+
+	@Param({"100000"})
+	int numUsers;
+
+	@Param({"50000"})
+	int numItems;
+
+	@Param({"5000000"})
+	int numInteractions;
+
+	@Param({"UNIFORM", "POPULARITY", "ADAPTIVE"})
+	String samplerType;
+
+	InteractionSet data;
+	UserHistory BPlus;
+	NegativeSampler sampler;
+	TrainingMetrics.ThreadMetrics metrics = new TrainingMetrics.ThreadMetrics();
+
+	@Setup
+	public void setup() throws InterruptedException {
+		data = SyntheticData.generate(numUsers, numItems, numInteractions, 1.0, 1.0, 1L, Runtime.getRuntime().availableProcessors());
+		BPlus = UserHistory.build(data, numUsers, numItems, Runtime.getRuntime().availableProcessors());
+		switch (samplerType) {
+			case "UNIFORM":
+				sampler = new UniformSampler();
+				break;
+			case "POPULARITY":
+				sampler = new PopularitySampler(0.75);
+				break;
+			case "ADAPTIVE":
+				sampler = new AdaptiveSampler(8);
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid sampler !!!");
+		}
+		sampler.init(data, BPlus,
+			MatrixOps.gaussianFactorMatrixBuilder(0.0, 0.01, numUsers, 20, FactorStorage.HEAP),
+			MatrixOps.gaussianFactorMatrixBuilder(0.0, 0.01, numItems, 20, FactorStorage.HEAP));
+	}
+
+	@Benchmark
+	public int sampleNegative(){
+		int rnd = ThreadLocalRandom.current().nextInt(0, data.size());
+		return sampler.sample(data.getUserId(rnd), 0, ThreadLocalRandom.current(), metrics);
+	}
+
+	@Benchmark
+	public boolean contains(){
+		int rnd = ThreadLocalRandom.current().nextInt(0, data.size());
+		return BPlus.contains(data.getUserId(rnd), ThreadLocalRandom.current().nextInt(0, numItems));
+	}
+}
@@ -0,0 +1,255 @@
+package pltr;
+
+/*
+	Parallel AUC evaluation of test pairs
+
+	Test pairs are grouped by user. For every user the scores of all
+	items are computed once and the scores of eligible items (not in
+	the user history) are sorted, so the AUC of each held-out item is
+	a binary search. Users are evaluated in a fork-join pool, every
+	pool thread reuses its own score buffers across users.
+
+	The AUC of a pair is the same as PLTR.getAUCUserItem.
+ */
+import java.util.*;
+import java.util.concurrent.*;
+
+public class AUCEvaluator {
+
+	static final int USERS_PER_TASK = 16;
+
+	// -------------------------------------
+	// evaluation result
+	// -------------------------------------
+	public static class Result {
+		double meanAUC; // mean over test pairs
+		double meanUserAUC; // mean over users of their mean pair AUC
+		double[] pairAUC; // per test pair (in test set order), NaN if not evaluated
+		int[] userIds; // evaluated users (ascending)
+		double[] userAUC; // mean AUC per evaluated user
+		int[] userNumPairs; // evaluated test pairs per user
+		int numSkippedPairs; // unknown user/item or no eligible item
+
+		public double getMeanAUC(){
+			return meanAUC;
+		}
+
+		public double getMeanUserAUC(){
+			return meanUserAUC;
+		}
+
+		public double[] getPairAUC(){
+			return pairAUC;
+		}
+
+		public int[] getUserIds(){
+			return userIds;
+		}
+
+		public double[] getUserAUC(){
+			return userAUC;
+		}
+
+		public int[] getUserNumPairs(){
+			return userNumPairs;
+		}
+
+		public int getNumSkippedPairs(){
+			return numSkippedPairs;
+		}
+
+		public String toString(){
+			return "AUC (mean over pairs): " + meanAUC + ", AUC (mean over users): " + meanUserAUC
+				+ ", users: " + userIds.length + ", skipped pairs: " + numSkippedPairs;
+		}
+	}
+
+	// -------------------------------------
+	// evaluate all test pairs of a trained model
+	// -------------------------------------
+	public static Result evaluate(PLTR model, InteractionSet test, int numProcs) throws InterruptedException {
+
+		final FactorMatrix P = model.getUserFactors();
+		final FactorMatrix Q = model.getItemFactors();
+		final UserHistory BPlus = model.getUserHistory();
+		final int numUsers = P.getNumRows();
+		final int numItems = Q.getNumRows();
+		final int lenTest = test.size();
+
+		// test pair indices grouped by user (counting sort)
+		final Result result = new Result();
+		result.pairAUC = new double[lenTest];
+		Arrays.fill(result.pairAUC, Double.NaN);
+		final int[] pairOffsets = new int[numUsers+1];
+		for( int i=0; i<lenTest; i++ ){
+			int user = test.getUserId(i);
+			if( user < numUsers && test.getItemId(i) < numItems )
+				pairOffsets[user+1]++;
+		}
+		for( int u=0; u<numUsers; u++ ){
+			pairOffsets[u+1] += pairOffsets[u];
+		}
+		final int[] pairs = new int[pairOffsets[numUsers]];
+		int[] cursor = Arrays.copyOf(pairOffsets, numUsers);
+		for( int i=0; i<lenTest; i++ ){
+			int user = test.getUserId(i);
+			if( user < numUsers && test.getItemId(i) < numItems )
+				pairs[cursor[user]++] = i;
+		}
+		cursor = null;
+
+		final int[] testUsers = usersWithPairs(pairOffsets, numUsers);
+		final double[] userAUC = new double[testUsers.length];
+		final int[] userNumPairs = new int[testUsers.length];
+		final InteractionSet testFinal = test;
+
+		// scores and sorted eligible scores, one pair per pool thread
+		final ThreadLocal<double[][]> buffers = new ThreadLocal<double[][]>() {
+			protected double[][] initialValue(){
+				return new double[][]{ new double[numItems], new double[numItems] };
+			}
+		};
+
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, numProcs));
+		try {
+			pool.invoke(new UserRangeTask(0, testUsers.length) {
+				void evaluateUsers(int from, int to){
+					double[][] buffer = buffers.get();
+					double[] scores = buffer[0];
+					double[] eligible = buffer[1];
+					for( int k=from; k<to; k++ ){
+						int user = testUsers[k];
+
+						// all scores once, eligible scores sorted
+						int numEligible = 0;
+						for( int i=0; i<numItems; i++ ){
+							scores[i] = P.dot(user, Q, i);
+							if( BPlus == null || ! BPlus.contains(user, i) ){
+								eligible[numEligible++] = scores[i];
+							}
+						}
+						Arrays.sort(eligible, 0, numEligible);
+
+						double sum = 0.0;
+						int n = 0;
+						for( int j=pairOffsets[user]; j<pairOffsets[user+1]; j++ ){
+							int item = testFinal.getItemId(pairs[j]);
+							boolean itemEligible = BPlus == null || ! BPlus.contains(user, item);
+							int denominator = itemEligible ? numEligible - 1 : numEligible;
+							if( denominator <= 0 )
+								continue;
+							double auc = 1.0 * countBelow(eligible, numEligible, scores[item]) / denominator;
+							result.pairAUC[pairs[j]] = auc;
+							sum += auc;
+							n++;
+						}
+						userAUC[k] = (n > 0) ? sum / n : Double.NaN;
+						userNumPairs[k] = n;
+					}
+				}
+			});
+		} finally {
+			pool.shutdown();
+		}
+
+		// summary
+		double pairSum = 0.0;
+		int numPairs = 0;
+		double userSum = 0.0;
+		int numEvaluatedUsers = 0;
+		for( int k=0; k<testUsers.length; k++ ){
+			if( userNumPairs[k] > 0 ){
+				pairSum += userAUC[k] * userNumPairs[k];
+				numPairs += userNumPairs[k];
+				userSum += userAUC[k];
+				numEvaluatedUsers++;
+			}
+		}
+		result.meanAUC = (numPairs > 0) ? pairSum / numPairs : Double.NaN;
+		result.meanUserAUC = (numEvaluatedUsers > 0) ? userSum / numEvaluatedUsers : Double.NaN;
+		result.numSkippedPairs = lenTest - numPairs;
+		result.userIds = new int[numEvaluatedUsers];
+		result.userAUC = new double[numEvaluatedUsers];
+		result.userNumPairs = new int[numEvaluatedUsers];
+		int m = 0;
+		for( int k=0; k<testUsers.length; k++ ){
+			if( userNumPairs[k] > 0 ){
+				result.userIds[m] = testUsers[k];
+				result.userAUC[m] = userAUC[k];
+				result.userNumPairs[m] = userNumPairs[k];
+				m++;
+			}
+		}
+		return result;
+	}
+
+	// -------------------------------------
+	// users with at least one test pair
+	// -------------------------------------
+	private static int[] usersWithPairs(int[] pairOffsets, int numUsers){
+		int n = 0;
+		for( int u=0; u<numUsers; u++ ){
+			if( pairOffsets[u+1] > pairOffsets[u] )
+				n++;
+		}
+		int[] users = new int[n];
+		n = 0;
+		for( int u=0; u<numUsers; u++ ){
+			if( pairOffsets[u+1] > pairOffsets[u] )
+				users[n++] = u;
+		}
+		return users;
+	}
+
+	// -------------------------------------
+	// number of values in sorted[0..n) strictly below x
+	// -------------------------------------
+	static int countBelow(double[] sorted, int n, double x){
+		int lo = 0;
+		int hi = n;
+		while( lo < hi ){
+			int mid = (lo + hi) >>> 1;
+			if( sorted[mid] < x ){
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// -------------------------------------
+	// fork-join task over a range of users
+	// -------------------------------------
+	static abstract class UserRangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final int from;
+		final int to;
+
+		UserRangeTask(int from, int to){
+			this.from = from;
+			this.to = to;
+		}
+
+		abstract void evaluateUsers(int from, int to);
+
+		protected void compute(){
+			if( to - from <= USERS_PER_TASK ){
+				evaluateUsers(from, to);
+				return;
+			}
+			final UserRangeTask parent = this;
+			int mid = (from + to) >>> 1;
+			invokeAll(new UserRangeTask(from, mid) {
+				void evaluateUsers(int from, int to){
+					parent.evaluateUsers(from, to);
+				}
+			}, new UserRangeTask(mid, to) {
+				void evaluateUsers(int from, int to){
+					parent.evaluateUsers(from, to);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package pltr;
+
+/*
+	Adaptive (rank-aware) negative sampling
+
+	numCandidates items outside the user's history are drawn uniformly
+	from the chunk and the one with the highest current score x_uj is
+	returned, i.e. negatives are oversampled from the top of the user's
+	ranking, where the BPR gradient is not vanishing (cf. adaptive
+	oversampling, Rendle and Freudenthaler, 2014). Costs numCandidates
+	dot products per sample. On clustered Zipf data (20k users, 5k
+	items, BPR, k 16, eta 0.05, one thread) 4 candidates reached AUC
+	0.90 in 4 epochs (uniform: 6) and recall@10 0.20 in 6 (uniform: 9),
+	at about the same training time, leveling off at AUC 0.938 against
+	0.948; 16 candidates never reached AUC 0.90 and degraded after
+	8 epochs.
+ */
+import java.util.concurrent.*;
+
+public class AdaptiveSampler implements NegativeSampler {
+
+	int numCandidates;
+	int maxTrials; // per candidate
+	UserHistory BPlus;
+	FactorMatrix P;
+	FactorMatrix Q;
+	int[] chunkItems; // null: identity (one chunk of all items)
+	int[] chunkOffsets;
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public AdaptiveSampler(int numCandidates){
+		this(numCandidates, 10);
+	}
+
+	public AdaptiveSampler(int numCandidates, int maxTrials){
+		if( numCandidates < 1 || maxTrials < 1 ){
+			throw new IllegalArgumentException("Invalid adaptive sampler parameters !!!");
+		}
+		this.numCandidates = numCandidates;
+		this.maxTrials = maxTrials;
+	}
+
+	public void init(InteractionSet data, UserHistory BPlus, FactorMatrix P, FactorMatrix Q){
+		this.BPlus = BPlus;
+		this.P = P;
+		this.Q = Q;
+		this.chunkItems = null;
+		this.chunkOffsets = new int[] { 0, Q.getNumRows() };
+	}
+
+	public void foldIn(InteractionSet delta, UserHistory BPlus, FactorMatrix P, FactorMatrix Q){
+		init(delta, BPlus, P, Q);
+	}
+
+	public void setChunks(int[] chunkItems, int[] chunkOffsets){
+		this.chunkItems = chunkItems;
+		this.chunkOffsets = chunkOffsets;
+	}
+
+	// -------------------------------------
+	// sample negative item
+	// -------------------------------------
+	public int sample(int user, int chunk, ThreadLocalRandom random, TrainingMetrics.ThreadMetrics m){
+		int chunkStart = chunkOffsets[chunk];
+		int chunkSize = chunkOffsets[chunk+1] - chunkStart;
+		int negItem = -1;
+		double negScore = Double.NEGATIVE_INFINITY;
+		int numTrials = 0;
+		for( int c=0; c<numCandidates && chunkSize > 0; c++ ){
+			int candidate = -1;
+			for( int trial=0; trial<maxTrials; trial++ ){
+				int rnd = chunkStart + random.nextInt(0, chunkSize);
+				int rndItem = (chunkItems == null) ? rnd : chunkItems[rnd];
+				if( ! BPlus.contains(user, rndItem) ){
+					candidate = rndItem;
+					break;
+				}
+				numTrials += 1;
+			}
+			if( candidate == -1 ){
+				break;
+			}
+			double score = MatrixOps.dot(P, user, Q, candidate);
+			if( score > negScore ){
+				negScore = score;
+				negItem = candidate;
+			}
+		}
+		m.sampled(numTrials, negItem != -1);
+		return negItem;
+	}
+
+}
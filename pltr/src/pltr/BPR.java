@@ -7,21 +7,7 @@ package pltr;
 	tested with Java 1.7
 	@author: M. Yagci
  */
-import java.util.*;
-
-public class BPR implements PLTR {
-
-	int numUsers;
-	int numItems;
-	int numLatentFactors;
-	double[][] P; // user component matrix
-	double[][] Q; // item component matrix
-	double lambP; // regularization parameter
-	double lambQPlus; // regularization parameter
-	double lambQMinus; // regularization parameter
-	double eta; // learning rate
-	int numEpochs; // number of training epochs
-	Map<Integer,Set<Integer>> BPlus; // user histories
+public class BPR extends FactorModel {
 
 	// -------------------------------------
 	// Constructor
@@ -36,112 +22,133 @@ public class BPR implements PLTR {
 				double lambQMinus,
 				double eta,
 				int numEpochs) {
-		
-		this.numUsers = numUsers;
-		this.numItems = numItems;
-		this.numLatentFactors = numLatentFactors;
-		this.P = MatrixOps.gaussianMatrixBuilder(mu, sigma, numUsers, numLatentFactors);
-		this.Q = MatrixOps.gaussianMatrixBuilder(mu, sigma, numItems, numLatentFactors);
-		this.lambP = lambP;
-		this.lambQPlus = lambQPlus;
-		this.lambQMinus = lambQMinus;
-		this.eta = eta;
-		this.numEpochs = numEpochs;
-		this.BPlus = new HashMap<Integer,Set<Integer>>(); 
+		this(numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs, FactorStorage.HEAP);
 	}
 
 	// -------------------------------------
-	// learn model (with uniform sampling)
+	// Constructor with explicit factor storage
 	// -------------------------------------
-	public void learn(ArrayList<Tuple> data, Integer numProcs) throws InterruptedException{
+	public BPR(	int numUsers, 
+				int numItems,
+				int numLatentFactors, 
+				double mu,
+				double sigma,
+				double lambP,
+				double lambQPlus,
+				double lambQMinus,
+				double eta,
+				int numEpochs,
+				FactorStorage storage) {
+		this(numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs, storage,
+			FactorPrecision.DOUBLE, ScoringPrecision.EXACT);
+	}
+
+	// -------------------------------------
+	// Constructor with explicit factor storage and precision
+	// -------------------------------------
+	public BPR(	int numUsers, 
+				int numItems,
+				int numLatentFactors, 
+				double mu,
+				double sigma,
+				double lambP,
+				double lambQPlus,
+				double lambQMinus,
+				double eta,
+				int numEpochs,
+				FactorStorage storage,
+				FactorPrecision precision,
+				ScoringPrecision scoringPrecision) {
+		super("BPR", ModelFile.ALGORITHM_SEQ, numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs,
+			storage, precision, scoringPrecision);
+	}
+
+	// -------------------------------------
+	// Constructor from existing factors (model file)
+	// -------------------------------------
+	BPR(	FactorMatrix P,
+		FactorMatrix Q,
+		double lambP,
+		double lambQPlus,
+		double lambQMinus,
+		double eta,
+		int numEpochs,
+		int epochsDone,
+		ScoringPrecision scoringPrecision,
+		FactorMatrix PScore,
+		FactorMatrix QScore,
+		RowStepSizes stepSizes) {
+		super("BPR", ModelFile.ALGORITHM_SEQ, P, Q, lambP, lambQPlus, lambQMinus, eta, numEpochs, epochsDone, scoringPrecision,
+			PScore, QScore, stepSizes);
+	}
+
+	// -------------------------------------
+	// learn model from columnar data
+	// -------------------------------------
+	public void learn(InteractionSet data, Integer numProcs) throws InterruptedException{
 		
-		// build user histories in the first pass
-		for( Tuple user_item : data){
-			Integer user = user_item.getUserId();
-			Integer item = user_item.getItemId();
-			
-			if( ! BPlus.containsKey(user) ){
-				BPlus.put(user, new HashSet<Integer>());
-			}
-			BPlus.get(user).add(item);
+		// build user histories in the first pass (unless shared)
+		if( BPlus == null ){
+			BPlus = UserHistory.build(data, this.numUsers, this.numItems, numProcs);
 		}
+		// a finished checkpoint is not trained again
+		if( alreadyTrained() ){
+			return;
+		}
+		sampler.init(data, BPlus, P, Q);
+		stepSizes = RowStepSizes.resume(stepSizes, stepSizeRule, this.numUsers, this.numItems);
 		
-		// update model
-		int epoch = 0;
+		// update model (resumed after epochsDone of a checkpoint)
+		int epoch = Math.max(0, epochsDone);
+		this.epochsDone = epoch;
+		this.lastCheckpoint = epoch;
 		int lenData = data.size();
-		for( int i=0; i<this.numEpochs; i++ ){
+		metrics.start(1, 0);
+		TrainingMetrics.ThreadMetrics m = metrics.thread(0);
+		if( earlyStopping != null ){
+			earlyStopping.start();
+		}
+		MiniBatch batch = newBatch();
+		for( int i=epoch; i<this.numEpochs; i++ ){
+			if( earlyStopping != null && earlyStopping.shouldStop() ){
+				break;
+			}
 			System.out.println("epoch: " + epoch);
+			long epochStart = System.nanoTime();
 			for( int j=0; j<lenData; j++ ){
 				// sample with repetition
-				Integer rnd = java.util.concurrent.ThreadLocalRandom.current().nextInt(0, lenData);
-				Integer user = data.get(rnd).getUserId();
-				Integer posItem = data.get(rnd).getItemId();
-				Integer negItem = -1;
-				int numTrials = 0;
-				while( numTrials < 10 ){
-					Integer rnd2 = java.util.concurrent.ThreadLocalRandom.current().nextInt(0, this.numItems);
-					if( ! BPlus.get(user).contains(rnd2)){
-						negItem = rnd2;
-						break;
-					}
-					numTrials += 1;
+				int rnd = java.util.concurrent.ThreadLocalRandom.current().nextInt(0, lenData);
+				int user = data.getUserId(rnd);
+				int posItem = data.getItemId(rnd);
+				if( batch != null ){
+					batch.add(user, posItem, 0, P, Q, sampler, stepSizes, this.eta, this.lambP, this.lambQPlus, this.lambQMinus,
+						java.util.concurrent.ThreadLocalRandom.current(), m);
+					continue;
 				}
+				int negItem = sampler.sample(user, 0, java.util.concurrent.ThreadLocalRandom.current(), m);
 				if( negItem != -1 ){
-					double delta = 1.0 - sigmoid( MatrixOps.diffDot(P[user], Q[posItem], Q[negItem]) );
-		
-					for(int f=0; f<this.numLatentFactors; f++){
-						P[user][f] += this.eta * 
-						(delta * (Q[posItem][f] - Q[negItem][f]) - this.lambP * P[user][f]);
-					}
-		
-					for(int f=0; f<this.numLatentFactors; f++){
-						Q[posItem][f] += this.eta * 
-						(delta * P[user][f] - this.lambQPlus * Q[posItem][f]);
-					}
-		
-					for(int f=0; f<this.numLatentFactors; f++){
-						Q[negItem][f] += this.eta * 
-						(delta * -1.0*P[user][f] - this.lambQMinus * Q[negItem][f]);
-					}
+					m.updated(update(user, posItem, negItem));
 				}
 			}
+			if( batch != null ){
+				batch.flush(P, Q, stepSizes, this.eta, this.lambP, this.lambQPlus, this.lambQMinus, m);
+			}
+			m.busyNanos += System.nanoTime() - epochStart;
+			metrics.epochDone(epoch);
+			if( earlyStopping != null ){
+				earlyStopping.epochDone(epoch, P, Q, BPlus);
+			}
 			epoch += 1;
+			epochsDone = epoch;
+			checkpoint(false);
 		}		
-	}
-
-	// -------------------------------------
-	// -------------------------------------
-	private double sigmoid(double x){
-		if( x > 0 ){
-			return 1.0 / (1.0 + Math.exp(-x));
-		} else if (x <= 0) {
-			return Math.exp(x) / (1.0 + Math.exp(x));
-		} else {
-			System.out.println("Sigmoid value error ...");
-			return 0.0;
+		if( earlyStopping != null ){
+			earlyStopping.finish();
 		}
+
+		checkpoint(true);
+		refreshScoringFactors();
 	}
-	
-	// -----------------------------------------------
-	// evaluate a single (user,item) test pair for AUC
-	// -----------------------------------------------
-	public double getAUCUserItem(Integer user, Integer item){
-	
-		Double estimatedRankingScoreItem = MatrixOps.dot(P[user],Q[item]);
-		Integer numNoInversions = 0;
-		Integer numEligibleItems = 0;
-		
-		for(int i=0; i<this.numItems; i++){
-			if( ( ! BPlus.get(user).contains(i) ) && item != i ) {
-				numEligibleItems++;
-				if ( estimatedRankingScoreItem > MatrixOps.dot(P[user],Q[i]) ) {
-					numNoInversions++;
-				}
-			}		
-		}
-		
-		return 1.0 * numNoInversions / numEligibleItems;
-	}
-	
+
 }
 
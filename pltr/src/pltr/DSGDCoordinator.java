@@ -0,0 +1,347 @@
+package pltr;
+
+/*
+	Coordinator of distributed PLtR-B (DSGD with worker processes)
+
+	The grid of numWorkers x numWorkers blocks of PLtR-B is split over
+	worker processes (DSGDWorker), one per user block. The coordinator
+	- accepts the workers (started on other nodes, or launched as JVMs
+	  on localhost) and sends every worker its user block: its rows of
+	  P, its interactions and its first item block of Q
+	- collects the metrics of every epoch
+	- puts P and Q back together when the workers are done
+	The workers form a ring: in stratum s worker a updates block
+	(a, (a+1+s) mod n) (as blockDecider), then passes its item block
+	of Q to worker a-1 and receives the next one from worker a+1, so
+	only P of one user block and two item blocks are held per worker.
+	Users and items are assigned to blocks by seeded random permutations.
+	All sockets listen on the address of the given host only (workers:
+	the interface they reach the coordinator on), and every accept()
+	fails after ACCEPT_TIMEOUT_MILLIS if a process does not connect.
+
+	Limits: the coordinator still holds all of P, Q and the data (it
+	hands them out and collects the factors), so the memory of the
+	coordinator node bounds the model size; only the training work and
+	the per-worker memory are split. Workers run plain BPR steps with
+	uniform negatives: other samplers, step size rules, mini-batches
+	and early stopping are rejected by PLTRB.learnDistributed().
+
+	Wire format: control values big-endian, factor values in native
+	byte order (all processes on the same architecture).
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+public class DSGDCoordinator {
+
+	static final int MAGIC = 0x44534744; // "DSGD"
+	static final int BUFFER_BYTES = 1 << 16;
+	static final int CONFIG_BYTES = 10 * 4 + 8 + 4 * 8;
+	static final int EPOCH_BYTES = 7 * 8;
+	static final long ACCEPT_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+	PLTRB model;
+	int numWorkers;
+	String host; // address to listen on
+	int port; // 0: any free port
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public DSGDCoordinator(PLTRB model, int numWorkers, String host, int port){
+		if( numWorkers < 1 ){
+			throw new IllegalArgumentException("Invalid number of workers !!!");
+		}
+		this.model = model;
+		this.numWorkers = numWorkers;
+		this.host = host;
+		this.port = port;
+	}
+
+	// -------------------------------------
+	// train the factors of the model from startEpoch to numEpochs
+	// -------------------------------------
+	void run(InteractionSet data, int startEpoch, boolean launchLocalWorkers) throws IOException, InterruptedException {
+
+		int n = numWorkers;
+		long seed = new Random().nextLong();
+		int[] userBlock = blocks(model.numUsers, n, seed);
+		int[] itemBlock = blocks(model.numItems, n, seed + 1);
+		int[] userLocal = localIndex(userBlock, n);
+		int[] numBlockUsers = blockSizes(userBlock, n);
+		int[] numBlockItems = blockSizes(itemBlock, n);
+		int[] counts = new int[n];
+		for( int i=0; i<data.size(); i++ ){
+			counts[userBlock[data.getUserId(i)]]++;
+		}
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		SocketChannel[] workers = new SocketChannel[n];
+		List<Process> processes = new ArrayList<Process>();
+		try {
+			server.bind(new InetSocketAddress(host, port));
+			int boundPort = ((InetSocketAddress) server.getLocalAddress()).getPort();
+			if( launchLocalWorkers ){
+				for( int a=0; a<n; a++ ){
+					processes.add(launchLocalWorker(host, boundPort));
+				}
+			}
+			System.out.println("waiting for " + n + " DSGD workers on " + host + ":" + boundPort + " ...");
+
+			// registration: ring port of every worker
+			int[] ringPorts = new int[n];
+			String[] hosts = new String[n];
+			ByteBuffer hello = ByteBuffer.allocate(8);
+			long deadline = System.currentTimeMillis() + ACCEPT_TIMEOUT_MILLIS;
+			for( int a=0; a<n; a++ ){
+				workers[a] = accept(server, deadline, a + " of " + n + " DSGD workers connected");
+				workers[a].socket().setTcpNoDelay(true);
+				hello.clear();
+				readFully(workers[a], hello);
+				hello.flip();
+				if( hello.getInt() != MAGIC ){
+					throw new IOException("Invalid DSGD worker handshake");
+				}
+				ringPorts[a] = hello.getInt();
+				hosts[a] = ((InetSocketAddress) workers[a].getRemoteAddress()).getAddress().getHostAddress();
+			}
+
+			// configuration and factors of every worker
+			ByteBuffer buffer = rowBuffer(model.numLatentFactors);
+			for( int a=0; a<n; a++ ){
+				int left = (a + n - 1) % n;
+				byte[] host = hosts[left].getBytes("US-ASCII");
+				ByteBuffer config = ByteBuffer.allocate(CONFIG_BYTES + host.length);
+				config.putInt(MAGIC).putInt(a).putInt(n).putInt(model.numUsers).putInt(model.numItems)
+					.putInt(model.numLatentFactors).putInt(model.numEpochs - startEpoch).putInt(numBlockUsers[a])
+					.putInt(ringPorts[left]).putInt(host.length);
+				config.putLong(seed);
+				config.putDouble(model.lambP).putDouble(model.lambQPlus).putDouble(model.lambQMinus).putDouble(model.eta);
+				config.put(host);
+				config.flip();
+				writeFully(workers[a], config);
+				writeRows(workers[a], model.P, userBlock, a, buffer);
+				writeRows(workers[a], model.Q, itemBlock, (a + 1) % n, buffer);
+				ByteBuffer count = ByteBuffer.allocate(4);
+				count.putInt(counts[a]).flip();
+				writeFully(workers[a], count);
+			}
+
+			// interactions (local user, item) of every worker in one pass
+			ByteBuffer[] out = new ByteBuffer[n];
+			for( int a=0; a<n; a++ ){
+				out[a] = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.nativeOrder());
+			}
+			for( int i=0; i<data.size(); i++ ){
+				int user = data.getUserId(i);
+				int a = userBlock[user];
+				if( out[a].remaining() < 8 ){
+					out[a].flip();
+					writeFully(workers[a], out[a]);
+					out[a].clear();
+				}
+				out[a].putInt(userLocal[user]).putInt(data.getItemId(i));
+			}
+			for( int a=0; a<n; a++ ){
+				out[a].flip();
+				writeFully(workers[a], out[a]);
+			}
+
+			// metrics of every epoch
+			model.metrics.start(n, 0);
+			ByteBuffer report = ByteBuffer.allocate(EPOCH_BYTES);
+			for( int epoch=startEpoch; epoch<model.numEpochs; epoch++ ){
+				System.out.println("epoch: " + epoch);
+				for( int a=0; a<n; a++ ){
+					report.clear();
+					readFully(workers[a], report);
+					report.flip();
+					TrainingMetrics.ThreadMetrics m = model.metrics.thread(a);
+					m.updates = report.getLong();
+					m.rejections = report.getLong();
+					m.failures = report.getLong();
+					m.busyNanos = report.getLong();
+					m.waitNanos = report.getLong();
+					m.lossSum = report.getDouble();
+					m.lossCount = report.getLong();
+				}
+				model.metrics.epochDone(epoch);
+				model.epochsDone = epoch + 1;
+			}
+
+			// trained factors
+			for( int a=0; a<n; a++ ){
+				readRows(workers[a], model.P, userBlock, a, numBlockUsers[a], buffer);
+				readRows(workers[a], model.Q, itemBlock, (a + 1) % n, numBlockItems[(a + 1) % n], buffer);
+			}
+		} finally {
+			for( SocketChannel worker : workers ){
+				if( worker != null )
+					worker.close();
+			}
+			server.close();
+			for( Process process : processes ){
+				process.waitFor();
+			}
+		}
+	}
+
+	// -------------------------------------
+	// worker JVM on localhost with the classpath of this JVM
+	// -------------------------------------
+	static Process launchLocalWorker(String host, int port) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+			"pltr.DSGDWorker", host, Integer.toString(port));
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+		return builder.start();
+	}
+
+	// -------------------------------------
+	// block of every id: random permutation cut into numBlocks ranges
+	// (the same in every process for the same seed)
+	// -------------------------------------
+	static int[] blocks(int numIds, int numBlocks, long seed){
+		Random random = new Random(seed);
+		int[] perm = new int[numIds];
+		for( int i=0; i<numIds; i++ ){
+			perm[i] = i;
+		}
+		for( int i=numIds-1; i>0; i-- ){
+			int index = random.nextInt(i + 1);
+			int temp = perm[index];
+			perm[index] = perm[i];
+			perm[i] = temp;
+		}
+		int[] block = new int[numIds];
+		for( int i=0; i<numIds; i++ ){
+			block[i] = (int)((long) perm[i] * numBlocks / numIds);
+		}
+		return block;
+	}
+
+	// row of every id within its block (ids in increasing order)
+	static int[] localIndex(int[] block, int numBlocks){
+		int[] next = new int[numBlocks];
+		int[] local = new int[block.length];
+		for( int i=0; i<block.length; i++ ){
+			local[i] = next[block[i]]++;
+		}
+		return local;
+	}
+
+	static int[] blockSizes(int[] block, int numBlocks){
+		int[] sizes = new int[numBlocks];
+		for( int i=0; i<block.length; i++ ){
+			sizes[block[i]]++;
+		}
+		return sizes;
+	}
+
+	// -------------------------------------
+	// buffer for writeRows/readRows (at least one row of numCols factors)
+	// -------------------------------------
+	static ByteBuffer rowBuffer(int numCols){
+		return ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, numCols * 8)).order(ByteOrder.nativeOrder());
+	}
+
+	// -------------------------------------
+	// rows of the ids of block b (packed, in increasing id order),
+	// block null: all rows
+	// -------------------------------------
+	static void writeRows(WritableByteChannel channel, FactorMatrix m, int[] block, int b, ByteBuffer buffer) throws IOException {
+		int numCols = m.getNumCols();
+		buffer.clear();
+		for( int i=0; i<m.getNumRows(); i++ ){
+			if( block != null && block[i] != b ){
+				continue;
+			}
+			if( buffer.remaining() < numCols * 8 ){
+				buffer.flip();
+				writeFully(channel, buffer);
+				buffer.clear();
+			}
+			for( int f=0; f<numCols; f++ ){
+				buffer.putDouble(m.get(i, f));
+			}
+		}
+		buffer.flip();
+		writeFully(channel, buffer);
+	}
+
+	static void readRows(ReadableByteChannel channel, FactorMatrix m, int[] block, int b, int numRows, ByteBuffer buffer) throws IOException {
+		int numCols = m.getNumCols();
+		int i = 0;
+		int rowsLeft = numRows;
+		int rowsPerBuffer = buffer.capacity() / (numCols * 8);
+		if( rowsPerBuffer == 0 ){
+			throw new IllegalArgumentException("Invalid row buffer size !!!");
+		}
+		while( rowsLeft > 0 ){
+			int rows = Math.min(rowsLeft, rowsPerBuffer);
+			buffer.clear();
+			buffer.limit(rows * numCols * 8);
+			readFully(channel, buffer);
+			buffer.flip();
+			for( int r=0; r<rows; r++ ){
+				while( block != null && block[i] != b ){
+					i++;
+				}
+				for( int f=0; f<numCols; f++ ){
+					m.set(i, f, buffer.getDouble());
+				}
+				i++;
+			}
+			rowsLeft -= rows;
+		}
+	}
+
+	// -------------------------------------
+	// next connection of server before deadline (blocking channel)
+	// -------------------------------------
+	static SocketChannel accept(ServerSocketChannel server, long deadline, String state) throws IOException {
+		Selector selector = Selector.open();
+		try {
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			while( true ){
+				long wait = deadline - System.currentTimeMillis();
+				if( wait <= 0 ){
+					throw new SocketTimeoutException("DSGD accept timed out (" + state + ")");
+				}
+				selector.select(wait);
+				selector.selectedKeys().clear();
+				SocketChannel channel = server.accept();
+				if( channel != null ){
+					channel.configureBlocking(true);
+					return channel;
+				}
+			}
+		} finally {
+			selector.close();
+			server.configureBlocking(true);
+		}
+	}
+
+	// -------------------------------------
+	// blocking channel IO
+	// -------------------------------------
+	static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while( buffer.hasRemaining() ){
+			if( channel.read(buffer) < 0 ){
+				throw new EOFException("DSGD connection closed");
+			}
+		}
+	}
+
+	static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while( buffer.hasRemaining() ){
+			channel.write(buffer);
+		}
+	}
+
+}
@@ -0,0 +1,341 @@
+package pltr;
+
+/*
+	Worker process of distributed PLtR-B (see DSGDCoordinator)
+
+	Holds the rows of P and the interactions of one user block, and
+	one item block of Q at a time. Per stratum it runs SGD on its
+	current block (uniform negatives from the item block, as in
+	PLtR-B), then sends the item block to its left neighbour in the
+	ring and receives the next one from the right neighbour. Item
+	blocks are kept in direct buffers that are written to and read
+	from the sockets as they are.
+
+	Usage: DSGDWorker <coordinator host> <coordinator port>
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class DSGDWorker {
+
+	int id;
+	int numWorkers;
+	int numItems;
+	int numLatentFactors;
+	int numEpochs;
+	double lambP;
+	double lambQPlus;
+	double lambQMinus;
+	double eta;
+
+	FactorMatrix P; // rows of the users of this block
+	int[] users; // local user ids, grouped by item block
+	int[] items; // item ids, grouped by item block
+	int[] blockOffsets; // interactions of item block b: blockOffsets[b] ... blockOffsets[b+1]-1
+	int[] itemLocal; // row of every item in its block
+	int[] chunkItems; // items ordered by block
+	int[] chunkOffsets;
+	UserHistory BPlus; // histories of the users of this block
+
+	// item blocks: the current one and the one being received
+	ByteBuffer[][] blockPages = new ByteBuffer[2][];
+	int rowsPerPage;
+	int stride;
+
+	// -------------------------------------
+	// connect to the coordinator and train
+	// -------------------------------------
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if( args.length != 2 ){
+			System.out.println("Usage: DSGDWorker <coordinator host> <coordinator port>");
+			return;
+		}
+		new DSGDWorker().run(args[0], Integer.parseInt(args[1]));
+	}
+
+	void run(String host, int port) throws IOException, InterruptedException {
+		ServerSocketChannel ringServer = ServerSocketChannel.open();
+		SocketChannel coordinator = null;
+		SocketChannel left = null;
+		SocketChannel right = null;
+		ExecutorService sender = Executors.newSingleThreadExecutor();
+		try {
+			coordinator = SocketChannel.open(new InetSocketAddress(host, port));
+			// ring port on the interface the coordinator is reached on
+			ringServer.bind(new InetSocketAddress(((InetSocketAddress) coordinator.getLocalAddress()).getAddress(), 0));
+			ByteBuffer hello = ByteBuffer.allocate(8);
+			hello.putInt(DSGDCoordinator.MAGIC).putInt(((InetSocketAddress) ringServer.getLocalAddress()).getPort()).flip();
+			DSGDCoordinator.writeFully(coordinator, hello);
+
+			// configuration
+			ByteBuffer config = ByteBuffer.allocate(DSGDCoordinator.CONFIG_BYTES);
+			DSGDCoordinator.readFully(coordinator, config);
+			config.flip();
+			if( config.getInt() != DSGDCoordinator.MAGIC ){
+				throw new IOException("Invalid DSGD configuration");
+			}
+			this.id = config.getInt();
+			this.numWorkers = config.getInt();
+			int numUsers = config.getInt();
+			this.numItems = config.getInt();
+			this.numLatentFactors = config.getInt();
+			this.numEpochs = config.getInt();
+			int numLocalUsers = config.getInt();
+			int leftPort = config.getInt();
+			byte[] leftHost = new byte[config.getInt()];
+			long seed = config.getLong();
+			this.lambP = config.getDouble();
+			this.lambQPlus = config.getDouble();
+			this.lambQMinus = config.getDouble();
+			this.eta = config.getDouble();
+			ByteBuffer hostBuffer = ByteBuffer.wrap(leftHost);
+			DSGDCoordinator.readFully(coordinator, hostBuffer);
+			System.out.println("DSGD worker " + id + " of " + numWorkers + " (" + numLocalUsers + " of " + numUsers + " users)");
+
+			// factors and data of this user block
+			int[] itemBlock = DSGDCoordinator.blocks(numItems, numWorkers, seed + 1);
+			int[] numBlockItems = DSGDCoordinator.blockSizes(itemBlock, numWorkers);
+			this.itemLocal = DSGDCoordinator.localIndex(itemBlock, numWorkers);
+			readFactors(coordinator, itemBlock, numBlockItems, numLocalUsers);
+			readData(coordinator, itemBlock, numLocalUsers);
+
+			// ring: send to the left neighbour, receive from the right one
+			left = SocketChannel.open(new InetSocketAddress(new String(leftHost, "US-ASCII"), leftPort));
+			left.socket().setTcpNoDelay(true);
+			right = DSGDCoordinator.accept(ringServer, System.currentTimeMillis() + DSGDCoordinator.ACCEPT_TIMEOUT_MILLIS,
+				"right neighbour of worker " + id + " not connected");
+
+			int current = train(coordinator, left, right, sender, numBlockItems);
+
+			// trained factors back to the coordinator
+			ByteBuffer buffer = DSGDCoordinator.rowBuffer(numLatentFactors);
+			DSGDCoordinator.writeRows(coordinator, P, null, 0, buffer);
+			int b = (id + 1) % numWorkers;
+			DSGDCoordinator.writeRows(coordinator, blockMatrix(current, numBlockItems[b]), null, 0, buffer);
+		} finally {
+			sender.shutdownNow();
+			if( left != null )
+				left.close();
+			if( right != null )
+				right.close();
+			if( coordinator != null )
+				coordinator.close();
+			ringServer.close();
+		}
+	}
+
+	// -------------------------------------
+	// P of this user block, first item block of Q
+	// -------------------------------------
+	private void readFactors(ReadableByteChannel channel, int[] itemBlock, int[] numBlockItems, int numLocalUsers) throws IOException {
+		ByteBuffer buffer = DSGDCoordinator.rowBuffer(numLatentFactors);
+		this.P = FactorMatrix.allocate(numLocalUsers, numLatentFactors, FactorStorage.HEAP);
+		DSGDCoordinator.readRows(channel, P, null, 0, numLocalUsers, buffer);
+
+		// two page sets for the largest item block
+		int maxRows = 0;
+		for( int size : numBlockItems ){
+			maxRows = Math.max(maxRows, size);
+		}
+		this.stride = FactorMatrix.paddedStride(numLatentFactors, 8);
+		this.rowsPerPage = DirectFactorMatrix.rowsPerPage(stride, 8);
+		int numPages = Math.max(1, (maxRows + rowsPerPage - 1) / rowsPerPage);
+		for( int k=0; k<2; k++ ){
+			blockPages[k] = new ByteBuffer[numPages];
+			for( int p=0; p<numPages; p++ ){
+				int rows = Math.max(1, Math.min(rowsPerPage, maxRows - p * rowsPerPage));
+				blockPages[k][p] = ByteBuffer.allocateDirect(rows * stride * 8).order(ByteOrder.nativeOrder());
+			}
+		}
+		int b = (id + 1) % numWorkers;
+		DSGDCoordinator.readRows(channel, blockMatrix(0, numBlockItems[b]), null, 0, numBlockItems[b], buffer);
+	}
+
+	// -------------------------------------
+	// interactions of this user block, grouped by item block
+	// -------------------------------------
+	private void readData(ReadableByteChannel channel, int[] itemBlock, int numLocalUsers) throws IOException {
+		ByteBuffer count = ByteBuffer.allocate(4);
+		DSGDCoordinator.readFully(channel, count);
+		count.flip();
+		int size = count.getInt();
+		int[] dataUsers = new int[size];
+		int[] dataItems = new int[size];
+		ByteBuffer buffer = ByteBuffer.allocateDirect(DSGDCoordinator.BUFFER_BYTES).order(ByteOrder.nativeOrder());
+		int i = 0;
+		while( i < size ){
+			int num = Math.min(size - i, buffer.capacity() / 8);
+			buffer.clear();
+			buffer.limit(num * 8);
+			DSGDCoordinator.readFully(channel, buffer);
+			buffer.flip();
+			for( int k=0; k<num; k++, i++ ){
+				dataUsers[i] = buffer.getInt();
+				dataItems[i] = buffer.getInt();
+			}
+		}
+		try {
+			this.BPlus = UserHistory.build(new InteractionSet(dataUsers, dataItems, null, null), numLocalUsers, numItems, 1);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted building user histories");
+		}
+
+		// counting sort by item block
+		this.blockOffsets = new int[numWorkers+1];
+		for( int k=0; k<size; k++ ){
+			blockOffsets[itemBlock[dataItems[k]]+1]++;
+		}
+		for( int b=0; b<numWorkers; b++ ){
+			blockOffsets[b+1] += blockOffsets[b];
+		}
+		this.users = new int[size];
+		this.items = new int[size];
+		int[] cursor = Arrays.copyOf(blockOffsets, numWorkers);
+		for( int k=0; k<size; k++ ){
+			int pos = cursor[itemBlock[dataItems[k]]]++;
+			users[pos] = dataUsers[k];
+			items[pos] = dataItems[k];
+		}
+
+		// items of every block (for negative sampling)
+		this.chunkOffsets = new int[numWorkers+1];
+		for( int j=0; j<numItems; j++ ){
+			chunkOffsets[itemBlock[j]+1]++;
+		}
+		for( int b=0; b<numWorkers; b++ ){
+			chunkOffsets[b+1] += chunkOffsets[b];
+		}
+		this.chunkItems = new int[numItems];
+		cursor = Arrays.copyOf(chunkOffsets, numWorkers);
+		for( int j=0; j<numItems; j++ ){
+			chunkItems[cursor[itemBlock[j]]++] = j;
+		}
+	}
+
+	// -------------------------------------
+	// factor matrix over page set k (numRows rows of an item block)
+	// -------------------------------------
+	private FactorMatrix blockMatrix(int k, int numRows){
+		DoubleBuffer[] pages = new DoubleBuffer[blockPages[k].length];
+		for( int p=0; p<pages.length; p++ ){
+			pages[p] = blockPages[k][p].duplicate().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		}
+		return new DirectFactorMatrix(numRows, numLatentFactors, pages);
+	}
+
+	// pages of page set k with the bytes of numRows rows
+	private ByteBuffer[] blockBuffers(int k, int numRows){
+		ByteBuffer[] buffers = new ByteBuffer[blockPages[k].length];
+		for( int p=0; p<buffers.length; p++ ){
+			int rows = Math.max(0, Math.min(rowsPerPage, numRows - p * rowsPerPage));
+			buffers[p] = blockPages[k][p].duplicate();
+			buffers[p].clear();
+			buffers[p].limit(rows * stride * 8);
+		}
+		return buffers;
+	}
+
+	// -------------------------------------
+	// numWorkers strata per epoch, item blocks passed around the ring
+	// (returns the page set holding the first item block again)
+	// -------------------------------------
+	private int train(	SocketChannel coordinator, final SocketChannel left, SocketChannel right,
+						ExecutorService sender, int[] numBlockItems) throws IOException, InterruptedException {
+		TrainingMetrics.ThreadMetrics m = new TrainingMetrics.ThreadMetrics();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int current = 0;
+		ByteBuffer header = ByteBuffer.allocate(4);
+		ByteBuffer report = ByteBuffer.allocate(DSGDCoordinator.EPOCH_BYTES);
+		for( int epoch=0; epoch<numEpochs; epoch++ ){
+			for( int s=0; s<numWorkers; s++ ){
+				long t0 = System.nanoTime();
+				int b = (id + 1 + s) % numWorkers;
+				updateBlock(b, blockMatrix(current, numBlockItems[b]), random, m);
+				long t1 = System.nanoTime();
+				m.busyNanos += t1 - t0;
+
+				// pass block b on, receive block b+1
+				final int rows = numBlockItems[b];
+				final ByteBuffer[] outgoing = blockBuffers(current, rows);
+				Future<?> sent = sender.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						ByteBuffer size = ByteBuffer.allocate(4);
+						size.putInt(rows).flip();
+						DSGDCoordinator.writeFully(left, size);
+						for( ByteBuffer page : outgoing ){
+							DSGDCoordinator.writeFully(left, page);
+						}
+						return null;
+					}
+				});
+				header.clear();
+				DSGDCoordinator.readFully(right, header);
+				header.flip();
+				for( ByteBuffer page : blockBuffers(1 - current, header.getInt()) ){
+					DSGDCoordinator.readFully(right, page);
+				}
+				try {
+					sent.get();
+				} catch (ExecutionException e) {
+					throw new IOException("DSGD block transfer failed", e.getCause());
+				}
+				current = 1 - current;
+				m.waitNanos += System.nanoTime() - t1;
+			}
+
+			// epoch metrics to the coordinator
+			report.clear();
+			report.putLong(m.updates).putLong(m.rejections).putLong(m.failures)
+				.putLong(m.busyNanos).putLong(m.waitNanos).putDouble(m.lossSum).putLong(m.lossCount);
+			report.flip();
+			DSGDCoordinator.writeFully(coordinator, report);
+		}
+		return current;
+	}
+
+	// -------------------------------------
+	// SGD over block (this user block, item block b) in random order
+	// -------------------------------------
+	private void updateBlock(int b, FactorMatrix Q, ThreadLocalRandom random, TrainingMetrics.ThreadMetrics m){
+		int start = blockOffsets[b];
+		int end = blockOffsets[b+1];
+		int chunkStart = chunkOffsets[b];
+		int chunkSize = chunkOffsets[b+1] - chunkStart;
+		if( chunkSize == 0 ){
+			return;
+		}
+		for( int k=end-1; k>start; k-- ){
+			int index = start + random.nextInt(k - start + 1);
+			int temp = users[index];
+			users[index] = users[k];
+			users[k] = temp;
+			temp = items[index];
+			items[index] = items[k];
+			items[k] = temp;
+		}
+		for( int k=start; k<end; k++ ){
+			int user = users[k];
+			int negItem = -1;
+			int numTrials = 0;
+			while( numTrials < 10 ){
+				int rndItem = chunkItems[chunkStart + random.nextInt(0, chunkSize)];
+				if( ! BPlus.contains(user, rndItem) ){
+					negItem = rndItem;
+					break;
+				}
+				numTrials += 1;
+			}
+			m.sampled(numTrials, negItem != -1);
+			if( negItem == -1 ){
+				continue;
+			}
+			m.updated(MatrixOps.bprStep(P, user, Q, itemLocal[items[k]], itemLocal[negItem],
+				eta, lambP, lambQPlus, lambQMinus));
+		}
+	}
+
+}
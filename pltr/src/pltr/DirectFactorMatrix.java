@@ -0,0 +1,90 @@
+package pltr;
+
+/*
+	Factor matrix backed by direct (off-heap) buffers
+	
+	A single direct buffer is limited to 2GB, so rows are split into 
+	pages of whole rows. Rows never cross a page boundary.
+ */
+import java.nio.*;
+
+public final class DirectFactorMatrix extends FactorMatrix {
+
+	static final long MAX_PAGE_BYTES = 1L << 30;
+
+	final int rowsPerPage;
+	final DoubleBuffer[] pages;
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public DirectFactorMatrix(int numRows, int numCols){
+		super(numRows, numCols, 8);
+		this.rowsPerPage = rowsPerPage(stride, 8);
+		int numPages = (numRows + rowsPerPage - 1) / rowsPerPage;
+		this.pages = new DoubleBuffer[numPages];
+		for( int i=0; i<numPages; i++ ){
+			int rows = Math.min(rowsPerPage, numRows - i * rowsPerPage);
+			pages[i] = ByteBuffer.allocateDirect(rows * stride * 8)
+				.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		}
+	}
+
+	// -------------------------------------
+	// Constructor over existing pages (e.g. a mapped model file)
+	// -------------------------------------
+	DirectFactorMatrix(int numRows, int numCols, DoubleBuffer[] pages){
+		super(numRows, numCols, 8);
+		this.rowsPerPage = rowsPerPage(stride, 8);
+		this.pages = pages;
+	}
+
+	// -------------------------------------
+	// rows in a page of at most MAX_PAGE_BYTES
+	// -------------------------------------
+	static int rowsPerPage(int stride, int bytesPerValue){
+		return (int) Math.max(1, MAX_PAGE_BYTES / ((long) bytesPerValue * stride));
+	}
+
+	public double get(int row, int col){
+		return pages[row / rowsPerPage].get((row % rowsPerPage) * stride + col);
+	}
+
+	public void set(int row, int col, double value){
+		pages[row / rowsPerPage].put((row % rowsPerPage) * stride + col, value);
+	}
+
+	public double dot(int row, FactorMatrix other, int otherRow){
+		if( !(other instanceof DirectFactorMatrix) ){
+			return super.dot(row, other, otherRow);
+		}
+		DirectFactorMatrix y = (DirectFactorMatrix) other;
+		DoubleBuffer xPage = pages[row / rowsPerPage];
+		DoubleBuffer yPage = y.pages[otherRow / y.rowsPerPage];
+		int xOff = (row % rowsPerPage) * stride;
+		int yOff = (otherRow % y.rowsPerPage) * y.stride;
+		double dotProduct = 0.0;
+		for( int f=0; f<numCols; f++){
+			dotProduct += xPage.get(xOff+f) * yPage.get(yOff+f);
+		}
+		return dotProduct;
+	}
+
+	public double diffDot(int row, FactorMatrix other, int posRow, int negRow){
+		if( !(other instanceof DirectFactorMatrix) ){
+			return super.diffDot(row, other, posRow, negRow);
+		}
+		DirectFactorMatrix y = (DirectFactorMatrix) other;
+		DoubleBuffer xPage = pages[row / rowsPerPage];
+		DoubleBuffer posPage = y.pages[posRow / y.rowsPerPage];
+		DoubleBuffer negPage = y.pages[negRow / y.rowsPerPage];
+		int xOff = (row % rowsPerPage) * stride;
+		int posOff = (posRow % y.rowsPerPage) * y.stride;
+		int negOff = (negRow % y.rowsPerPage) * y.stride;
+		double diffDotProduct = 0.0;
+		for( int f=0; f<numCols; f++){
+			diffDotProduct += xPage.get(xOff+f) * (posPage.get(posOff+f) - negPage.get(negOff+f));
+		}
+		return diffDotProduct;
+	}
+}
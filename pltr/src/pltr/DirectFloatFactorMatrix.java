@@ -0,0 +1,45 @@
+package pltr;
+
+/*
+	Factor matrix of floats backed by direct (off-heap) buffers
+	(paged like DirectFactorMatrix)
+ */
+import java.nio.*;
+
+public final class DirectFloatFactorMatrix extends FactorMatrix {
+
+	final int rowsPerPage;
+	final FloatBuffer[] pages;
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public DirectFloatFactorMatrix(int numRows, int numCols){
+		super(numRows, numCols, 4);
+		this.rowsPerPage = DirectFactorMatrix.rowsPerPage(stride, 4);
+		int numPages = (numRows + rowsPerPage - 1) / rowsPerPage;
+		this.pages = new FloatBuffer[numPages];
+		for( int i=0; i<numPages; i++ ){
+			int rows = Math.min(rowsPerPage, numRows - i * rowsPerPage);
+			pages[i] = ByteBuffer.allocateDirect(rows * stride * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	}
+
+	// -------------------------------------
+	// Constructor over existing pages (e.g. a mapped model file)
+	// -------------------------------------
+	DirectFloatFactorMatrix(int numRows, int numCols, FloatBuffer[] pages){
+		super(numRows, numCols, 4);
+		this.rowsPerPage = DirectFactorMatrix.rowsPerPage(stride, 4);
+		this.pages = pages;
+	}
+
+	public double get(int row, int col){
+		return pages[row / rowsPerPage].get((row % rowsPerPage) * stride + col);
+	}
+
+	public void set(int row, int col, double value){
+		pages[row / rowsPerPage].put((row % rowsPerPage) * stride + col, (float) value);
+	}
+}
@@ -0,0 +1,179 @@
+package pltr;
+
+/*
+	Convergence-based early stopping
+
+	After every epoch the trainer hands the current factors to a
+	background thread, which computes on a fixed sample of validation
+	pairs (u,i), each with numNegatives sampled items j outside the
+	history of u:
+	- sampled AUC: fraction of (u,i,j) with x_ui > x_uj
+	- loss: mean -log sigmoid(x_ui - x_uj)
+	Training continues meanwhile (the factors are read while being
+	updated, as in hogwild). Training is stopped at the next epoch
+	boundary once the AUC has not improved by more than minDelta over
+	the best value for patience evaluations.
+ */
+import java.util.*;
+import java.util.concurrent.*;
+
+public class EarlyStopping {
+
+	int[] users; // sampled validation pairs
+	int[] items;
+	int numNegatives;
+	int patience;
+	double minDelta;
+	long seed;
+	ExecutorService executor;
+	Future<?> pending;
+
+	// evaluation state (written by the background thread)
+	volatile boolean stop;
+	volatile double lastAUC = Double.NaN;
+	volatile double lastLoss = Double.NaN;
+	volatile double bestAUC = Double.NEGATIVE_INFINITY;
+	volatile int bestEpoch = -1;
+	int numBadEvaluations;
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public EarlyStopping(InteractionSet validation, int maxPairs, int numNegatives, int patience, double minDelta, long seed){
+		if( validation.size() == 0 || maxPairs < 1 || numNegatives < 1 || patience < 1 ){
+			throw new IllegalArgumentException("Invalid early stopping parameters !!!");
+		}
+		Random random = new Random(seed);
+		int n = Math.min(maxPairs, validation.size());
+		this.users = new int[n];
+		this.items = new int[n];
+		for( int k=0; k<n; k++ ){
+			int i = (n == validation.size()) ? k : random.nextInt(validation.size());
+			users[k] = validation.getUserId(i);
+			items[k] = validation.getItemId(i);
+		}
+		this.numNegatives = numNegatives;
+		this.patience = patience;
+		this.minDelta = minDelta;
+		this.seed = seed;
+	}
+
+	// -------------------------------------
+	// start of learn: clear the state of a previous run
+	// -------------------------------------
+	void start(){
+		finish();
+		this.stop = false;
+		this.lastAUC = Double.NaN;
+		this.lastLoss = Double.NaN;
+		this.bestAUC = Double.NEGATIVE_INFINITY;
+		this.bestEpoch = -1;
+		this.numBadEvaluations = 0;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "early-stopping");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	// -------------------------------------
+	// end of an epoch: evaluate in the background (a running
+	// evaluation is not queued twice, the epoch is skipped)
+	// -------------------------------------
+	void epochDone(final int epoch, final FactorMatrix P, final FactorMatrix Q, final UserHistory BPlus){
+		if( executor == null || ( pending != null && !pending.isDone() ) ){
+			return;
+		}
+		pending = executor.submit(new Runnable() {
+			public void run(){
+				evaluate(epoch, P, Q, BPlus);
+			}
+		});
+	}
+
+	// -------------------------------------
+	// plateau detected: stop before the next epoch
+	// -------------------------------------
+	public boolean shouldStop(){
+		return stop;
+	}
+
+	// -------------------------------------
+	// end of learn: wait for the last evaluation
+	// -------------------------------------
+	void finish(){
+		if( executor == null ){
+			return;
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+		pending = null;
+	}
+
+	private void evaluate(int epoch, FactorMatrix P, FactorMatrix Q, UserHistory BPlus){
+		Random random = new Random(seed); // same negatives in every evaluation
+		int numItems = Q.getNumRows();
+		long numCorrect = 0;
+		long numTriples = 0;
+		double lossSum = 0.0;
+		for( int k=0; k<users.length; k++ ){
+			int u = users[k];
+			if( u >= P.getNumRows() || items[k] >= numItems ){
+				continue;
+			}
+			double xui = MatrixOps.dot(P, u, Q, items[k]);
+			for( int s=0; s<numNegatives; s++ ){
+				int j = random.nextInt(numItems);
+				if( BPlus.contains(u, j) || j == items[k] ){
+					continue;
+				}
+				double x = xui - MatrixOps.dot(P, u, Q, j);
+				if( x > 0 )
+					numCorrect++;
+				lossSum += (x < -30.0) ? -x : Math.log1p(Math.exp(-x));
+				numTriples++;
+			}
+		}
+		if( numTriples == 0 ){
+			return;
+		}
+		double auc = 1.0 * numCorrect / numTriples;
+		lastAUC = auc;
+		lastLoss = lossSum / numTriples;
+		if( auc > bestAUC + minDelta ){
+			bestAUC = auc;
+			bestEpoch = epoch;
+			numBadEvaluations = 0;
+		} else if( ++numBadEvaluations >= patience ){
+			stop = true;
+		}
+		System.out.println("validation epoch: " + epoch + " AUC: " + auc + " loss: " + lastLoss + (stop ? " (stopping)" : ""));
+	}
+
+	// -------------------------------------
+	// results of the last evaluation
+	// -------------------------------------
+	public double getLastAUC(){
+		return lastAUC;
+	}
+
+	public double getLastLoss(){
+		return lastLoss;
+	}
+
+	public double getBestAUC(){
+		return bestAUC;
+	}
+
+	public int getBestEpoch(){
+		return bestEpoch;
+	}
+
+}
@@ -0,0 +1,173 @@
+package pltr;
+
+/*
+	Factor matrix (P or Q) with contiguous row-major storage
+	
+	Rows are padded to a multiple of the cache line size, so a row 
+	never shares a cache line with another row.
+ */
+public abstract class FactorMatrix {
+
+	static final int CACHE_LINE_BYTES = 64;
+
+	final int numRows;
+	final int numCols;
+	final int stride; // padded row length (in values)
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	FactorMatrix(int numRows, int numCols, int bytesPerValue){
+		if( numRows < 0 || numCols < 1 ){
+			throw new IllegalArgumentException("Invalid factor matrix size: " + numRows + " x " + numCols);
+		}
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.stride = paddedStride(numCols, bytesPerValue);
+	}
+
+	// -------------------------------------
+	// row length rounded up to full cache lines
+	// -------------------------------------
+	static int paddedStride(int numCols, int bytesPerValue){
+		int valuesPerLine = CACHE_LINE_BYTES / bytesPerValue;
+		return ((numCols + valuesPerLine - 1) / valuesPerLine) * valuesPerLine;
+	}
+
+	// -------------------------------------
+	// allocate a zero matrix with the given storage
+	// -------------------------------------
+	public static FactorMatrix allocate(int numRows, int numCols, FactorStorage storage){
+		return allocate(numRows, numCols, storage, FactorPrecision.DOUBLE);
+	}
+
+	public static FactorMatrix allocate(int numRows, int numCols, FactorStorage storage, FactorPrecision precision){
+		boolean single = (precision == FactorPrecision.FLOAT);
+		switch (storage) {
+			case HEAP:
+				return single ? new HeapFloatFactorMatrix(numRows, numCols) : new HeapFactorMatrix(numRows, numCols);
+			case OFF_HEAP:
+				return single ? new DirectFloatFactorMatrix(numRows, numCols) : new DirectFactorMatrix(numRows, numCols);
+			default:
+				throw new IllegalArgumentException("Invalid factor storage !!!");
+		}
+	}
+
+	// -------------------------------------
+	// read-only copy for scoring (the matrix itself if EXACT)
+	// -------------------------------------
+	public static FactorMatrix forScoring(FactorMatrix matrix, ScoringPrecision precision){
+		switch (precision) {
+			case EXACT:
+				return matrix;
+			case BF16:
+			case INT8:
+				return new QuantizedFactorMatrix(matrix, precision);
+			default:
+				throw new IllegalArgumentException("Invalid scoring precision !!!");
+		}
+	}
+
+	// -------------------------------------
+	// copy with the given storage (same precision)
+	// -------------------------------------
+	public static FactorMatrix copy(FactorMatrix matrix, FactorStorage storage){
+		FactorPrecision precision = (matrix instanceof HeapFloatFactorMatrix || matrix instanceof DirectFloatFactorMatrix)
+			? FactorPrecision.FLOAT : FactorPrecision.DOUBLE;
+		FactorMatrix copy = allocate(matrix.numRows, matrix.numCols, storage, precision);
+		for( int r=0; r<matrix.numRows; r++ ){
+			for( int f=0; f<matrix.numCols; f++ ){
+				copy.set(r, f, matrix.get(r, f));
+			}
+		}
+		return copy;
+	}
+
+	// -------------------------------------
+	// copy with more rows (same storage and precision), new rows are
+	// drawn from N(0, s^2), s: standard deviation of the existing values
+	// -------------------------------------
+	public static FactorMatrix grow(FactorMatrix matrix, int numRows){
+		if( numRows <= matrix.numRows ){
+			return matrix;
+		}
+		FactorStorage storage = (matrix instanceof HeapFactorMatrix || matrix instanceof HeapFloatFactorMatrix)
+			? FactorStorage.HEAP : FactorStorage.OFF_HEAP;
+		FactorPrecision precision = (matrix instanceof HeapFloatFactorMatrix || matrix instanceof DirectFloatFactorMatrix)
+			? FactorPrecision.FLOAT : FactorPrecision.DOUBLE;
+		FactorMatrix grown = allocate(numRows, matrix.numCols, storage, precision);
+
+		double sum = 0.0;
+		double sumSquares = 0.0;
+		for( int r=0; r<matrix.numRows; r++ ){
+			for( int f=0; f<matrix.numCols; f++ ){
+				double v = matrix.get(r, f);
+				grown.set(r, f, v);
+				sum += v;
+				sumSquares += v * v;
+			}
+		}
+		long n = Math.max(1L, (long) matrix.numRows * matrix.numCols);
+		double mean = sum / n;
+		double sigma = Math.sqrt(Math.max(0.0, sumSquares / n - mean * mean));
+
+		java.util.Random random = new java.util.Random();
+		for( int r=matrix.numRows; r<numRows; r++ ){
+			for( int f=0; f<matrix.numCols; f++ ){
+				grown.set(r, f, random.nextGaussian() * sigma);
+			}
+		}
+		return grown;
+	}
+
+	public int getNumRows(){
+		return numRows;
+	}
+
+	public int getNumCols(){
+		return numCols;
+	}
+
+	public abstract double get(int row, int col);
+	public abstract void set(int row, int col, double value);
+
+	// -------------------------------------
+	// in-place addition of a single value
+	// -------------------------------------
+	public void add(int row, int col, double value){
+		set(row, col, get(row, col) + value);
+	}
+
+	// -------------------------------------
+	// dot product of this[row] and other[otherRow]
+	// -------------------------------------
+	public double dot(int row, FactorMatrix other, int otherRow){
+		double dotProduct = 0.0;
+		for( int f=0; f<numCols; f++){
+			dotProduct += get(row, f) * other.get(otherRow, f);
+		}
+		return dotProduct;
+	}
+
+	// -------------------------------------
+	// this[row] . (other[posRow] - other[negRow])
+	// -------------------------------------
+	public double diffDot(int row, FactorMatrix other, int posRow, int negRow){
+		double diffDotProduct = 0.0;
+		for( int f=0; f<numCols; f++){
+			diffDotProduct += get(row, f) * (other.get(posRow, f) - other.get(negRow, f));
+		}
+		return diffDotProduct;
+	}
+
+	// -------------------------------------
+	// copy of a single row (unpadded)
+	// -------------------------------------
+	public double[] getRow(int row){
+		double[] values = new double[numCols];
+		for( int f=0; f<numCols; f++){
+			values[f] = get(row, f);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,340 @@
+package pltr;
+
+/*
+	State and bookkeeping shared by the trainers (BPR, PLTRN, PLTRB)
+
+	Factors and their read-only scoring copies, hyperparameters, user
+	histories, sampling and step size settings, metrics, checkpoints
+	and the model file. A trainer adds its learn() loop only.
+ */
+import java.util.*;
+import java.io.*;
+
+abstract class FactorModel implements PLTR {
+
+	final int algorithm; // ModelFile.ALGORITHM_*
+	int numUsers;
+	int numItems;
+	int numLatentFactors;
+	FactorMatrix P; // user component matrix
+	FactorMatrix Q; // item component matrix
+	FactorMatrix PScore; // user component matrix used for scoring
+	FactorMatrix QScore; // item component matrix used for scoring
+	ScoringPrecision scoringPrecision;
+	double lambP; // regularization parameter
+	double lambQPlus; // regularization parameter
+	double lambQMinus; // regularization parameter
+	double eta; // learning rate
+	int numEpochs; // number of training epochs
+	UserHistory BPlus; // user histories
+	TrainingMetrics metrics;
+	TrainingMetrics foldInMetrics; // kept apart from the training counters
+	NegativeSampler sampler = new UniformSampler(); // negative item sampling
+	StepSizeRule stepSizeRule = StepSizeRule.CONSTANT;
+	RowStepSizes stepSizes; // per-row step sizes (null: constant eta)
+	EarlyStopping earlyStopping; // validation between epochs (null: all numEpochs)
+	int numNegatives = 1; // negatives per positive
+	int batchSize = 1; // max. consecutive positives of one user per mini-batch
+	int epochsDone; // epochs (passes over the data) completed, for resuming
+	String checkpointFile; // periodic checkpoints (null: none)
+	int checkpointEvery;
+	int lastCheckpoint;
+
+	// -------------------------------------
+	// Constructor (random factors)
+	// -------------------------------------
+	FactorModel(	String name,
+					int algorithm,
+					int numUsers,
+					int numItems,
+					int numLatentFactors,
+					double mu,
+					double sigma,
+					double lambP,
+					double lambQPlus,
+					double lambQMinus,
+					double eta,
+					int numEpochs,
+					FactorStorage storage,
+					FactorPrecision precision,
+					ScoringPrecision scoringPrecision) {
+
+		this.algorithm = algorithm;
+		this.metrics = new TrainingMetrics(name);
+		this.foldInMetrics = new TrainingMetrics(name + "-foldIn");
+		this.numUsers = numUsers;
+		this.numItems = numItems;
+		this.numLatentFactors = numLatentFactors;
+		this.P = MatrixOps.gaussianFactorMatrixBuilder(mu, sigma, numUsers, numLatentFactors, storage, precision);
+		this.Q = MatrixOps.gaussianFactorMatrixBuilder(mu, sigma, numItems, numLatentFactors, storage, precision);
+		this.lambP = lambP;
+		this.lambQPlus = lambQPlus;
+		this.lambQMinus = lambQMinus;
+		this.eta = eta;
+		this.numEpochs = numEpochs;
+		this.scoringPrecision = scoringPrecision;
+		this.PScore = this.P;
+		this.QScore = this.Q;
+	}
+
+	// -------------------------------------
+	// Constructor from existing factors (model file)
+	// -------------------------------------
+	FactorModel(	String name,
+					int algorithm,
+					FactorMatrix P,
+					FactorMatrix Q,
+					double lambP,
+					double lambQPlus,
+					double lambQMinus,
+					double eta,
+					int numEpochs,
+					int epochsDone,
+					ScoringPrecision scoringPrecision,
+					FactorMatrix PScore,
+					FactorMatrix QScore,
+					RowStepSizes stepSizes) {
+
+		this.algorithm = algorithm;
+		this.metrics = new TrainingMetrics(name);
+		this.foldInMetrics = new TrainingMetrics(name + "-foldIn");
+		this.numUsers = P.getNumRows();
+		this.numItems = Q.getNumRows();
+		this.numLatentFactors = P.getNumCols();
+		this.P = P;
+		this.Q = Q;
+		this.lambP = lambP;
+		this.lambQPlus = lambQPlus;
+		this.lambQMinus = lambQMinus;
+		this.eta = eta;
+		this.numEpochs = numEpochs;
+		this.epochsDone = epochsDone;
+		this.scoringPrecision = scoringPrecision;
+		this.stepSizes = stepSizes;
+		if( stepSizes != null ){
+			this.stepSizeRule = stepSizes.getRule();
+		}
+		// quantized P and Q of the model file if mapped
+		this.PScore = (PScore != null) ? PScore : FactorMatrix.forScoring(P, scoringPrecision);
+		this.QScore = (QScore != null) ? QScore : FactorMatrix.forScoring(Q, scoringPrecision);
+	}
+
+	// -------------------------------------
+	// learn model (with uniform sampling)
+	// -------------------------------------
+	public void learn(ArrayList<Tuple> data, Integer numProcs) throws InterruptedException{
+		learn(InteractionSet.fromTuples(data), numProcs);
+	}
+
+	// -------------------------------------
+	// a finished checkpoint is not trained again
+	// -------------------------------------
+	boolean alreadyTrained(){
+		if( epochsDone > 0 && epochsDone >= this.numEpochs ){
+			System.out.println("already trained (" + epochsDone + " of " + this.numEpochs + " epochs)");
+			return true;
+		}
+		return false;
+	}
+
+	// -------------------------------------
+	// read-only copies for scoring (after P or Q changed)
+	// -------------------------------------
+	void refreshScoringFactors(){
+		PScore = FactorMatrix.forScoring(P, scoringPrecision);
+		QScore = FactorMatrix.forScoring(Q, scoringPrecision);
+	}
+
+	// -------------------------------------
+	// fold in new interactions (users and items may be new) with
+	// numPasses SGD passes over the delta only
+	// -------------------------------------
+	public void foldIn(InteractionSet delta, int numPasses, Integer numProcs) throws InterruptedException{
+
+		// grow factors for unseen ids
+		this.numUsers = Math.max(this.numUsers, delta.getMaxUserId() + 1);
+		this.numItems = Math.max(this.numItems, delta.getMaxItemId() + 1);
+		P = FactorMatrix.grow(P, this.numUsers);
+		Q = FactorMatrix.grow(Q, this.numItems);
+
+		if( BPlus == null ){
+			BPlus = UserHistory.build(delta, this.numUsers, this.numItems, numProcs);
+		} else {
+			BPlus.addAll(delta, this.numUsers, this.numItems, numProcs);
+		}
+		stepSizes = RowStepSizes.resume(stepSizes, stepSizeRule, this.numUsers, this.numItems);
+		foldInMetrics.setLogging(metrics.logging);
+		FoldIn.train(delta, numPasses, numProcs, P, Q, BPlus, sampler, stepSizes, this.eta, this.lambP, this.lambQPlus, this.lambQMinus, foldInMetrics);
+		refreshScoringFactors();
+	}
+
+	// -------------------------------------
+	// fold-in metrics (kept apart from the training counters)
+	// -------------------------------------
+	public TrainingMetrics getFoldInMetrics(){
+		return foldInMetrics;
+	}
+
+	// -------------------------------------
+	// grow the factors for ids beyond the model (e.g. resuming on data
+	// with new users or items), new rows are drawn around the spread of
+	// the trained factors and the user histories are rebuilt by learn()
+	// -------------------------------------
+	public void grow(int numUsers, int numItems){
+		if( numUsers <= this.numUsers && numItems <= this.numItems ){
+			return;
+		}
+		this.numUsers = Math.max(this.numUsers, numUsers);
+		this.numItems = Math.max(this.numItems, numItems);
+		P = FactorMatrix.grow(P, this.numUsers);
+		Q = FactorMatrix.grow(Q, this.numItems);
+		BPlus = null;
+		refreshScoringFactors();
+	}
+
+	// -------------------------------------
+	// negative item sampling (before learn)
+	// -------------------------------------
+	public void setNegativeSampler(NegativeSampler sampler){
+		this.sampler = sampler;
+	}
+
+	// -------------------------------------
+	// per-row adaptive step sizes (before learn)
+	// -------------------------------------
+	public void setStepSizeRule(StepSizeRule stepSizeRule){
+		this.stepSizeRule = stepSizeRule;
+	}
+
+	// -------------------------------------
+	// early stopping on a validation sample (before learn, null: off)
+	// -------------------------------------
+	public void setEarlyStopping(EarlyStopping earlyStopping){
+		this.earlyStopping = earlyStopping;
+	}
+
+	// -------------------------------------
+	// mini-batches (before learn): numNegatives negatives per positive,
+	// up to batchSize consecutive positives of one user (1, 1: plain SGD)
+	// -------------------------------------
+	public void setMiniBatch(int numNegatives, int batchSize){
+		if( numNegatives < 1 || batchSize < 1 ){
+			throw new IllegalArgumentException("Invalid mini-batch parameters !!!");
+		}
+		this.numNegatives = numNegatives;
+		this.batchSize = batchSize;
+	}
+
+	// -------------------------------------
+	// user histories (shared between models)
+	// -------------------------------------
+	public UserHistory getUserHistory(){
+		return BPlus;
+	}
+
+	public void setUserHistory(UserHistory BPlus){
+		this.BPlus = BPlus;
+	}
+
+	// -------------------------------------
+	// factor matrices used for scoring
+	// -------------------------------------
+	public FactorMatrix getUserFactors(){
+		return PScore;
+	}
+
+	public FactorMatrix getItemFactors(){
+		return QScore;
+	}
+
+	// -------------------------------------
+	// top-k items of a user, excluding its history
+	// -------------------------------------
+	public int[] recommendTopK(int user, int k){
+		return Recommender.recommendTopK(this, user, k);
+	}
+
+	// -------------------------------------
+	// training metrics (updates, sampling, timing, loss)
+	// -------------------------------------
+	public TrainingMetrics getMetrics(){
+		return metrics;
+	}
+
+	// -------------------------------------
+	// save model (factors, hyperparameters, user histories)
+	// -------------------------------------
+	public void save(String modelFile) throws IOException {
+		ModelFile.save(modelFile, algorithm, P, Q, lambP, lambQPlus, lambQMinus, eta,
+			numEpochs, epochsDone, scoringPrecision, BPlus, stepSizes);
+	}
+
+	// -------------------------------------
+	// periodic checkpoints during learn (and after the last epoch)
+	// -------------------------------------
+	public void setCheckpoint(String checkpointFile, int everyEpochs){
+		if( everyEpochs < 1 ){
+			throw new IllegalArgumentException("Invalid checkpoint interval !!!");
+		}
+		this.checkpointFile = checkpointFile;
+		this.checkpointEvery = everyEpochs;
+	}
+
+	public int getEpochsDone(){
+		return epochsDone;
+	}
+
+	void checkpoint(boolean last){
+		if( checkpointFile == null || epochsDone == lastCheckpoint
+			|| ( !last && epochsDone - lastCheckpoint < checkpointEvery ) ){
+			return;
+		}
+		try {
+			save(checkpointFile);
+			lastCheckpoint = epochsDone;
+		} catch (IOException e) {
+			System.out.println("Checkpoint Error: " + e.getMessage());
+		}
+	}
+
+	// -------------------------------------
+	// mini-batch buffers of a worker (null: plain SGD steps)
+	// -------------------------------------
+	MiniBatch newBatch(){
+		if( numNegatives == 1 && batchSize == 1 ){
+			return null;
+		}
+		return new MiniBatch(numNegatives, batchSize, numLatentFactors);
+	}
+
+	// -------------------------------------
+	// SGD step for (user, posItem, negItem), returns x_uij
+	// -------------------------------------
+	double update(int user, int posItem, int negItem){
+		if( stepSizes != null ){
+			return stepSizes.bprStep(P, user, Q, posItem, negItem, this.eta, this.lambP, this.lambQPlus, this.lambQMinus);
+		}
+		return MatrixOps.bprStep(P, user, Q, posItem, negItem, this.eta, this.lambP, this.lambQPlus, this.lambQMinus);
+	}
+
+	// -----------------------------------------------
+	// evaluate a single (user,item) test pair for AUC
+	// -----------------------------------------------
+	public double getAUCUserItem(Integer user, Integer item){
+
+		Double estimatedRankingScoreItem = MatrixOps.dot(PScore, user, QScore, item);
+		Integer numNoInversions = 0;
+		Integer numEligibleItems = 0;
+
+		for(int i=0; i<this.numItems; i++){
+			if( ( ! BPlus.contains(user, i) ) && item != i ) {
+				numEligibleItems++;
+				if ( estimatedRankingScoreItem > MatrixOps.dot(PScore, user, QScore, i) ) {
+					numNoInversions++;
+				}
+			}
+		}
+
+		return 1.0 * numNoInversions / numEligibleItems;
+	}
+}
@@ -0,0 +1,12 @@
+package pltr;
+
+/*
+	Value type of trained factor matrices
+
+	DOUBLE: 64 bit values
+	FLOAT:  32 bit values (half the memory traffic of DOUBLE)
+ */
+public enum FactorPrecision {
+	DOUBLE,
+	FLOAT
+}
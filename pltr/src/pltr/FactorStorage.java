@@ -0,0 +1,12 @@
+package pltr;
+
+/*
+	Backing storage of factor matrices
+
+	HEAP:     one flat row-major double[] per matrix
+	OFF_HEAP: direct ByteBuffers outside of the Java heap
+ */
+public enum FactorStorage {
+	HEAP,
+	OFF_HEAP
+}
@@ -0,0 +1,80 @@
+package pltr;
+
+/*
+	Incremental fold-in of new interactions into a trained model
+
+	The factor matrices are grown for unseen user and item ids (new
+	rows are drawn around the spread of the trained factors), the user
+	histories are merged in place, and a bounded number of SGD passes
+	is run over the new interactions only: positives (u,i) are sampled
+	from the delta, negatives j from all items by the sampler of the
+	model, with the step size rule of the model, as in training. Only
+	the affected users and items (and the sampled negatives) are
+	updated, so the cost is proportional to the delta and not to the
+	full data.
+ */
+import java.util.concurrent.*;
+
+public class FoldIn {
+
+	// -------------------------------------
+	// bounded hogwild SGD over the delta (numPasses * delta.size() updates),
+	// negatives from the sampler of the model, per-row step sizes
+	// unless stepSizes is null
+	// -------------------------------------
+	public static void train(	final InteractionSet delta,
+								final int numPasses,
+								int numProcs,
+								final FactorMatrix P,
+								final FactorMatrix Q,
+								final UserHistory BPlus,
+								final NegativeSampler sampler,
+								final RowStepSizes stepSizes,
+								final double eta,
+								final double lambP,
+								final double lambQPlus,
+								final double lambQMinus,
+								final TrainingMetrics metrics) throws InterruptedException {
+		if( numPasses < 1 ){
+			throw new IllegalArgumentException("Invalid number of fold-in passes !!!");
+		}
+		final int lenData = delta.size();
+		final int numThreads = Math.max(1, Math.min(numProcs, lenData));
+		if( lenData == 0 ){
+			return;
+		}
+		sampler.foldIn(delta, BPlus, P, Q);
+		metrics.start(numThreads, 0);
+
+		ParallelOps.runRanges(numThreads, numThreads, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				for( int t=from; t<to; t++ ){
+					TrainingMetrics.ThreadMetrics m = metrics.thread(t);
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					long start = System.nanoTime();
+					// every thread takes its share of the samples of a pass
+					int samples = (int)((long) lenData * (t+1) / numThreads) - (int)((long) lenData * t / numThreads);
+					for( int pass=0; pass<numPasses; pass++ ){
+						for( int j=0; j<samples; j++ ){
+							int rnd = random.nextInt(0, lenData);
+							int user = delta.getUserId(rnd);
+							int posItem = delta.getItemId(rnd);
+							int negItem = sampler.sample(user, 0, random, m);
+							if( negItem == -1 ){
+								continue;
+							}
+							if( stepSizes != null ){
+								m.updated(stepSizes.bprStep(P, user, Q, posItem, negItem, eta, lambP, lambQPlus, lambQMinus));
+							} else {
+								m.updated(MatrixOps.bprStep(P, user, Q, posItem, negItem, eta, lambP, lambQPlus, lambQMinus));
+							}
+						}
+					}
+					m.busyNanos += System.nanoTime() - start;
+				}
+			}
+		});
+		metrics.epochDone(0);
+	}
+
+}
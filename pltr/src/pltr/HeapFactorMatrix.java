@@ -0,0 +1,62 @@
+package pltr;
+
+/*
+	Factor matrix backed by a single flat double[] on the heap
+ */
+public final class HeapFactorMatrix extends FactorMatrix {
+
+	static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	final double[] values; // row-major, row r starts at r*stride
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public HeapFactorMatrix(int numRows, int numCols){
+		super(numRows, numCols, 8);
+		long length = (long) numRows * stride;
+		if( length > MAX_ARRAY_LENGTH ){
+			throw new IllegalArgumentException("Factor matrix too large for the heap (" 
+				+ numRows + " x " + stride + "), use FactorStorage.OFF_HEAP");
+		}
+		this.values = new double[(int) length];
+	}
+
+	// -------------------------------------
+	// start of a row in the values array
+	// -------------------------------------
+	public int offset(int row){
+		return row * stride;
+	}
+
+	public double[] getValues(){
+		return values;
+	}
+
+	public double get(int row, int col){
+		return values[row * stride + col];
+	}
+
+	public void set(int row, int col, double value){
+		values[row * stride + col] = value;
+	}
+
+	public void add(int row, int col, double value){
+		values[row * stride + col] += value;
+	}
+
+	public double dot(int row, FactorMatrix other, int otherRow){
+		if( !(other instanceof HeapFactorMatrix) ){
+			return super.dot(row, other, otherRow);
+		}
+		return MatrixOps.dot(values, row * stride, ((HeapFactorMatrix) other).values, otherRow * other.stride, numCols);
+	}
+
+	public double diffDot(int row, FactorMatrix other, int posRow, int negRow){
+		if( !(other instanceof HeapFactorMatrix) ){
+			return super.diffDot(row, other, posRow, negRow);
+		}
+		double[] y = ((HeapFactorMatrix) other).values;
+		return MatrixOps.diffDot(values, row * stride, y, posRow * other.stride, y, negRow * other.stride, numCols);
+	}
+}
@@ -0,0 +1,60 @@
+package pltr;
+
+/*
+	Factor matrix backed by a single flat float[] on the heap
+ */
+public final class HeapFloatFactorMatrix extends FactorMatrix {
+
+	final float[] values; // row-major, row r starts at r*stride
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public HeapFloatFactorMatrix(int numRows, int numCols){
+		super(numRows, numCols, 4);
+		long length = (long) numRows * stride;
+		if( length > HeapFactorMatrix.MAX_ARRAY_LENGTH ){
+			throw new IllegalArgumentException("Factor matrix too large for the heap (" 
+				+ numRows + " x " + stride + "), use FactorStorage.OFF_HEAP");
+		}
+		this.values = new float[(int) length];
+	}
+
+	// -------------------------------------
+	// start of a row in the values array
+	// -------------------------------------
+	public int offset(int row){
+		return row * stride;
+	}
+
+	public float[] getValues(){
+		return values;
+	}
+
+	public double get(int row, int col){
+		return values[row * stride + col];
+	}
+
+	public void set(int row, int col, double value){
+		values[row * stride + col] = (float) value;
+	}
+
+	public void add(int row, int col, double value){
+		values[row * stride + col] += (float) value;
+	}
+
+	public double dot(int row, FactorMatrix other, int otherRow){
+		if( !(other instanceof HeapFloatFactorMatrix) ){
+			return super.dot(row, other, otherRow);
+		}
+		return MatrixOps.dot(values, row * stride, ((HeapFloatFactorMatrix) other).values, otherRow * other.stride, numCols);
+	}
+
+	public double diffDot(int row, FactorMatrix other, int posRow, int negRow){
+		if( !(other instanceof HeapFloatFactorMatrix) ){
+			return super.diffDot(row, other, posRow, negRow);
+		}
+		float[] y = ((HeapFloatFactorMatrix) other).values;
+		return MatrixOps.diffDot(values, row * stride, y, posRow * other.stride, y, negRow * other.stride, numCols);
+	}
+}
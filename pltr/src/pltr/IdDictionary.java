@@ -0,0 +1,223 @@
+package pltr;
+
+/*
+	Dictionary of raw (sparse, 64-bit) ids to dense indices [0,size)
+
+	Raw ids are given dense indices in order of first appearance, so
+	only observed users and items get rows in P and Q. The map is a
+	primitive open-addressing hash table with linear probing (long
+	keys, int values, no boxing, at most half full), the reverse
+	direction is a plain long array.
+	Not thread-safe: ids are added during ingestion only.
+
+	File layout (little endian): 16 byte header (magic, version,
+	number of ids), then the raw id of every index.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+public class IdDictionary {
+
+	static final int MAGIC = 0x44544C50; // "PLTD"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 16;
+	static final int BUFFER_BYTES = 1 << 16;
+
+	long[] keys; // raw id of every slot
+	int[] values; // dense index of every slot, -1: empty
+	long[] rawIds; // raw id of every dense index
+	int size;
+	int mask;
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public IdDictionary(){
+		this(16);
+	}
+
+	public IdDictionary(int expectedSize){
+		if( expectedSize < 0 || expectedSize > (1 << 29) ){
+			throw new IllegalArgumentException("Invalid dictionary size !!!");
+		}
+		int capacity = 32;
+		while( capacity < 2 * expectedSize ){
+			capacity <<= 1;
+		}
+		allocate(capacity);
+		this.rawIds = new long[Math.max(16, expectedSize)];
+	}
+
+	private void allocate(int capacity){
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		Arrays.fill(values, -1);
+		this.mask = capacity - 1;
+	}
+
+	// -------------------------------------
+	// dense index of rawId, a new index if rawId has not been seen
+	// -------------------------------------
+	public int getOrAdd(long rawId){
+		int slot = hash(rawId) & mask;
+		while( values[slot] != -1 ){
+			if( keys[slot] == rawId ){
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		if( size == Integer.MAX_VALUE - 8 ){
+			throw new IllegalStateException("Too many ids");
+		}
+		int index = size++;
+		keys[slot] = rawId;
+		values[slot] = index;
+		if( index == rawIds.length ){
+			rawIds = Arrays.copyOf(rawIds, (int) Math.min(Integer.MAX_VALUE - 8, 2L * rawIds.length));
+		}
+		rawIds[index] = rawId;
+		if( 2L * size > keys.length ){
+			rehash(2 * keys.length);
+		}
+		return index;
+	}
+
+	// -------------------------------------
+	// dense index of rawId, -1 if rawId has not been seen
+	// -------------------------------------
+	public int get(long rawId){
+		int slot = hash(rawId) & mask;
+		while( values[slot] != -1 ){
+			if( keys[slot] == rawId ){
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	// -------------------------------------
+	// raw id of a dense index
+	// -------------------------------------
+	public long rawId(int index){
+		if( index < 0 || index >= size ){
+			throw new IllegalArgumentException("Invalid index: " + index + " !!!");
+		}
+		return rawIds[index];
+	}
+
+	public int size(){
+		return size;
+	}
+
+	// -------------------------------------
+	// re-insert all ids into a table of the given capacity
+	// -------------------------------------
+	private void rehash(int capacity){
+		allocate(capacity);
+		for( int index=0; index<size; index++ ){
+			int slot = hash(rawIds[index]) & mask;
+			while( values[slot] != -1 ){
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = rawIds[index];
+			values[slot] = index;
+		}
+	}
+
+	// 64-bit finalizer of MurmurHash3: sequential and strided ids spread over all slots
+	static int hash(long key){
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	// -------------------------------------
+	// write the raw ids in index order
+	// -------------------------------------
+	public void save(String dictionaryFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(dictionaryFile, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			file.setLength(HEADER_BYTES + 8L * size);
+			ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(0);
+			long position = 0;
+			for( int index=0; index<size; index++ ){
+				if( buf.remaining() < 8 ){
+					position = write(channel, buf, position);
+				}
+				buf.putLong(rawIds[index]);
+			}
+			write(channel, buf, position);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static long write(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		buf.flip();
+		while( buf.hasRemaining() ){
+			position += channel.write(buf, position);
+		}
+		buf.clear();
+		return position;
+	}
+
+	// -------------------------------------
+	// read a dictionary written by save()
+	// -------------------------------------
+	public static IdDictionary load(String dictionaryFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(dictionaryFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			buf.limit(HEADER_BYTES);
+			long position = read(channel, buf, 0);
+			if( buf.getInt() != MAGIC ){
+				throw new IOException("Not an id dictionary file: " + dictionaryFile);
+			}
+			int version = buf.getInt();
+			if( version != VERSION ){
+				throw new IOException("Unsupported id dictionary version: " + version);
+			}
+			int numIds = buf.getInt();
+			if( numIds < 0 || channel.size() < HEADER_BYTES + 8L * numIds ){
+				throw new IOException("Truncated id dictionary file: " + dictionaryFile);
+			}
+			IdDictionary dictionary = new IdDictionary(numIds);
+			int index = 0;
+			while( index < numIds ){
+				buf.clear();
+				buf.limit((int) Math.min(BUFFER_BYTES, 8L * (numIds - index)));
+				position = read(channel, buf, position);
+				while( buf.hasRemaining() ){
+					if( dictionary.getOrAdd(buf.getLong()) != index++ ){
+						throw new IOException("Duplicate id in dictionary file: " + dictionaryFile);
+					}
+				}
+			}
+			return dictionary;
+		} finally {
+			file.close();
+		}
+	}
+
+	private static long read(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while( buf.hasRemaining() ){
+			int n = channel.read(buf, position);
+			if( n < 0 ){
+				throw new EOFException("Truncated id dictionary file");
+			}
+			position += n;
+		}
+		buf.flip();
+		return position;
+	}
+
+}
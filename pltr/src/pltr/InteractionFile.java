@@ -0,0 +1,354 @@
+package pltr;
+
+/*
+	Binary interaction file format
+
+	Layout (little endian):
+	- 64 byte header: magic, version, flags, number of interactions,
+	  max. user id, max. item id (rest reserved)
+	- user column (int), item column (int),
+	  rating column (float, optional), timestamp column (long, optional)
+	Each column starts at an 8 byte aligned offset.
+
+	A tab-delimited file (<user,item[,rating[,timestamp]]>) is
+	converted once, after that the file is memory-mapped. A file is
+	written to a temporary file first and renamed, so a failed write
+	never leaves a partial file behind.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+public class InteractionFile {
+
+	static final int MAGIC = 0x52544C50; // "PLTR"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 64;
+	static final int FLAG_RATINGS = 1;
+	static final int FLAG_TIMESTAMPS = 2;
+
+	// -------------------------------------
+	// file header and column offsets
+	// -------------------------------------
+	static class Header {
+		int flags;
+		int numInteractions;
+		int maxUserId;
+		int maxItemId;
+		long usersOffset;
+		long itemsOffset;
+		long ratingsOffset;
+		long timestampsOffset;
+		long fileLength;
+
+		Header(int flags, int numInteractions, int maxUserId, int maxItemId){
+			this.flags = flags;
+			this.numInteractions = numInteractions;
+			this.maxUserId = maxUserId;
+			this.maxItemId = maxItemId;
+			long n = numInteractions;
+			usersOffset = HEADER_BYTES;
+			itemsOffset = align(usersOffset + 4 * n);
+			long end = align(itemsOffset + 4 * n);
+			ratingsOffset = end;
+			if( hasRatings() )
+				end = align(ratingsOffset + 4 * n);
+			timestampsOffset = end;
+			if( hasTimestamps() )
+				end = timestampsOffset + 8 * n;
+			fileLength = end;
+		}
+
+		boolean hasRatings(){
+			return (flags & FLAG_RATINGS) != 0;
+		}
+
+		boolean hasTimestamps(){
+			return (flags & FLAG_TIMESTAMPS) != 0;
+		}
+
+		ByteBuffer encode(){
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC).putInt(VERSION).putInt(flags).putInt(numInteractions)
+				.putInt(maxUserId).putInt(maxItemId);
+			buf.clear();
+			return buf;
+		}
+
+		static Header decode(ByteBuffer buf) throws IOException {
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			if( buf.getInt() != MAGIC ){
+				throw new IOException("Not a binary interaction file");
+			}
+			int version = buf.getInt();
+			if( version != VERSION ){
+				throw new IOException("Unsupported interaction file version: " + version);
+			}
+			int flags = buf.getInt();
+			int numInteractions = buf.getInt();
+			int maxUserId = buf.getInt();
+			int maxItemId = buf.getInt();
+			return new Header(flags, numInteractions, maxUserId, maxItemId);
+		}
+
+		static long align(long offset){
+			return (offset + 7) & ~7L;
+		}
+	}
+
+	// -------------------------------------
+	// buffered writer for one column at a file position
+	// -------------------------------------
+	static class ColumnWriter {
+		FileChannel channel;
+		ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		long position;
+
+		ColumnWriter(FileChannel channel, long position){
+			this.channel = channel;
+			this.position = position;
+		}
+
+		void putByte(byte v) throws IOException {
+			if( buf.remaining() < 1 ) flush();
+			buf.put(v);
+		}
+
+		void putShort(short v) throws IOException {
+			if( buf.remaining() < 2 ) flush();
+			buf.putShort(v);
+		}
+
+		void putInt(int v) throws IOException {
+			if( buf.remaining() < 4 ) flush();
+			buf.putInt(v);
+		}
+
+		void putFloat(float v) throws IOException {
+			if( buf.remaining() < 4 ) flush();
+			buf.putFloat(v);
+		}
+
+		void putLong(long v) throws IOException {
+			if( buf.remaining() < 8 ) flush();
+			buf.putLong(v);
+		}
+
+		void putDouble(double v) throws IOException {
+			if( buf.remaining() < 8 ) flush();
+			buf.putDouble(v);
+		}
+
+		void flush() throws IOException {
+			buf.flip();
+			while( buf.hasRemaining() ){
+				position += channel.write(buf, position);
+			}
+			buf.clear();
+		}
+	}
+
+	// -------------------------------------
+	// write an interaction set to a binary file
+	// -------------------------------------
+	public static void write(InteractionSet data, String binFile) throws IOException {
+		int flags = (data.hasRatings() ? FLAG_RATINGS : 0) | (data.hasTimestamps() ? FLAG_TIMESTAMPS : 0);
+		Header header = new Header(flags, data.size(), data.getMaxUserId(), data.getMaxItemId());
+
+		Path target = Paths.get(binFile).toAbsolutePath();
+		Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+		boolean written = false;
+		RandomAccessFile file = new RandomAccessFile(tmp.toFile(), "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			file.setLength(header.fileLength);
+			channel.write(header.encode(), 0);
+			ColumnWriter users = new ColumnWriter(channel, header.usersOffset);
+			ColumnWriter items = new ColumnWriter(channel, header.itemsOffset);
+			ColumnWriter ratings = new ColumnWriter(channel, header.ratingsOffset);
+			ColumnWriter timestamps = new ColumnWriter(channel, header.timestampsOffset);
+			for( int i=0; i<data.size(); i++ ){
+				users.putInt(data.getUserId(i));
+				items.putInt(data.getItemId(i));
+				if( header.hasRatings() )
+					ratings.putFloat(data.getRating(i));
+				if( header.hasTimestamps() )
+					timestamps.putLong(data.getTimestamp(i));
+			}
+			users.flush();
+			items.flush();
+			ratings.flush();
+			timestamps.flush();
+			channel.force(true);
+			written = true;
+		} finally {
+			file.close();
+			if( !written )
+				Files.deleteIfExists(tmp);
+		}
+		moveIntoPlace(tmp, target);
+	}
+
+	// -------------------------------------
+	// convert a tab-delimited file (two streaming passes, constant memory)
+	// -------------------------------------
+	public static void convertTsv(String tsvFile, String binFile, boolean skipFirstLine) throws IOException {
+
+		// first pass: count rows, id bounds and optional columns,
+		// validate every value (nothing is written before the second pass)
+		int numInteractions = 0;
+		int maxUserId = -1;
+		int maxItemId = -1;
+		int numFields = -1;
+		BufferedReader reader = new BufferedReader(new FileReader(tsvFile), 1 << 16);
+		try {
+			String row;
+			int lineNumber = 0;
+			if( skipFirstLine ){
+				reader.readLine();
+				lineNumber++;
+			}
+			while ((row = reader.readLine()) != null) {
+				lineNumber++;
+				if( row.isEmpty() )
+					continue;
+				String[] fields = row.split("\t");
+				if( numFields < 0 )
+					numFields = fields.length;
+				if( fields.length < 2 || fields.length < Math.min(numFields, 4) ){
+					throw new IOException("Malformed line " + lineNumber + " in " + tsvFile);
+				}
+				int userId = parseId(fields[0], lineNumber);
+				int itemId = parseId(fields[1], lineNumber);
+				if( numFields > 2 )
+					parseRating(fields[2], lineNumber);
+				if( numFields > 3 )
+					parseTimestamp(fields[3], lineNumber);
+				if( userId > maxUserId )
+					maxUserId = userId;
+				if( itemId > maxItemId )
+					maxItemId = itemId;
+				if( numInteractions == Integer.MAX_VALUE ){
+					throw new IOException("Too many interactions in " + tsvFile);
+				}
+				numInteractions++;
+			}
+		} finally {
+			reader.close();
+		}
+
+		int flags = (numFields > 2 ? FLAG_RATINGS : 0) | (numFields > 3 ? FLAG_TIMESTAMPS : 0);
+		Header header = new Header(flags, numInteractions, maxUserId, maxItemId);
+
+		// second pass: write columns to a temporary file
+		Path target = Paths.get(binFile).toAbsolutePath();
+		Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+		boolean written = false;
+		RandomAccessFile file = new RandomAccessFile(tmp.toFile(), "rw");
+		reader = new BufferedReader(new FileReader(tsvFile), 1 << 16);
+		try {
+			FileChannel channel = file.getChannel();
+			file.setLength(header.fileLength);
+			channel.write(header.encode(), 0);
+			ColumnWriter users = new ColumnWriter(channel, header.usersOffset);
+			ColumnWriter items = new ColumnWriter(channel, header.itemsOffset);
+			ColumnWriter ratings = new ColumnWriter(channel, header.ratingsOffset);
+			ColumnWriter timestamps = new ColumnWriter(channel, header.timestampsOffset);
+			String row;
+			if( skipFirstLine ){
+				reader.readLine();
+			}
+			while ((row = reader.readLine()) != null) {
+				if( row.isEmpty() )
+					continue;
+				String[] fields = row.split("\t");
+				users.putInt(Integer.parseInt(fields[0]));
+				items.putInt(Integer.parseInt(fields[1]));
+				if( header.hasRatings() )
+					ratings.putFloat(Float.parseFloat(fields[2]));
+				if( header.hasTimestamps() )
+					timestamps.putLong(Long.parseLong(fields[3]));
+			}
+			users.flush();
+			items.flush();
+			ratings.flush();
+			timestamps.flush();
+			channel.force(true);
+			written = true;
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed value in " + tsvFile, e);
+		} finally {
+			reader.close();
+			file.close();
+			if( !written )
+				Files.deleteIfExists(tmp);
+		}
+		moveIntoPlace(tmp, target);
+	}
+
+	// -------------------------------------
+	// rename a completely written temporary file to its target
+	// -------------------------------------
+	private static void moveIntoPlace(Path tmp, Path target) throws IOException {
+		try {
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static int parseId(String field, int lineNumber) throws IOException {
+		try {
+			int id = Integer.parseInt(field);
+			if( id < 0 ){
+				throw new IOException("Negative id on line " + lineNumber);
+			}
+			return id;
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed id on line " + lineNumber, e);
+		}
+	}
+
+	private static float parseRating(String field, int lineNumber) throws IOException {
+		try {
+			return Float.parseFloat(field);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed rating on line " + lineNumber, e);
+		}
+	}
+
+	private static long parseTimestamp(String field, int lineNumber) throws IOException {
+		try {
+			return Long.parseLong(field);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed timestamp on line " + lineNumber, e);
+		}
+	}
+
+	// -------------------------------------
+	// memory-map a binary file (no copy)
+	// -------------------------------------
+	public static InteractionSet map(String binFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(binFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES);
+			while( buf.hasRemaining() ){
+				if( channel.read(buf, buf.position()) < 0 ){
+					throw new IOException("Truncated interaction file header");
+				}
+			}
+			buf.flip();
+			Header header = Header.decode(buf);
+			if( channel.size() < header.fileLength ){
+				throw new IOException("Truncated interaction file: " + binFile);
+			}
+			// mappings stay valid after the channel is closed
+			return new MappedInteractionSet(channel, header);
+		} finally {
+			file.close();
+		}
+	}
+
+}
@@ -0,0 +1,191 @@
+package pltr;
+
+/*
+	Columnar training data container
+
+	Interaction i is (users[i], items[i]) with optional ratings[i]
+	and timestamps[i]. Columns are primitive arrays, so sampling an
+	interaction does not allocate or unbox.
+ */
+import java.util.*;
+
+public class InteractionSet {
+
+	int size;
+	int[] users; // user id column
+	int[] items; // item id column
+	float[] ratings; // optional rating column (null if absent)
+	long[] timestamps; // optional timestamp column (null if absent)
+	int maxUserId = -1;
+	int maxItemId = -1;
+
+	// -------------------------------------
+	// Constructor (for column storage other than arrays)
+	// -------------------------------------
+	InteractionSet(){
+	}
+
+	// -------------------------------------
+	// Constructor (empty set for appending)
+	// -------------------------------------
+	public InteractionSet(int initialCapacity, boolean withRatings, boolean withTimestamps){
+		int capacity = Math.max(16, initialCapacity);
+		this.users = new int[capacity];
+		this.items = new int[capacity];
+		this.ratings = withRatings ? new float[capacity] : null;
+		this.timestamps = withTimestamps ? new long[capacity] : null;
+	}
+
+	// -------------------------------------
+	// Constructor (wrap existing columns, ratings and timestamps may be null)
+	// -------------------------------------
+	public InteractionSet(int[] users, int[] items, float[] ratings, long[] timestamps){
+		if( users.length != items.length
+			|| (ratings != null && ratings.length != users.length)
+			|| (timestamps != null && timestamps.length != users.length) ){
+			throw new IllegalArgumentException("Columns must have the same length");
+		}
+		this.size = users.length;
+		this.users = users;
+		this.items = items;
+		this.ratings = ratings;
+		this.timestamps = timestamps;
+		for( int i=0; i<size; i++ ){
+			if( users[i] > maxUserId )
+				maxUserId = users[i];
+			if( items[i] > maxItemId )
+				maxItemId = items[i];
+		}
+	}
+
+	// -------------------------------------
+	// convert a list of tuples
+	// -------------------------------------
+	public static InteractionSet fromTuples(List<Tuple> data){
+		InteractionSet set = new InteractionSet(data.size(), false, false);
+		for( Tuple t : data ){
+			set.add(t.getUserId(), t.getItemId());
+		}
+		return set;
+	}
+
+	// -------------------------------------
+	// append an interaction
+	// -------------------------------------
+	public void add(int userId, int itemId){
+		add(userId, itemId, 0.0f, 0L);
+	}
+
+	public void add(int userId, int itemId, float rating, long timestamp){
+		if( userId < 0 || itemId < 0 ){
+			throw new IllegalArgumentException("Negative id: (" + userId + "," + itemId + ")");
+		}
+		if( size == users.length ){
+			grow();
+		}
+		users[size] = userId;
+		items[size] = itemId;
+		if( ratings != null )
+			ratings[size] = rating;
+		if( timestamps != null )
+			timestamps[size] = timestamp;
+		if( userId > maxUserId )
+			maxUserId = userId;
+		if( itemId > maxItemId )
+			maxItemId = itemId;
+		size++;
+	}
+
+	private void grow(){
+		int capacity = (int) Math.min(Integer.MAX_VALUE - 8, users.length + (users.length >> 1) + 1L);
+		if( capacity <= size ){
+			throw new IllegalStateException("Interaction set is full");
+		}
+		users = Arrays.copyOf(users, capacity);
+		items = Arrays.copyOf(items, capacity);
+		if( ratings != null )
+			ratings = Arrays.copyOf(ratings, capacity);
+		if( timestamps != null )
+			timestamps = Arrays.copyOf(timestamps, capacity);
+	}
+
+	// -------------------------------------
+	// drop unused capacity
+	// -------------------------------------
+	public void trimToSize(){
+		if( size == users.length ){
+			return;
+		}
+		users = Arrays.copyOf(users, size);
+		items = Arrays.copyOf(items, size);
+		if( ratings != null )
+			ratings = Arrays.copyOf(ratings, size);
+		if( timestamps != null )
+			timestamps = Arrays.copyOf(timestamps, size);
+	}
+
+	// -------------------------------------
+	// interactions with timestamp >= minTimestamp (e.g. new since the last training)
+	// -------------------------------------
+	public InteractionSet since(long minTimestamp){
+		return selectTime(minTimestamp, Long.MAX_VALUE);
+	}
+
+	// -------------------------------------
+	// interactions with timestamp < maxTimestamp
+	// -------------------------------------
+	public InteractionSet before(long maxTimestamp){
+		return selectTime(Long.MIN_VALUE, maxTimestamp);
+	}
+
+	private InteractionSet selectTime(long from, long to){
+		if( !hasTimestamps() ){
+			throw new IllegalStateException("Interaction set has no timestamps");
+		}
+		InteractionSet set = new InteractionSet(16, hasRatings(), true);
+		for( int i=0; i<size(); i++ ){
+			long t = getTimestamp(i);
+			if( t >= from && t < to ){
+				set.add(getUserId(i), getItemId(i), hasRatings() ? getRating(i) : 0.0f, t);
+			}
+		}
+		set.trimToSize();
+		return set;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public int getUserId(int i){
+		return users[i];
+	}
+
+	public int getItemId(int i){
+		return items[i];
+	}
+
+	public float getRating(int i){
+		return ratings[i];
+	}
+
+	public long getTimestamp(int i){
+		return timestamps[i];
+	}
+
+	public boolean hasRatings(){
+		return ratings != null;
+	}
+
+	public boolean hasTimestamps(){
+		return timestamps != null;
+	}
+
+	public int getMaxUserId(){
+		return maxUserId;
+	}
+
+	public int getMaxItemId(){
+		return maxItemId;
+	}
+}
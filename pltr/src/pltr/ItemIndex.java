@@ -0,0 +1,301 @@
+package pltr;
+
+/*
+	Approximate maximum inner product (MIPS) index over item factors
+
+	Inverted file (IVF): items are clustered by k-means and a query
+	only scores the items of the nProbe clusters closest to it. Item
+	vectors x are augmented with sqrt(M^2 - |x|^2) (M: max. item norm),
+	so that the largest inner product is the smallest Euclidean
+	distance and k-means clusters are meaningful for MIPS.
+	Item vectors are stored (as float) in cluster order, so a probed
+	cluster is one sequential scan.
+
+	Recall vs. speed is tuned by nProbe (clusters scanned per query).
+ */
+import java.util.*;
+
+public class ItemIndex {
+
+	static final int TRAINING_POINTS_PER_CLUSTER = 64;
+
+	PLTR model;
+	FactorMatrix P;
+	int numItems;
+	int numCols; // item factor length
+	int dim; // numCols + 1 (augmented)
+	int numClusters;
+	double[] centroids; // numClusters x dim
+	double[] centroidNorms; // |c|^2
+	int[] listOffsets; // numClusters+1
+	int[] listItems; // item ids in cluster order
+	float[] vectors; // item factors in cluster order, numCols per item
+
+	// -------------------------------------
+	// build an index over the item factors of a trained model
+	// -------------------------------------
+	public static ItemIndex build(PLTR model, int numClusters, int numIterations, int numProcs, long seed) throws InterruptedException {
+		FactorMatrix Q = model.getItemFactors();
+		if( numClusters <= 0 || numClusters > Q.getNumRows() ){
+			throw new IllegalArgumentException("Invalid number of clusters !!!");
+		}
+		if( (long) Q.getNumRows() * Q.getNumCols() > Integer.MAX_VALUE - 8 ){
+			throw new IllegalArgumentException("Item factors too large for the index !!!");
+		}
+		ItemIndex index = new ItemIndex();
+		index.model = model;
+		index.P = model.getUserFactors();
+		index.numItems = Q.getNumRows();
+		index.numCols = Q.getNumCols();
+		index.dim = index.numCols + 1;
+		index.numClusters = numClusters;
+		index.train(Q, numIterations, Math.max(1, numProcs), seed);
+		return index;
+	}
+
+	// -------------------------------------
+	// k-means on a sample of augmented item vectors, then assign all items
+	// -------------------------------------
+	private void train(final FactorMatrix Q, int numIterations, int numProcs, long seed) throws InterruptedException {
+
+		// max. squared item norm
+		final double[] maxNorms = new double[1];
+		ParallelOps.runRanges(numProcs, numItems, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				double max = 0.0;
+				for( int i=from; i<to; i++ ){
+					double norm = 0.0;
+					for( int d=0; d<numCols; d++ ){
+						double x = Q.get(i, d);
+						norm += x * x;
+					}
+					max = Math.max(max, norm);
+				}
+				synchronized (maxNorms) {
+					maxNorms[0] = Math.max(maxNorms[0], max);
+				}
+			}
+		});
+		final double maxNorm = maxNorms[0];
+
+		// training sample
+		Random random = new Random(seed);
+		final int numSample = (int) Math.min(numItems, (long) numClusters * TRAINING_POINTS_PER_CLUSTER);
+		int[] sample = sampleWithoutReplacement(numItems, numSample, random);
+		final double[] points = new double[numSample * dim];
+		for( int s=0; s<numSample; s++ ){
+			augment(Q, sample[s], maxNorm, points, s * dim);
+		}
+
+		// initial centroids: distinct random sample points
+		centroids = Arrays.copyOf(points, numClusters * dim);
+		centroidNorms = new double[numClusters];
+
+		final int[] assignment = new int[numSample];
+		for( int iter=0; iter<numIterations; iter++ ){
+			updateNorms();
+			ParallelOps.runRanges(numProcs, numSample, new ParallelOps.RangeTask() {
+				public void run(int from, int to){
+					for( int s=from; s<to; s++ ){
+						assignment[s] = nearestCentroid(points, s * dim);
+					}
+				}
+			});
+
+			// new centroids: means of the assigned points, empty clusters keep their centroid
+			double[] sums = new double[numClusters * dim];
+			int[] counts = new int[numClusters];
+			for( int s=0; s<numSample; s++ ){
+				int c = assignment[s];
+				counts[c]++;
+				for( int d=0; d<dim; d++ ){
+					sums[c * dim + d] += points[s * dim + d];
+				}
+			}
+			for( int c=0; c<numClusters; c++ ){
+				if( counts[c] == 0 )
+					continue;
+				for( int d=0; d<dim; d++ ){
+					centroids[c * dim + d] = sums[c * dim + d] / counts[c];
+				}
+			}
+		}
+		updateNorms();
+
+		// assign all items
+		final int[] itemCluster = new int[numItems];
+		ParallelOps.runRanges(numProcs, numItems, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				double[] point = new double[dim];
+				for( int i=from; i<to; i++ ){
+					augment(Q, i, maxNorm, point, 0);
+					itemCluster[i] = nearestCentroid(point, 0);
+				}
+			}
+		});
+
+		// inverted lists (counting sort by cluster)
+		listOffsets = new int[numClusters+1];
+		for( int i=0; i<numItems; i++ ){
+			listOffsets[itemCluster[i]+1]++;
+		}
+		for( int c=0; c<numClusters; c++ ){
+			listOffsets[c+1] += listOffsets[c];
+		}
+		int[] cursor = Arrays.copyOf(listOffsets, numClusters);
+		listItems = new int[numItems];
+		vectors = new float[numItems * numCols];
+		for( int i=0; i<numItems; i++ ){
+			int pos = cursor[itemCluster[i]]++;
+			listItems[pos] = i;
+			for( int d=0; d<numCols; d++ ){
+				vectors[pos * numCols + d] = (float) Q.get(i, d);
+			}
+		}
+	}
+
+	// item vector with the extra coordinate sqrt(M^2 - |x|^2)
+	private void augment(FactorMatrix Q, int item, double maxNorm, double[] point, int off){
+		double norm = 0.0;
+		for( int d=0; d<numCols; d++ ){
+			double x = Q.get(item, d);
+			point[off + d] = x;
+			norm += x * x;
+		}
+		point[off + numCols] = Math.sqrt(Math.max(0.0, maxNorm - norm));
+	}
+
+	private void updateNorms(){
+		for( int c=0; c<numClusters; c++ ){
+			centroidNorms[c] = MatrixOps.dot(centroids, c * dim, centroids, c * dim, dim);
+		}
+	}
+
+	// nearest centroid (Euclidean) of an augmented point
+	private int nearestCentroid(double[] point, int off){
+		int best = 0;
+		double bestDist = Double.POSITIVE_INFINITY;
+		for( int c=0; c<numClusters; c++ ){
+			// |x - c|^2 without the constant |x|^2
+			double dist = centroidNorms[c] - 2 * MatrixOps.dot(point, off, centroids, c * dim, dim);
+			if( dist < bestDist ){
+				bestDist = dist;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	private static int[] sampleWithoutReplacement(int n, int m, Random random){
+		int[] perm = new int[n];
+		for( int i=0; i<n; i++ ){
+			perm[i] = i;
+		}
+		for( int i=0; i<m; i++ ){
+			int j = i + random.nextInt(n - i);
+			int t = perm[i];
+			perm[i] = perm[j];
+			perm[j] = t;
+		}
+		return Arrays.copyOf(perm, m);
+	}
+
+	// -------------------------------------
+	// approximate top-k items of a user (descending score, history excluded)
+	// -------------------------------------
+	public int[] recommendTopK(int user, int k, int nProbe){
+		if( user < 0 || user >= P.getNumRows() ){
+			throw new IllegalArgumentException("Invalid user: " + user + " !!!");
+		}
+		if( k <= 0 ){
+			throw new IllegalArgumentException("Invalid k: " + k + " !!!");
+		}
+		nProbe = Math.max(1, Math.min(nProbe, numClusters));
+
+		// query q' = (q, 0): closest centroids maximize 2 q.c - |c|^2
+		float[] query = new float[numCols];
+		for( int d=0; d<numCols; d++ ){
+			query[d] = (float) P.get(user, d);
+		}
+		int[] probeClusters = new int[nProbe];
+		double[] probeScores = new double[nProbe];
+		int numProbes = 0;
+		for( int c=0; c<numClusters; c++ ){
+			double s = - centroidNorms[c];
+			for( int d=0; d<numCols; d++ ){
+				s += 2 * query[d] * centroids[c * dim + d];
+			}
+			numProbes = Recommender.offer(probeClusters, probeScores, 0, nProbe, numProbes, c, s);
+		}
+
+		// scan probed lists
+		UserHistory BPlus = model.getUserHistory();
+		boolean withHistory = BPlus != null && user < BPlus.getNumUsers() && BPlus.size(user) > 0;
+		int[] items = new int[k];
+		double[] scores = new double[k];
+		int size = 0;
+		for( int p=0; p<numProbes; p++ ){
+			int c = probeClusters[p];
+			for( int j=listOffsets[c]; j<listOffsets[c+1]; j++ ){
+				double s = MatrixOps.dot(vectors, j * numCols, query, 0, numCols);
+				if( size == k && s <= scores[0] )
+					continue;
+				int item = listItems[j];
+				if( withHistory && BPlus.contains(user, item) )
+					continue;
+				size = Recommender.offer(items, scores, 0, k, size, item, s);
+			}
+		}
+		size = Recommender.sortHeap(items, scores, 0, size);
+		return Arrays.copyOf(items, size);
+	}
+
+	// -------------------------------------
+	// recall@k against the exact scan and latency per query
+	// -------------------------------------
+	public String benchmark(int k, int[] nProbes, int numQueries, long seed){
+		Random random = new Random(seed);
+		int[] users = new int[numQueries];
+		for( int q=0; q<numQueries; q++ ){
+			users[q] = random.nextInt(P.getNumRows());
+		}
+
+		long startTime = System.nanoTime();
+		int[][] exact = new int[numQueries][];
+		for( int q=0; q<numQueries; q++ ){
+			exact[q] = Recommender.recommendTopK(model, users[q], k);
+		}
+		double exactMillis = (System.nanoTime() - startTime) / 1e6 / numQueries;
+
+		StringBuilder report = new StringBuilder();
+		report.append("exact scan: ").append(exactMillis).append(" ms/query\n");
+		for( int nProbe : nProbes ){
+			startTime = System.nanoTime();
+			int[][] approx = new int[numQueries][];
+			for( int q=0; q<numQueries; q++ ){
+				approx[q] = recommendTopK(users[q], k, nProbe);
+			}
+			double millis = (System.nanoTime() - startTime) / 1e6 / numQueries;
+
+			long hits = 0;
+			long total = 0;
+			for( int q=0; q<numQueries; q++ ){
+				int[] sorted = approx[q];
+				Arrays.sort(sorted);
+				for( int item : exact[q] ){
+					if( Arrays.binarySearch(sorted, item) >= 0 )
+						hits++;
+				}
+				total += exact[q].length;
+			}
+			report.append("nProbe ").append(nProbe).append(" (").append((long) nProbe * numItems / numClusters)
+				.append(" candidates): recall@").append(k).append(" ").append(total > 0 ? 1.0 * hits / total : Double.NaN)
+				.append(", ").append(millis).append(" ms/query\n");
+		}
+		return report.toString();
+	}
+
+	public int getNumClusters(){
+		return numClusters;
+	}
+}
@@ -0,0 +1,93 @@
+package pltr;
+
+/*
+	Read-only interaction set served from a memory-mapped binary file
+	(see InteractionFile for the layout)
+
+	Columns are mapped in pages, since a single mapping is limited
+	to 2GB. Nothing is copied onto the heap.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+public class MappedInteractionSet extends InteractionSet {
+
+	static final int PAGE_SHIFT = 27; // values per mapped page: 2^27
+	static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+	IntBuffer[] userPages;
+	IntBuffer[] itemPages;
+	FloatBuffer[] ratingPages; // null if absent
+	LongBuffer[] timestampPages; // null if absent
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	MappedInteractionSet(FileChannel channel, InteractionFile.Header header) throws IOException {
+		this.size = header.numInteractions;
+		this.maxUserId = header.maxUserId;
+		this.maxItemId = header.maxItemId;
+
+		int numPages = (size + PAGE_MASK) >>> PAGE_SHIFT;
+		userPages = new IntBuffer[numPages];
+		itemPages = new IntBuffer[numPages];
+		for( int p=0; p<numPages; p++ ){
+			userPages[p] = map(channel, header.usersOffset, p, 4).asIntBuffer();
+			itemPages[p] = map(channel, header.itemsOffset, p, 4).asIntBuffer();
+		}
+		if( header.hasRatings() ){
+			ratingPages = new FloatBuffer[numPages];
+			for( int p=0; p<numPages; p++ ){
+				ratingPages[p] = map(channel, header.ratingsOffset, p, 4).asFloatBuffer();
+			}
+		}
+		if( header.hasTimestamps() ){
+			timestampPages = new LongBuffer[numPages];
+			for( int p=0; p<numPages; p++ ){
+				timestampPages[p] = map(channel, header.timestampsOffset, p, 8).asLongBuffer();
+			}
+		}
+	}
+
+	// -------------------------------------
+	// map page p of a column
+	// -------------------------------------
+	private ByteBuffer map(FileChannel channel, long columnOffset, int p, int bytesPerValue) throws IOException {
+		long first = (long) p << PAGE_SHIFT;
+		long count = Math.min(1L << PAGE_SHIFT, size - first);
+		return channel.map(FileChannel.MapMode.READ_ONLY, columnOffset + first * bytesPerValue, count * bytesPerValue)
+			.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public int getUserId(int i){
+		return userPages[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+	}
+
+	public int getItemId(int i){
+		return itemPages[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+	}
+
+	public float getRating(int i){
+		return ratingPages[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+	}
+
+	public long getTimestamp(int i){
+		return timestampPages[i >>> PAGE_SHIFT].get(i & PAGE_MASK);
+	}
+
+	public boolean hasRatings(){
+		return ratingPages != null;
+	}
+
+	public boolean hasTimestamps(){
+		return timestampPages != null;
+	}
+
+	public void add(int userId, int itemId, float rating, long timestamp){
+		throw new UnsupportedOperationException("Mapped interaction set is read-only");
+	}
+
+	public void trimToSize(){
+	}
+}
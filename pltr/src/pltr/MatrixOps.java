@@ -29,27 +29,429 @@ public class MatrixOps {
 		return matrix;		
 	}
 	
+	// -------------------------------------
+	// gaussian random factor matrix builder
+	// -------------------------------------
+	public static FactorMatrix gaussianFactorMatrixBuilder(	double mu,
+															double sigma,
+															int numRows,
+															int numCols,
+															FactorStorage storage ){
+		return gaussianFactorMatrixBuilder(mu, sigma, numRows, numCols, storage, FactorPrecision.DOUBLE);
+	}
+	
+	public static FactorMatrix gaussianFactorMatrixBuilder(	double mu,
+															double sigma,
+															int numRows,
+															int numCols,
+															FactorStorage storage,
+															FactorPrecision precision ){
+	
+		FactorMatrix matrix = FactorMatrix.allocate(numRows, numCols, storage, precision);
+		for(int i=0; i<numRows; i++){
+			for(int j=0; j<numCols; j++){
+				matrix.set(i, j,
+				java.util.concurrent.ThreadLocalRandom.current().nextGaussian() 
+				* sigma + mu);
+			}
+		}
+		return matrix;		
+	}
+	
 	// -------------------------------------
 	// dot product of two vectors
 	// -------------------------------------
 	public static double dot(double[] x, double[] y){		
-		double dotProduct = 0.0;
-		for( int i=0; i<x.length; i++){
-			dotProduct += x[i]*y[i];
-		}		
-		return dotProduct;
+		return dot(x, 0, y, 0, x.length);
 	}
 	
 	// -------------------------------------
 	// difference of dot products
 	// -------------------------------------
 	public static double diffDot(double[] x, double[] y, double[] z){		
-		double diffDotProduct = 0.0;
-		for( int i=0; i<x.length; i++){
-			diffDotProduct += x[i]*(y[i]-z[i]);
-		}		
-		return diffDotProduct;
+		return diffDot(x, 0, y, 0, z, 0, x.length);
 	}
 	
-}
+	// -------------------------------------
+	// dot product of x[xOff..xOff+n) and y[yOff..yOff+n)
+	// (four independent accumulators, so the JIT can vectorize 
+	// and pipeline the loop)
+	// -------------------------------------
+	public static double dot(double[] x, int xOff, double[] y, int yOff, int n){
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int i = 0;
+		for( ; i+3<n; i+=4){
+			s0 += x[xOff+i]   * y[yOff+i];
+			s1 += x[xOff+i+1] * y[yOff+i+1];
+			s2 += x[xOff+i+2] * y[yOff+i+2];
+			s3 += x[xOff+i+3] * y[yOff+i+3];
+		}
+		for( ; i<n; i++){
+			s0 += x[xOff+i] * y[yOff+i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	// -------------------------------------
+	// x[xOff..xOff+n) . (y[yOff..yOff+n) - z[zOff..zOff+n))
+	// -------------------------------------
+	public static double diffDot(double[] x, int xOff, double[] y, int yOff, double[] z, int zOff, int n){
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+		int i = 0;
+		for( ; i+3<n; i+=4){
+			s0 += x[xOff+i]   * (y[yOff+i]   - z[zOff+i]);
+			s1 += x[xOff+i+1] * (y[yOff+i+1] - z[zOff+i+1]);
+			s2 += x[xOff+i+2] * (y[yOff+i+2] - z[zOff+i+2]);
+			s3 += x[xOff+i+3] * (y[yOff+i+3] - z[zOff+i+3]);
+		}
+		for( ; i<n; i++){
+			s0 += x[xOff+i] * (y[yOff+i] - z[zOff+i]);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	// -------------------------------------
+	// single precision versions of the kernels above
+	// -------------------------------------
+	public static float dot(float[] x, int xOff, float[] y, int yOff, int n){
+		float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+		int i = 0;
+		for( ; i+3<n; i+=4){
+			s0 += x[xOff+i]   * y[yOff+i];
+			s1 += x[xOff+i+1] * y[yOff+i+1];
+			s2 += x[xOff+i+2] * y[yOff+i+2];
+			s3 += x[xOff+i+3] * y[yOff+i+3];
+		}
+		for( ; i<n; i++){
+			s0 += x[xOff+i] * y[yOff+i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	public static float diffDot(float[] x, int xOff, float[] y, int yOff, float[] z, int zOff, int n){
+		float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+		int i = 0;
+		for( ; i+3<n; i+=4){
+			s0 += x[xOff+i]   * (y[yOff+i]   - z[zOff+i]);
+			s1 += x[xOff+i+1] * (y[yOff+i+1] - z[zOff+i+1]);
+			s2 += x[xOff+i+2] * (y[yOff+i+2] - z[zOff+i+2]);
+			s3 += x[xOff+i+3] * (y[yOff+i+3] - z[zOff+i+3]);
+		}
+		for( ; i<n; i++){
+			s0 += x[xOff+i] * (y[yOff+i] - z[zOff+i]);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+	
+	// -------------------------------------
+	// dot product of two factor matrix rows
+	// -------------------------------------
+	public static double dot(FactorMatrix x, int xRow, FactorMatrix y, int yRow){
+		return x.dot(xRow, y, yRow);
+	}
+	
+	// -------------------------------------
+	// difference of dot products of factor matrix rows
+	// -------------------------------------
+	public static double diffDot(FactorMatrix x, int xRow, FactorMatrix y, int yRow, int zRow){
+		return x.diffDot(xRow, y, yRow, zRow);
+	}
+	
+	// -------------------------------------
+	// logistic function
+	// -------------------------------------
+	public static double sigmoid(double x){
+		if( x > 0 ){
+			return 1.0 / (1.0 + Math.exp(-x));
+		} else if (x <= 0) {
+			return Math.exp(x) / (1.0 + Math.exp(x));
+		} else {
+			System.out.println("Sigmoid value error ...");
+			return 0.0;
+		}
+	}
+	
+	// -------------------------------------
+	// fused BPR SGD step for (user, posItem, negItem):
+	// x_uij = P[user] . (Q[posItem] - Q[negItem]), then all three
+	// rows are updated in one pass. Per factor the updates are the
+	// same as three separate loops (P first, Q with the new P).
+	// Returns x_uij.
+	// -------------------------------------
+	public static double bprStep(	FactorMatrix P, int user,
+									FactorMatrix Q, int posItem, int negItem,
+									double eta, double lambP, double lambQPlus, double lambQMinus ){
+		return bprStep(P, user, Q, posItem, negItem, eta, eta, eta, lambP, lambQPlus, lambQMinus);
+	}
 
+	// -------------------------------------
+	// fused BPR SGD step with separate step sizes of the user,
+	// positive item and negative item rows (adaptive step sizes)
+	// -------------------------------------
+	public static double bprStep(	FactorMatrix P, int user,
+									FactorMatrix Q, int posItem, int negItem,
+									double etaP, double etaQPlus, double etaQMinus,
+									double lambP, double lambQPlus, double lambQMinus ){
+		
+		if( P instanceof HeapFactorMatrix && Q instanceof HeapFactorMatrix ){
+			HeapFactorMatrix hp = (HeapFactorMatrix) P;
+			HeapFactorMatrix hq = (HeapFactorMatrix) Q;
+			return bprStep(hp.values, hp.offset(user), hq.values, hq.offset(posItem), hq.offset(negItem),
+				P.numCols, etaP, etaQPlus, etaQMinus, lambP, lambQPlus, lambQMinus);
+		}
+		if( P instanceof HeapFloatFactorMatrix && Q instanceof HeapFloatFactorMatrix ){
+			HeapFloatFactorMatrix hp = (HeapFloatFactorMatrix) P;
+			HeapFloatFactorMatrix hq = (HeapFloatFactorMatrix) Q;
+			return bprStep(hp.values, hp.offset(user), hq.values, hq.offset(posItem), hq.offset(negItem),
+				P.numCols, (float) etaP, (float) etaQPlus, (float) etaQMinus, (float) lambP, (float) lambQPlus, (float) lambQMinus);
+		}
+		
+		double x = P.diffDot(user, Q, posItem, negItem);
+		bprUpdate(P, user, Q, posItem, negItem, 1.0 - sigmoid(x), etaP, etaQPlus, etaQMinus, lambP, lambQPlus, lambQMinus);
+		return x;
+	}
+
+	// -------------------------------------
+	// update pass of a BPR step with a precomputed delta = 1 - sigmoid(x_uij)
+	// (callers that need more than x_uij from the rows, e.g. RowStepSizes)
+	// -------------------------------------
+	public static void bprUpdate(	FactorMatrix P, int user,
+									FactorMatrix Q, int posItem, int negItem, double delta,
+									double etaP, double etaQPlus, double etaQMinus,
+									double lambP, double lambQPlus, double lambQMinus ){
+		
+		if( P instanceof HeapFactorMatrix && Q instanceof HeapFactorMatrix ){
+			HeapFactorMatrix hp = (HeapFactorMatrix) P;
+			HeapFactorMatrix hq = (HeapFactorMatrix) Q;
+			bprUpdate(hp.values, hp.offset(user), hq.values, hq.offset(posItem), hq.offset(negItem),
+				P.numCols, delta, etaP, etaQPlus, etaQMinus, lambP, lambQPlus, lambQMinus);
+			return;
+		}
+		if( P instanceof HeapFloatFactorMatrix && Q instanceof HeapFloatFactorMatrix ){
+			HeapFloatFactorMatrix hp = (HeapFloatFactorMatrix) P;
+			HeapFloatFactorMatrix hq = (HeapFloatFactorMatrix) Q;
+			bprUpdate(hp.values, hp.offset(user), hq.values, hq.offset(posItem), hq.offset(negItem),
+				P.numCols, (float) delta, (float) etaP, (float) etaQPlus, (float) etaQMinus,
+				(float) lambP, (float) lambQPlus, (float) lambQMinus);
+			return;
+		}
+		for(int f=0; f<P.numCols; f++){
+			double pf = P.get(user, f);
+			double qi = Q.get(posItem, f);
+			double qj = Q.get(negItem, f);
+			pf += etaP * (delta * (qi - qj) - lambP * pf);
+			P.set(user, f, pf);
+			Q.set(posItem, f, qi + etaQPlus * (delta * pf - lambQPlus * qi));
+			Q.set(negItem, f, qj + etaQMinus * (delta * -1.0*pf - lambQMinus * qj));
+		}
+	}
+	
+	// -------------------------------------
+	// fused BPR SGD step on flat arrays
+	// -------------------------------------
+	public static double bprStep(	double[] p, int pOff,
+									double[] q, int qiOff, int qjOff,
+									int n, double eta, double lambP, double lambQPlus, double lambQMinus ){
+		return bprStep(p, pOff, q, qiOff, qjOff, n, eta, eta, eta, lambP, lambQPlus, lambQMinus);
+	}
+
+	public static double bprStep(	double[] p, int pOff,
+									double[] q, int qiOff, int qjOff,
+									int n, double etaP, double etaQPlus, double etaQMinus,
+									double lambP, double lambQPlus, double lambQMinus ){
+		
+		double x = diffDot(p, pOff, q, qiOff, q, qjOff, n);
+		bprUpdate(p, pOff, q, qiOff, qjOff, n, 1.0 - sigmoid(x), etaP, etaQPlus, etaQMinus, lambP, lambQPlus, lambQMinus);
+		return x;
+	}
+
+	// update pass of a BPR step, delta = 1 - sigmoid(x_uij) given
+	static void bprUpdate(	double[] p, int pOff,
+							double[] q, int qiOff, int qjOff,
+							int n, double delta, double etaP, double etaQPlus, double etaQMinus,
+							double lambP, double lambQPlus, double lambQMinus ){
+		for(int f=0; f<n; f++){
+			double pf = p[pOff+f];
+			double qi = q[qiOff+f];
+			double qj = q[qjOff+f];
+			pf += etaP * (delta * (qi - qj) - lambP * pf);
+			p[pOff+f] = pf;
+			q[qiOff+f] = qi + etaQPlus * (delta * pf - lambQPlus * qi);
+			q[qjOff+f] = qj + etaQMinus * (delta * -1.0*pf - lambQMinus * qj);
+		}
+	}
+	
+	// -------------------------------------
+	// fused BPR SGD step on flat float arrays
+	// -------------------------------------
+	public static double bprStep(	float[] p, int pOff,
+									float[] q, int qiOff, int qjOff,
+									int n, float eta, float lambP, float lambQPlus, float lambQMinus ){
+		return bprStep(p, pOff, q, qiOff, qjOff, n, eta, eta, eta, lambP, lambQPlus, lambQMinus);
+	}
+
+	public static double bprStep(	float[] p, int pOff,
+									float[] q, int qiOff, int qjOff,
+									int n, float etaP, float etaQPlus, float etaQMinus,
+									float lambP, float lambQPlus, float lambQMinus ){
+		
+		double x = diffDot(p, pOff, q, qiOff, q, qjOff, n);
+		bprUpdate(p, pOff, q, qiOff, qjOff, n, (float)(1.0 - sigmoid(x)), etaP, etaQPlus, etaQMinus, lambP, lambQPlus, lambQMinus);
+		return x;
+	}
+
+	static void bprUpdate(	float[] p, int pOff,
+							float[] q, int qiOff, int qjOff,
+							int n, float delta, float etaP, float etaQPlus, float etaQMinus,
+							float lambP, float lambQPlus, float lambQMinus ){
+		for(int f=0; f<n; f++){
+			float pf = p[pOff+f];
+			float qi = q[qiOff+f];
+			float qj = q[qjOff+f];
+			pf += etaP * (delta * (qi - qj) - lambP * pf);
+			p[pOff+f] = pf;
+			q[qiOff+f] = qi + etaQPlus * (delta * pf - lambQPlus * qi);
+			q[qjOff+f] = qj + etaQMinus * (delta * -1.0f*pf - lambQMinus * qj);
+		}
+	}
+
+	// -------------------------------------
+	// user-grouped mini-batch of BPR steps: numPos positives of one user
+	// (posItems[posFrom] ...), numNegatives negatives per positive
+	// (negItems[k*numNegatives+s], -1: none). P[user] is read once and
+	// written once with the summed gradient of the batch, Q[posItem] is
+	// updated once per positive with the mean gradient of its negatives.
+	// work: at least 2*numCols+numNegatives values. x_uij of the triples
+	// go to xs. Returns the number of triples.
+	// -------------------------------------
+	public static int bprBatch(	FactorMatrix P, int user,
+								FactorMatrix Q, int[] posItems, int posFrom, int numPos,
+								int[] negItems, int numNegatives,
+								double eta, double lambP, double lambQPlus, double lambQMinus,
+								double[] work, double[] xs ){
+		
+		if( P instanceof HeapFactorMatrix && Q instanceof HeapFactorMatrix ){
+			HeapFactorMatrix hp = (HeapFactorMatrix) P;
+			HeapFactorMatrix hq = (HeapFactorMatrix) Q;
+			return bprBatch(hp.values, hp.offset(user), hq, posItems, posFrom, numPos, negItems, numNegatives,
+				P.numCols, eta, lambP, lambQPlus, lambQMinus, work, xs);
+		}
+		
+		int n = P.numCols;
+		int gOff = n;
+		int dOff = 2 * n;
+		for(int f=0; f<n; f++){
+			work[f] = P.get(user, f);
+			work[gOff+f] = 0.0;
+		}
+		int numTriples = 0;
+		for(int k=0; k<numPos; k++){
+			int posItem = posItems[posFrom+k];
+			int negFrom = k * numNegatives;
+			int count = 0;
+			double sumDelta = 0.0;
+			for(int s=0; s<numNegatives; s++){
+				int negItem = negItems[negFrom+s];
+				if( negItem < 0 ){
+					continue;
+				}
+				double x = 0.0;
+				for(int f=0; f<n; f++){
+					x += work[f] * (Q.get(posItem, f) - Q.get(negItem, f));
+				}
+				xs[numTriples++] = x;
+				work[dOff+s] = 1.0 - sigmoid(x);
+				sumDelta += work[dOff+s];
+				count++;
+			}
+			if( count == 0 ){
+				continue;
+			}
+			double scale = 1.0 / count;
+			for(int f=0; f<n; f++){
+				double pf = work[f];
+				double qi = Q.get(posItem, f);
+				double g = 0.0;
+				for(int s=0; s<numNegatives; s++){
+					int negItem = negItems[negFrom+s];
+					if( negItem < 0 ){
+						continue;
+					}
+					double qj = Q.get(negItem, f);
+					double delta = work[dOff+s];
+					g += delta * (qi - qj);
+					Q.set(negItem, f, qj + eta * (delta * -1.0*pf - lambQMinus * qj));
+				}
+				work[gOff+f] += scale * g - lambP * pf;
+				Q.set(posItem, f, qi + eta * (scale * sumDelta * pf - lambQPlus * qi));
+			}
+		}
+		for(int f=0; f<n; f++){
+			P.set(user, f, work[f] + eta * work[gOff+f]);
+		}
+		return numTriples;
+	}
+	
+	// -------------------------------------
+	// mini-batch on flat arrays (heap double factors)
+	// -------------------------------------
+	private static int bprBatch(	double[] p, int pOff,
+									HeapFactorMatrix Q, int[] posItems, int posFrom, int numPos,
+									int[] negItems, int numNegatives,
+									int n, double eta, double lambP, double lambQPlus, double lambQMinus,
+									double[] work, double[] xs ){
+		
+		double[] q = Q.values;
+		int gOff = n;
+		int dOff = 2 * n;
+		System.arraycopy(p, pOff, work, 0, n);
+		Arrays.fill(work, gOff, gOff + n, 0.0);
+		int numTriples = 0;
+		for(int k=0; k<numPos; k++){
+			int qiOff = Q.offset(posItems[posFrom+k]);
+			int negFrom = k * numNegatives;
+			int count = 0;
+			double sumDelta = 0.0;
+			for(int s=0; s<numNegatives; s++){
+				int negItem = negItems[negFrom+s];
+				if( negItem < 0 ){
+					continue;
+				}
+				double x = diffDot(work, 0, q, qiOff, q, Q.offset(negItem), n);
+				xs[numTriples++] = x;
+				work[dOff+s] = 1.0 - sigmoid(x);
+				sumDelta += work[dOff+s];
+				count++;
+			}
+			if( count == 0 ){
+				continue;
+			}
+			double scale = 1.0 / count;
+			for(int s=0; s<numNegatives; s++){
+				int negItem = negItems[negFrom+s];
+				if( negItem < 0 ){
+					continue;
+				}
+				int qjOff = Q.offset(negItem);
+				double delta = work[dOff+s];
+				for(int f=0; f<n; f++){
+					double qj = q[qjOff+f];
+					work[gOff+f] += scale * delta * (q[qiOff+f] - qj);
+					q[qjOff+f] = qj + eta * (delta * -1.0*work[f] - lambQMinus * qj);
+				}
+			}
+			double deltaPos = scale * sumDelta;
+			for(int f=0; f<n; f++){
+				double pf = work[f];
+				double qi = q[qiOff+f];
+				work[gOff+f] -= lambP * pf;
+				q[qiOff+f] = qi + eta * (deltaPos * pf - lambQPlus * qi);
+			}
+		}
+		for(int f=0; f<n; f++){
+			p[pOff+f] = work[f] + eta * work[gOff+f];
+		}
+		return numTriples;
+	}
+	
+}
@@ -0,0 +1,92 @@
+package pltr;
+
+/*
+	User-grouped mini-batch of one worker thread
+
+	Consecutive positives (u,i) of the same user are collected (up to
+	batchSize), numNegatives negatives are sampled for each, and the
+	batch is applied by MatrixOps.bprBatch: P[u] is loaded and written
+	back once per batch, Q[i] once per positive, instead of once per
+	triple. Positives of a user are consecutive in user-grouped data
+	(PLTRN shards, data files sorted by user in PLTRB), otherwise
+	batches hold one positive with its numNegatives negatives.
+ */
+import java.util.concurrent.*;
+
+public class MiniBatch {
+
+	int numNegatives;
+	int batchSize;
+	int user = -1;
+	int size; // positives in the batch
+	int chunk; // item chunk of the negatives
+	int[] posItems;
+	int[] negItems; // numNegatives per positive
+	double[] work;
+	double[] xs;
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public MiniBatch(int numNegatives, int batchSize, int numLatentFactors){
+		if( numNegatives < 1 || batchSize < 1 ){
+			throw new IllegalArgumentException("Invalid mini-batch parameters !!!");
+		}
+		this.numNegatives = numNegatives;
+		this.batchSize = batchSize;
+		this.posItems = new int[batchSize];
+		this.negItems = new int[batchSize * numNegatives];
+		this.work = new double[2 * numLatentFactors + numNegatives];
+		this.xs = new double[batchSize * numNegatives];
+	}
+
+	// -------------------------------------
+	// positive (user, posItem) with negatives from chunk, the batch is
+	// applied first if it is full or of another user
+	// -------------------------------------
+	void add(	int user, int posItem, int chunk,
+				FactorMatrix P, FactorMatrix Q, NegativeSampler sampler, RowStepSizes stepSizes,
+				double eta, double lambP, double lambQPlus, double lambQMinus,
+				ThreadLocalRandom random, TrainingMetrics.ThreadMetrics m){
+		if( size > 0 && ( user != this.user || chunk != this.chunk || size == batchSize ) ){
+			flush(P, Q, stepSizes, eta, lambP, lambQPlus, lambQMinus, m);
+		}
+		this.user = user;
+		this.chunk = chunk;
+		int negFrom = size * numNegatives;
+		for( int s=0; s<numNegatives; s++ ){
+			negItems[negFrom+s] = sampler.sample(user, chunk, random, m);
+		}
+		posItems[size++] = posItem;
+	}
+
+	// -------------------------------------
+	// apply the collected positives
+	// (triple by triple with per-row step sizes)
+	// -------------------------------------
+	void flush(	FactorMatrix P, FactorMatrix Q, RowStepSizes stepSizes,
+				double eta, double lambP, double lambQPlus, double lambQMinus,
+				TrainingMetrics.ThreadMetrics m){
+		if( size == 0 ){
+			return;
+		}
+		if( stepSizes != null ){
+			for( int k=0; k<size; k++ ){
+				for( int s=0; s<numNegatives; s++ ){
+					int negItem = negItems[k*numNegatives+s];
+					if( negItem != -1 ){
+						m.updated(stepSizes.bprStep(P, user, Q, posItems[k], negItem, eta, lambP, lambQPlus, lambQMinus));
+					}
+				}
+			}
+		} else {
+			int numTriples = MatrixOps.bprBatch(P, user, Q, posItems, 0, size, negItems, numNegatives,
+				eta, lambP, lambQPlus, lambQMinus, work, xs);
+			for( int k=0; k<numTriples; k++ ){
+				m.updated(xs[k]);
+			}
+		}
+		size = 0;
+	}
+
+}
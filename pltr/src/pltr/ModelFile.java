@@ -0,0 +1,487 @@
+package pltr;
+
+/*
+	Binary model file (checkpoint) format
+
+	Layout (little endian):
+	- 128 byte header: magic, version, algorithm, factor precision,
+	  scoring precision, number of users, items and latent factors,
+	  number of epochs, epochs done, number of history items,
+	  step size rule, regularization parameters and learning rate
+	- P and Q, row-major with cache-line padded rows, split into the
+	  pages of DirectFactorMatrix / DirectFloatFactorMatrix
+	- user history offsets (int, numUsers+1) and items (int)
+	- step size accumulators (unless CONSTANT): per user and per item
+	  (double), ADAM also update counts per user and per item (int)
+	- BF16/INT8 scoring precision: quantized P and Q (pages of
+	  QuantizedFactorMatrix), INT8 also the scales of P and Q (float)
+	Each section starts at a 4096 byte aligned offset.
+
+	Loading maps P and Q, so a scoring process does not read or copy
+	them. With BF16/INT8 scoring it maps the quantized P and Q instead
+	and never touches the full precision pages. Loading to train maps them copy-on-write and copies them to
+	the heap unless OFF_HEAP storage is requested. A file is written to a temporary file first and renamed, so
+	a crash never leaves a partial checkpoint behind.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+public class ModelFile {
+
+	static final int MAGIC = 0x4D544C50; // "PLTM"
+	static final int VERSION = 2; // 1: no quantized scoring sections
+	static final int HEADER_BYTES = 128;
+	static final int SECTION_ALIGN = 4096;
+
+	static final int ALGORITHM_SEQ = 0;
+	static final int ALGORITHM_PLTRN = 1;
+	static final int ALGORITHM_PLTRB = 2;
+
+	// -------------------------------------
+	// file header and section offsets
+	// -------------------------------------
+	static class Header {
+		int version = VERSION;
+		int algorithm;
+		FactorPrecision precision;
+		ScoringPrecision scoringPrecision;
+		int numUsers;
+		int numItems;
+		int numLatentFactors;
+		int numEpochs;
+		int epochsDone;
+		int numHistoryItems; // -1: no user histories
+		StepSizeRule stepSizeRule;
+		double lambP;
+		double lambQPlus;
+		double lambQMinus;
+		double eta;
+
+		int bytesPerValue;
+		int stride;
+		long pOffset;
+		long qOffset;
+		long historyOffsetsOffset;
+		long historyItemsOffset;
+		long stepSizesOffset;
+		int scoreBytesPerValue; // 0: no quantized scoring sections
+		int scoreStride;
+		long pScoreOffset;
+		long qScoreOffset;
+		long pScalesOffset;
+		long qScalesOffset;
+		long fileLength;
+
+		void layout(){
+			bytesPerValue = (precision == FactorPrecision.FLOAT) ? 4 : 8;
+			stride = FactorMatrix.paddedStride(numLatentFactors, bytesPerValue);
+			pOffset = HEADER_BYTES;
+			qOffset = align(pOffset + (long) numUsers * stride * bytesPerValue);
+			historyOffsetsOffset = align(qOffset + (long) numItems * stride * bytesPerValue);
+			historyItemsOffset = align(historyOffsetsOffset + (numHistoryItems < 0 ? 0 : 4L * (numUsers + 1)));
+			stepSizesOffset = align(historyItemsOffset + (numHistoryItems < 0 ? 0 : 4L * numHistoryItems));
+			fileLength = stepSizesOffset;
+			if( stepSizeRule != StepSizeRule.CONSTANT )
+				fileLength += 8L * (numUsers + numItems);
+			if( stepSizeRule == StepSizeRule.ADAM )
+				fileLength += 4L * (numUsers + numItems);
+			if( version >= 2 && scoringPrecision != ScoringPrecision.EXACT ){
+				scoreBytesPerValue = QuantizedFactorMatrix.bytesPerValue(scoringPrecision);
+				scoreStride = FactorMatrix.paddedStride(numLatentFactors, scoreBytesPerValue);
+				pScoreOffset = align(fileLength);
+				qScoreOffset = align(pScoreOffset + (long) numUsers * scoreStride * scoreBytesPerValue);
+				fileLength = qScoreOffset + (long) numItems * scoreStride * scoreBytesPerValue;
+				if( scoringPrecision == ScoringPrecision.INT8 ){
+					pScalesOffset = align(fileLength);
+					qScalesOffset = align(pScalesOffset + 4L * numUsers);
+					fileLength = qScalesOffset + 4L * numItems;
+				}
+			}
+		}
+
+		boolean hasScoringFactors(){
+			return scoreBytesPerValue > 0;
+		}
+
+		ByteBuffer encode(){
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC).putInt(version).putInt(algorithm).putInt(precision.ordinal())
+				.putInt(scoringPrecision.ordinal()).putInt(numUsers).putInt(numItems).putInt(numLatentFactors)
+				.putInt(numEpochs).putInt(epochsDone).putInt(numHistoryItems).putInt(stepSizeRule.ordinal())
+				.putDouble(lambP).putDouble(lambQPlus).putDouble(lambQMinus).putDouble(eta);
+			buf.clear();
+			return buf;
+		}
+
+		static Header decode(ByteBuffer buf) throws IOException {
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			if( buf.getInt() != MAGIC ){
+				throw new IOException("Not a model file");
+			}
+			int version = buf.getInt();
+			if( version < 1 || version > VERSION ){
+				throw new IOException("Unsupported model file version: " + version);
+			}
+			Header h = new Header();
+			h.version = version;
+			h.algorithm = buf.getInt();
+			int precision = buf.getInt();
+			int scoringPrecision = buf.getInt();
+			if( h.algorithm < ALGORITHM_SEQ || h.algorithm > ALGORITHM_PLTRB
+				|| precision < 0 || precision >= FactorPrecision.values().length
+				|| scoringPrecision < 0 || scoringPrecision >= ScoringPrecision.values().length ){
+				throw new IOException("Corrupt model file header");
+			}
+			h.precision = FactorPrecision.values()[precision];
+			h.scoringPrecision = ScoringPrecision.values()[scoringPrecision];
+			h.numUsers = buf.getInt();
+			h.numItems = buf.getInt();
+			h.numLatentFactors = buf.getInt();
+			h.numEpochs = buf.getInt();
+			h.epochsDone = buf.getInt();
+			h.numHistoryItems = buf.getInt();
+			int stepSizeRule = buf.getInt(); // reserved (0) in older files: CONSTANT
+			if( stepSizeRule < 0 || stepSizeRule >= StepSizeRule.values().length ){
+				throw new IOException("Corrupt model file header");
+			}
+			h.stepSizeRule = StepSizeRule.values()[stepSizeRule];
+			h.lambP = buf.getDouble();
+			h.lambQPlus = buf.getDouble();
+			h.lambQMinus = buf.getDouble();
+			h.eta = buf.getDouble();
+			h.layout();
+			return h;
+		}
+
+		static long align(long offset){
+			return (offset + SECTION_ALIGN - 1) & ~((long) SECTION_ALIGN - 1);
+		}
+	}
+
+	// -------------------------------------
+	// write a model (called by the trainers' save())
+	// -------------------------------------
+	static void save(	String modelFile, int algorithm, FactorMatrix P, FactorMatrix Q,
+						double lambP, double lambQPlus, double lambQMinus, double eta,
+						int numEpochs, int epochsDone, ScoringPrecision scoringPrecision,
+						UserHistory BPlus, RowStepSizes stepSizes) throws IOException {
+		Header h = new Header();
+		h.algorithm = algorithm;
+		h.precision = (P instanceof HeapFloatFactorMatrix || P instanceof DirectFloatFactorMatrix)
+			? FactorPrecision.FLOAT : FactorPrecision.DOUBLE;
+		h.scoringPrecision = scoringPrecision;
+		h.numUsers = P.getNumRows();
+		h.numItems = Q.getNumRows();
+		h.numLatentFactors = P.getNumCols();
+		h.numEpochs = numEpochs;
+		h.epochsDone = epochsDone;
+		h.numHistoryItems = (BPlus == null) ? -1 : BPlus.getItems().length;
+		h.stepSizeRule = (stepSizes == null) ? StepSizeRule.CONSTANT : stepSizes.getRule();
+		h.lambP = lambP;
+		h.lambQPlus = lambQPlus;
+		h.lambQMinus = lambQMinus;
+		h.eta = eta;
+		h.layout();
+
+		Path target = Paths.get(modelFile).toAbsolutePath();
+		Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(tmp.toFile(), "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			file.setLength(h.fileLength);
+			channel.write(h.encode(), 0);
+			writeFactors(channel, h.pOffset, P, h);
+			writeFactors(channel, h.qOffset, Q, h);
+			if( BPlus != null ){
+				InteractionFile.ColumnWriter offsets = new InteractionFile.ColumnWriter(channel, h.historyOffsetsOffset);
+				for( int u=0; u<h.numUsers; u++ ){
+					offsets.putInt(BPlus.start(u));
+				}
+				offsets.putInt(h.numHistoryItems);
+				offsets.flush();
+				InteractionFile.ColumnWriter items = new InteractionFile.ColumnWriter(channel, h.historyItemsOffset);
+				int[] historyItems = BPlus.getItems();
+				for( int i=0; i<historyItems.length; i++ ){
+					items.putInt(historyItems[i]);
+				}
+				items.flush();
+			}
+			if( stepSizes != null ){
+				writeStepSizes(channel, h.stepSizesOffset, stepSizes, h);
+			}
+			if( h.hasScoringFactors() ){
+				writeScoringFactors(channel, h.pScoreOffset, h.pScalesOffset, P, h);
+				writeScoringFactors(channel, h.qScoreOffset, h.qScalesOffset, Q, h);
+			}
+			channel.force(true);
+		} finally {
+			file.close();
+		}
+		try {
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void writeFactors(FileChannel channel, long offset, FactorMatrix M, Header h) throws IOException {
+		InteractionFile.ColumnWriter out = new InteractionFile.ColumnWriter(channel, offset);
+		boolean single = (h.bytesPerValue == 4);
+		for( int r=0; r<M.getNumRows(); r++ ){
+			for( int f=0; f<h.stride; f++ ){
+				double v = (f < h.numLatentFactors) ? M.get(r, f) : 0.0;
+				if( single ){
+					out.putFloat((float) v);
+				} else {
+					out.putDouble(v);
+				}
+			}
+		}
+		out.flush();
+	}
+
+	// rows quantized one at a time (as QuantizedFactorMatrix does),
+	// INT8 scales go to their own section
+	private static void writeScoringFactors(FileChannel channel, long offset, long scalesOffset, FactorMatrix M, Header h) throws IOException {
+		InteractionFile.ColumnWriter out = new InteractionFile.ColumnWriter(channel, offset);
+		InteractionFile.ColumnWriter scales = null;
+		boolean int8 = (h.scoringPrecision == ScoringPrecision.INT8);
+		if( int8 ){
+			scales = new InteractionFile.ColumnWriter(channel, scalesOffset);
+		}
+		for( int r=0; r<M.getNumRows(); r++ ){
+			float scale = 0.0f;
+			if( int8 ){
+				scale = QuantizedFactorMatrix.int8Scale(M, r);
+				scales.putFloat(scale);
+			}
+			for( int f=0; f<h.scoreStride; f++ ){
+				if( int8 ){
+					out.putByte((f < h.numLatentFactors) ? QuantizedFactorMatrix.toInt8(M.get(r, f), scale) : 0);
+				} else {
+					out.putShort((f < h.numLatentFactors) ? QuantizedFactorMatrix.toBf16((float) M.get(r, f)) : 0);
+				}
+			}
+		}
+		out.flush();
+		if( int8 ){
+			scales.flush();
+		}
+	}
+
+	// accumulators in the order of the section (users first),
+	// rows grown after the last learn() are written as zero
+	private static void writeStepSizes(FileChannel channel, long offset, RowStepSizes stepSizes, Header h) throws IOException {
+		InteractionFile.ColumnWriter out = new InteractionFile.ColumnWriter(channel, offset);
+		for( int u=0; u<h.numUsers; u++ ){
+			out.putDouble(u < stepSizes.userAcc.length ? stepSizes.userAcc[u] : 0.0);
+		}
+		for( int i=0; i<h.numItems; i++ ){
+			out.putDouble(i < stepSizes.itemAcc.length ? stepSizes.itemAcc[i] : 0.0);
+		}
+		if( h.stepSizeRule == StepSizeRule.ADAM ){
+			for( int u=0; u<h.numUsers; u++ ){
+				out.putInt(u < stepSizes.userSteps.length ? stepSizes.userSteps[u] : 0);
+			}
+			for( int i=0; i<h.numItems; i++ ){
+				out.putInt(i < stepSizes.itemSteps.length ? stepSizes.itemSteps[i] : 0);
+			}
+		}
+		out.flush();
+	}
+
+	// -------------------------------------
+	// load a model for scoring (read-only mapping, shared page cache, no learn(),
+	// BF16/INT8: scores with the quantized P and Q of the file)
+	// -------------------------------------
+	public static PLTR load(String modelFile) throws IOException {
+		return load(modelFile, FileChannel.MapMode.READ_ONLY);
+	}
+
+	// -------------------------------------
+	// load a model to resume or continue training (factors on the heap)
+	// -------------------------------------
+	public static PLTR loadForTraining(String modelFile) throws IOException {
+		return loadForTraining(modelFile, FactorStorage.HEAP);
+	}
+
+	// -------------------------------------
+	// load a model to resume or continue training with the given storage
+	// (OFF_HEAP: copy-on-write mapping, updates do not change the file)
+	// -------------------------------------
+	public static PLTR loadForTraining(String modelFile, FactorStorage storage) throws IOException {
+		return load(modelFile, FileChannel.MapMode.PRIVATE, storage);
+	}
+
+	private static PLTR load(String modelFile, FileChannel.MapMode mode) throws IOException {
+		return load(modelFile, mode, FactorStorage.OFF_HEAP);
+	}
+
+	private static PLTR load(String modelFile, FileChannel.MapMode mode, FactorStorage storage) throws IOException {
+		boolean writable = (mode != FileChannel.MapMode.READ_ONLY);
+		RandomAccessFile file = new RandomAccessFile(modelFile, writable ? "rw" : "r");
+		try {
+			FileChannel channel = file.getChannel();
+			Header h = readHeader(channel);
+			if( channel.size() < h.fileLength ){
+				throw new IOException("Truncated model file: " + modelFile);
+			}
+
+			// mappings stay valid after the channel is closed
+			FactorMatrix P = mapFactors(channel, mode, h.pOffset, h.numUsers, h);
+			FactorMatrix Q = mapFactors(channel, mode, h.qOffset, h.numItems, h);
+			if( storage == FactorStorage.HEAP ){
+				P = FactorMatrix.copy(P, storage);
+				Q = FactorMatrix.copy(Q, storage);
+			}
+			UserHistory BPlus = null;
+			if( h.numHistoryItems >= 0 ){
+				int[] offsets = readInts(channel, h.historyOffsetsOffset, h.numUsers + 1);
+				int[] items = readInts(channel, h.historyItemsOffset, h.numHistoryItems);
+				BPlus = new UserHistory(h.numUsers, h.numItems, offsets, items);
+			}
+			FactorMatrix PScore = null;
+			FactorMatrix QScore = null;
+			if( !writable && h.hasScoringFactors() ){
+				PScore = mapScoringFactors(channel, h.pScoreOffset, h.pScalesOffset, h.numUsers, h);
+				QScore = mapScoringFactors(channel, h.qScoreOffset, h.qScalesOffset, h.numItems, h);
+			}
+			RowStepSizes stepSizes = null;
+			if( writable && h.stepSizeRule != StepSizeRule.CONSTANT ){
+				long offset = h.stepSizesOffset;
+				double[] userAcc = readDoubles(channel, offset, h.numUsers);
+				double[] itemAcc = readDoubles(channel, offset + 8L * h.numUsers, h.numItems);
+				int[] userSteps = null;
+				int[] itemSteps = null;
+				if( h.stepSizeRule == StepSizeRule.ADAM ){
+					offset += 8L * (h.numUsers + h.numItems);
+					userSteps = readInts(channel, offset, h.numUsers);
+					itemSteps = readInts(channel, offset + 4L * h.numUsers, h.numItems);
+				}
+				stepSizes = new RowStepSizes(h.stepSizeRule, userAcc, itemAcc, userSteps, itemSteps);
+			}
+
+			PLTR model;
+			switch (h.algorithm) {
+				case ALGORITHM_SEQ:
+					model = new BPR(P, Q, h.lambP, h.lambQPlus, h.lambQMinus, h.eta, h.numEpochs, h.epochsDone, h.scoringPrecision, PScore, QScore, stepSizes);
+					break;
+				case ALGORITHM_PLTRN:
+					model = new PLTRN(P, Q, h.lambP, h.lambQPlus, h.lambQMinus, h.eta, h.numEpochs, h.epochsDone, h.scoringPrecision, PScore, QScore, stepSizes);
+					break;
+				default:
+					model = new PLTRB(P, Q, h.lambP, h.lambQPlus, h.lambQMinus, h.eta, h.numEpochs, h.epochsDone, h.scoringPrecision, PScore, QScore, stepSizes);
+					break;
+			}
+			model.setUserHistory(BPlus);
+			return model;
+		} finally {
+			file.close();
+		}
+	}
+
+	// -------------------------------------
+	// header of a model file (sizes and training settings)
+	// -------------------------------------
+	static Header readHeader(String modelFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(modelFile, "r");
+		try {
+			return readHeader(file.getChannel());
+		} finally {
+			file.close();
+		}
+	}
+
+	private static Header readHeader(FileChannel channel) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES);
+		while( buf.hasRemaining() ){
+			if( channel.read(buf, buf.position()) < 0 ){
+				throw new IOException("Truncated model file header");
+			}
+		}
+		buf.flip();
+		return Header.decode(buf);
+	}
+
+	// map a factor matrix page by page (pages of DirectFactorMatrix)
+	private static FactorMatrix mapFactors(FileChannel channel, FileChannel.MapMode mode, long offset, int numRows, Header h) throws IOException {
+		int rowsPerPage = DirectFactorMatrix.rowsPerPage(h.stride, h.bytesPerValue);
+		int numPages = (numRows + rowsPerPage - 1) / rowsPerPage;
+		long pageBytes = (long) rowsPerPage * h.stride * h.bytesPerValue;
+		DoubleBuffer[] doublePages = new DoubleBuffer[numPages];
+		FloatBuffer[] floatPages = new FloatBuffer[numPages];
+		for( int i=0; i<numPages; i++ ){
+			int rows = Math.min(rowsPerPage, numRows - i * rowsPerPage);
+			ByteBuffer page = channel.map(mode, offset + i * pageBytes, (long) rows * h.stride * h.bytesPerValue)
+				.order(ByteOrder.LITTLE_ENDIAN);
+			if( h.bytesPerValue == 4 ){
+				floatPages[i] = page.asFloatBuffer();
+			} else {
+				doublePages[i] = page.asDoubleBuffer();
+			}
+		}
+		if( h.bytesPerValue == 4 ){
+			return new DirectFloatFactorMatrix(numRows, h.numLatentFactors, floatPages);
+		}
+		return new DirectFactorMatrix(numRows, h.numLatentFactors, doublePages);
+	}
+
+	// map quantized factors page by page (pages of QuantizedFactorMatrix)
+	private static FactorMatrix mapScoringFactors(FileChannel channel, long offset, long scalesOffset, int numRows, Header h) throws IOException {
+		int rowsPerPage = QuantizedFactorMatrix.rowsPerPage(h.scoreStride, h.scoreBytesPerValue);
+		int numPages = (numRows + rowsPerPage - 1) / rowsPerPage;
+		long pageBytes = (long) rowsPerPage * h.scoreStride * h.scoreBytesPerValue;
+		ByteBuffer[] pages = new ByteBuffer[numPages];
+		for( int i=0; i<numPages; i++ ){
+			int rows = Math.min(rowsPerPage, numRows - i * rowsPerPage);
+			pages[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + i * pageBytes, (long) rows * h.scoreStride * h.scoreBytesPerValue)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if( h.scoringPrecision == ScoringPrecision.INT8 ){
+			return new QuantizedFactorMatrix(numRows, h.numLatentFactors, pages, readFloats(channel, scalesOffset, numRows));
+		}
+		ShortBuffer[] shortPages = new ShortBuffer[numPages];
+		for( int i=0; i<numPages; i++ ){
+			shortPages[i] = pages[i].asShortBuffer();
+		}
+		return new QuantizedFactorMatrix(numRows, h.numLatentFactors, shortPages);
+	}
+
+	private static int[] readInts(FileChannel channel, long offset, int n) throws IOException {
+		int[] values = new int[n];
+		int done = 0;
+		while( done < n ){
+			int len = Math.min(n - done, 1 << 27);
+			channel.map(FileChannel.MapMode.READ_ONLY, offset + 4L * done, 4L * len)
+				.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values, done, len);
+			done += len;
+		}
+		return values;
+	}
+
+	private static float[] readFloats(FileChannel channel, long offset, int n) throws IOException {
+		float[] values = new float[n];
+		int done = 0;
+		while( done < n ){
+			int len = Math.min(n - done, 1 << 27);
+			channel.map(FileChannel.MapMode.READ_ONLY, offset + 4L * done, 4L * len)
+				.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values, done, len);
+			done += len;
+		}
+		return values;
+	}
+
+	private static double[] readDoubles(FileChannel channel, long offset, int n) throws IOException {
+		double[] values = new double[n];
+		int done = 0;
+		while( done < n ){
+			int len = Math.min(n - done, 1 << 26);
+			channel.map(FileChannel.MapMode.READ_ONLY, offset + 8L * done, 8L * len)
+				.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(values, done, len);
+			done += len;
+		}
+		return values;
+	}
+}
@@ -0,0 +1,35 @@
+package pltr;
+
+/*
+	Sampling of the negative item j of a training triple (u,i,j)
+
+	Items are sampled from a chunk: all items in SEQ and PLtR-N, the
+	item block of the current data block in PLtR-B. A sample fails
+	(-1) if no item outside the history of u is found within the
+	sampler's trials; the update is then skipped (counted as a failure
+	in the training metrics, see TrainingMetrics.getFailureRate).
+
+	Implementations:
+	UniformSampler:    uniform over the chunk, with rejection
+	PopularitySampler: proportional to (item degree + 1)^exponent (alias tables)
+	AdaptiveSampler:   highest scoring of several uniform candidates
+ */
+import java.util.concurrent.*;
+
+public interface NegativeSampler {
+
+	// before training: one chunk of all items
+	public void init(InteractionSet data, UserHistory BPlus, FactorMatrix P, FactorMatrix Q);
+
+	// before a fold-in: delta added to BPlus, P and Q grown for new ids
+	// (one chunk of all items again)
+	public void foldIn(InteractionSet delta, UserHistory BPlus, FactorMatrix P, FactorMatrix Q);
+
+	// item chunk b: chunkItems[chunkOffsets[b]] ... chunkItems[chunkOffsets[b+1]-1]
+	// (only called between updates)
+	public void setChunks(int[] chunkItems, int[] chunkOffsets);
+
+	// negative item for user from chunk (-1: not found), thread-safe
+	public int sample(int user, int chunk, ThreadLocalRandom random, TrainingMetrics.ThreadMetrics m);
+
+}
@@ -7,10 +7,28 @@ package pltr;
 	@author: M. Yagci
  */
 import java.util.*;
+import java.io.*;
 
 public interface PLTR {
 
 	public void learn(ArrayList<Tuple> data, Integer numProcs)  throws InterruptedException;
+	public void learn(InteractionSet data, Integer numProcs)  throws InterruptedException;
+	public void foldIn(InteractionSet delta, int numPasses, Integer numProcs)  throws InterruptedException;
+	public void grow(int numUsers, int numItems);
 	public double getAUCUserItem(Integer user, Integer item);
+	public int[] recommendTopK(int user, int k);
+	public TrainingMetrics getMetrics();
+	public TrainingMetrics getFoldInMetrics();
+	public void setNegativeSampler(NegativeSampler sampler);
+	public void setStepSizeRule(StepSizeRule stepSizeRule);
+	public void setEarlyStopping(EarlyStopping earlyStopping);
+	public void setMiniBatch(int numNegatives, int batchSize);
+	public UserHistory getUserHistory();
+	public void setUserHistory(UserHistory BPlus);
+	public FactorMatrix getUserFactors();
+	public FactorMatrix getItemFactors();
+	public void save(String modelFile) throws IOException;
+	public void setCheckpoint(String checkpointFile, int everyEpochs);
+	public int getEpochsDone();
 	
 }
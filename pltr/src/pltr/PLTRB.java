@@ -13,28 +13,44 @@ package pltr;
 	@author: M. Yagci
  */
 import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
 
-public class PLTRB implements PLTR {
+public class PLTRB extends FactorModel {
 
-	int numUsers;
-	int numItems;
-	int numLatentFactors;
-	double[][] P; // user component matrix
-	double[][] Q; // item component matrix
-	double lambP; // regularization parameter
-	double lambQPlus; // regularization parameter
-	double lambQMinus; // regularization parameter
-	double eta; // learning rate
-	int numEpochs; // number of training epochs
-	Map<Integer,Set<Integer>> BPlus; // user histories
-	ArrayList<Tuple> data; // training data 
+	InteractionSet data; // training data
 	Integer numProcs; // number of processors
 	
 	// Variables for partitioning step
 	int[] usersShuffled; // array values start from 1
 	int[] itemsShuffled; // array values start from 1
-	List<List<Integer>> itemChunkMapping;
-	List<List<List<Tuple>>> C;
+	int[] userBlock; // block of each user (from 0)
+	int[] itemBlock; // block of each item (from 0)
+	int[] chunkItems; // items ordered by block
+	int[] chunkOffsets; // items of block b: chunkItems[chunkOffsets[b]] ... chunkItems[chunkOffsets[b+1]-1]
+	int[] blockOrder; // data indices ordered by block (a,b)
+	int[] blockOffsets; // data of block (a,b): blockOrder[blockOffsets[a*numBlocks+b]] ...
+	int[][] blockCounts; // per worker counts, then scatter cursors
+	Random random;
+	PartitionStrategy partitionStrategy = PartitionStrategy.UNIFORM;
+	int[] userDegree; // interactions per user (BALANCED only)
+	int[] itemDegree; // interactions per item (BALANCED only)
+	
+	// Variables for worker coordination
+	int numBlocksRequested = 0; // blocks per dimension, 0: numProcs
+	int numBlocks; // blocks per dimension of the grid
+	int currentEpoch;
+	int barrierCount; // barriers passed in the current epoch
+	int barriersPerEpoch;
+	boolean stoppedEarly; // set by the barrier action at the end of an epoch
+	
+	// Variables for work-stealing scheduling (numBlocks > numProcs)
+	final Object schedLock = new Object();
+	long[][] pendingBlocks; // bitset of not yet started blocks per block row
+	boolean[] rowBusy; // block row is being processed
+	long[] colFree; // bitset of block columns not being processed
+	int numPendingBlocks;
+	boolean schedulerStopped;
 
 	// -------------------------------------
 	// Constructor
@@ -49,18 +65,64 @@ public class PLTRB implements PLTR {
 					double lambQMinus,
 					double eta,
 					int numEpochs) {
-		
-		this.numUsers = numUsers;
-		this.numItems = numItems;
-		this.numLatentFactors = numLatentFactors;
-		this.P = MatrixOps.gaussianMatrixBuilder(mu, sigma, numUsers, numLatentFactors);
-		this.Q = MatrixOps.gaussianMatrixBuilder(mu, sigma, numItems, numLatentFactors);
-		this.lambP = lambP;
-		this.lambQPlus = lambQPlus;
-		this.lambQMinus = lambQMinus;
-		this.eta = eta;
-		this.numEpochs = numEpochs;
-		this.BPlus = new HashMap<Integer,Set<Integer>>();
+		this(numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs, FactorStorage.HEAP);
+	}
+
+	// -------------------------------------
+	// Constructor with explicit factor storage
+	// -------------------------------------
+	public PLTRB(	int numUsers, 
+					int numItems,
+					int numLatentFactors, 
+					double mu,
+					double sigma,
+					double lambP,
+					double lambQPlus,
+					double lambQMinus,
+					double eta,
+					int numEpochs,
+					FactorStorage storage) {
+		this(numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs, storage,
+			FactorPrecision.DOUBLE, ScoringPrecision.EXACT);
+	}
+
+	// -------------------------------------
+	// Constructor with explicit factor storage and precision
+	// -------------------------------------
+	public PLTRB(	int numUsers, 
+					int numItems,
+					int numLatentFactors, 
+					double mu,
+					double sigma,
+					double lambP,
+					double lambQPlus,
+					double lambQMinus,
+					double eta,
+					int numEpochs,
+					FactorStorage storage,
+					FactorPrecision precision,
+					ScoringPrecision scoringPrecision) {
+		super("PLTRB", ModelFile.ALGORITHM_PLTRB, numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs,
+			storage, precision, scoringPrecision);
+	}
+
+	// -------------------------------------
+	// Constructor from existing factors (model file)
+	// -------------------------------------
+	PLTRB(	FactorMatrix P,
+		FactorMatrix Q,
+		double lambP,
+		double lambQPlus,
+		double lambQMinus,
+		double eta,
+		int numEpochs,
+		int epochsDone,
+		ScoringPrecision scoringPrecision,
+		FactorMatrix PScore,
+		FactorMatrix QScore,
+		RowStepSizes stepSizes) {
+		super("PLTRB", ModelFile.ALGORITHM_PLTRB, P, Q, lambP, lambQPlus, lambQMinus, eta, numEpochs, epochsDone, scoringPrecision,
+			PScore, QScore, stepSizes);
 	}
 
 	// -------------------------------------
@@ -68,7 +130,6 @@ public class PLTRB implements PLTR {
 	// -------------------------------------	
 	private void generatePerms(){
 		int index, temp;
-		Random random = new Random();
 		
 		for (int i = this.numUsers - 1; i > 0; i--){
 		    index = random.nextInt(i + 1);
@@ -84,72 +145,185 @@ public class PLTRB implements PLTR {
 		    this.itemsShuffled[i] = temp;
 		}
 		
-		// extra function to decide mappings of item permutations to chunks
-		itemChunkMapping = new ArrayList<List<Integer>>();
-		for (int i = 0; i < this.numProcs; i++){
-			itemChunkMapping.add(new ArrayList<Integer>());
+		// block ids of users and items
+		if (this.partitionStrategy == PartitionStrategy.BALANCED){
+			balancedBlocks(usersShuffled, userDegree, userBlock);
+			balancedBlocks(itemsShuffled, itemDegree, itemBlock);
+		} else {
+			for (int i = 0; i < this.numUsers; i++){
+				userBlock[i] = (int)Math.floor( 1.0 * this.numBlocks/this.numUsers * (usersShuffled[i]-1) );
+			}
+			for (int i = 0; i < this.numItems; i++){
+				itemBlock[i] = (int)Math.floor( 1.0 * this.numBlocks/this.numItems * (itemsShuffled[i]-1) );
+			}
+		}
+		
+		// extra function to decide mappings of item permutations to chunks (counting sort)
+		Arrays.fill(chunkOffsets, 0);
+		for (int i = 0; i < this.numItems; i++){
+			chunkOffsets[itemBlock[i]+1]++;
+		}
+		for (int b = 0; b < this.numBlocks; b++){
+			chunkOffsets[b+1] += chunkOffsets[b];
 		}
+		int[] cursor = blockCounts[0]; // free until the data is counted
+		System.arraycopy(chunkOffsets, 0, cursor, 0, this.numBlocks);
 		for (int i = 0; i < this.numItems; i++){
-			Integer b = (int)Math.floor( 1.0 * this.numProcs/this.numItems * (itemsShuffled[i]-1) ) + 1;
-			itemChunkMapping.get(b-1).add(i);
-		}		
+			chunkItems[cursor[itemBlock[i]]++] = i;
+		}
+		sampler.setChunks(chunkItems, chunkOffsets);
 	}
 
 	// -------------------------------------
-	// permute data
+	// greedy bin-packing: ids go to the block with the fewest
+	// interactions so far (min-heap of blocks). Ids are taken in
+	// decreasing order of log2(degree), in permutation order otherwise,
+	// so heavy ids are spread first and the split stays random.
 	// -------------------------------------	
-	private void permuteData(){
-	
-		C = new ArrayList<List<List<Tuple>>>(); // initialize C anew
-		for(int i=0; i<numProcs; i++) {
-			C.add(new ArrayList<List<Tuple>>());
-			for(int j=0; j<numProcs; j++) {
-				C.get(i).add(new ArrayList<Tuple>());
+	private void balancedBlocks(int[] perm, int[] degree, int[] block){
+		// stable counting sort of the permutation by degree class
+		int[] classStart = new int[34];
+		for (int k = 0; k < perm.length; k++){
+			classStart[33 - degreeClass(degree[perm[k] - 1])]++;
+		}
+		for (int c = 1; c < classStart.length; c++){
+			classStart[c] += classStart[c-1];
+		}
+		int[] order = new int[perm.length];
+		for (int k = perm.length - 1; k >= 0; k--){
+			order[--classStart[33 - degreeClass(degree[perm[k] - 1])]] = perm[k] - 1;
+		}
+		
+		int numBins = this.numBlocks;
+		long[] load = new long[numBins];
+		int[] heap = new int[numBins];
+		for (int i = 0; i < numBins; i++){
+			heap[i] = i;
+		}
+		for (int k = 0; k < order.length; k++){
+			int id = order[k];
+			int bin = heap[0];
+			block[id] = bin;
+			load[bin] += degree[id];
+			// restore heap order from the root
+			int i = 0;
+			while (true){
+				int child = 2*i + 1;
+				if (child >= numBins)
+					break;
+				if (child + 1 < numBins && load[heap[child+1]] < load[heap[child]])
+					child++;
+				if (load[heap[child]] >= load[heap[i]])
+					break;
+				int temp = heap[i];
+				heap[i] = heap[child];
+				heap[child] = temp;
+				i = child;
 			}
-		}		
+		}
+	}
+
+	private static int degreeClass(int degree){
+		return 32 - Integer.numberOfLeadingZeros(degree); // 0 for degree 0
+	}
 
-		// put data into partitions
-		for (Tuple t : this.data){
+	// -------------------------------------
+	// permute data, step 1: worker w counts its slice per block
+	// -------------------------------------	
+	private void countBlocks(int w){
+		int[] counts = blockCounts[w];
+		Arrays.fill(counts, 0);
+		int lenData = this.data.size();
+		int from = (int)((long) lenData * w / this.numProcs);
+		int to = (int)((long) lenData * (w+1) / this.numProcs);
+		for (int i = from; i < to; i++){
+			counts[userBlock[this.data.getUserId(i)] * this.numBlocks + itemBlock[this.data.getItemId(i)]]++;
+		}
+	}
+
+	// -------------------------------------
+	// permute data, step 2: block offsets and per worker cursors
+	// -------------------------------------	
+	private void computeBlockOffsets(){
+		int numCells = this.numBlocks * this.numBlocks;
+		int offset = 0;
+		for (int k = 0; k < numCells; k++){
+			blockOffsets[k] = offset;
+			for (int w = 0; w < this.numProcs; w++){
+				int count = blockCounts[w][k];
+				blockCounts[w][k] = offset;
+				offset += count;
+			}
+		}
+		blockOffsets[numCells] = offset;
 		
-			Integer userId = t.getUserId();
-			Integer itemId = t.getItemId();
-			
-			Integer a = (int)Math.floor( 1.0 * this.numProcs/this.numUsers * (usersShuffled[userId]-1) ) + 1;
-			Integer b = (int)Math.floor( 1.0 * this.numProcs/this.numItems * (itemsShuffled[itemId]-1) ) + 1;
-			
-			C.get(a-1).get(b-1).add(new Tuple(userId,itemId));			
-			
-		}		
+		// block-size imbalance: largest block vs. mean block,
+		// and the worst stratum (largest vs. mean block of the stratum)
+		double mean = 1.0 * offset / numCells;
+		int maxBlock = 0;
+		for (int k = 0; k < numCells; k++){
+			maxBlock = Math.max(maxBlock, blockOffsets[k+1] - blockOffsets[k]);
+		}
+		double worstStratum = Double.NaN;
+		if (!workStealing()){
+			worstStratum = 0.0;
+			for (int u = 0; u < this.numBlocks; u++){
+				int stratumMax = 0;
+				long stratumSum = 0;
+				for (int a = 0; a < this.numBlocks; a++){
+					int k = a * this.numBlocks + (blockDecider(u, a+1) - 1);
+					int size = blockOffsets[k+1] - blockOffsets[k];
+					stratumMax = Math.max(stratumMax, size);
+					stratumSum += size;
+				}
+				if (stratumSum > 0)
+					worstStratum = Math.max(worstStratum, 1.0 * stratumMax * this.numBlocks / stratumSum);
+			}
+		}
+		this.metrics.setBlockImbalance(mean > 0 ? maxBlock / mean : 1.0, worstStratum);
+	}
+
+	// -------------------------------------
+	// permute data, step 3: worker w scatters its slice
+	// -------------------------------------	
+	private void scatterBlocks(int w){
+		int[] cursor = blockCounts[w];
+		int lenData = this.data.size();
+		int from = (int)((long) lenData * w / this.numProcs);
+		int to = (int)((long) lenData * (w+1) / this.numProcs);
+		for (int i = from; i < to; i++){
+			int k = userBlock[this.data.getUserId(i)] * this.numBlocks + itemBlock[this.data.getItemId(i)];
+			blockOrder[cursor[k]++] = i;
+		}
 	}
 
 	// -------------------------------------
 	// deciding set of blocks
 	// -------------------------------------	
 	private Integer blockDecider(Integer u, Integer a){
-		Integer b = (u+a) % this.numProcs;
+		Integer b = (u+a) % this.numBlocks;
 		if ( b==0 ){
-			return this.numProcs;
+			return this.numBlocks;
 		}
 		return b;
 	}
 	
 	// -------------------------------------
-	// learn model
+	// user histories and partitioning buffers, reused in every epoch
 	// -------------------------------------
-	public void learn(ArrayList<Tuple> data, Integer numProcs) throws InterruptedException{
-	
+	void initPartitioning(InteractionSet data, Integer numProcs) throws InterruptedException{
+		
 		this.data = data;
 		this.numProcs = numProcs;
+		if (this.numBlocksRequested > 0 && this.numBlocksRequested < numProcs){
+			throw new IllegalArgumentException("Number of blocks (" + this.numBlocksRequested 
+				+ ") must not be smaller than numProcs (" + numProcs + ")");
+		}
+		this.numBlocks = this.numBlocksRequested > 0 ? this.numBlocksRequested : numProcs;
 	
-		// build user histories in the first pass
-		for( Tuple user_item : data){
-			Integer user = user_item.getUserId();
-			Integer item = user_item.getItemId();
-			
-			if( ! BPlus.containsKey(user) ){
-				BPlus.put(user, new HashSet<Integer>());
-			}
-			BPlus.get(user).add(item);
+		// build user histories in the first pass (unless shared)
+		if( BPlus == null ){
+			BPlus = UserHistory.build(data, this.numUsers, this.numItems, numProcs);
 		}
 		
 		// initial filling for in-place shuffle
@@ -162,119 +336,391 @@ public class PLTRB implements PLTR {
 			itemsShuffled[i-1] = i; // fill
 		}
 		
-		// run epochs
-		for (int epoch=0; epoch<this.numEpochs; epoch++){	
-			System.out.println("epoch: " + epoch);
-			
-			this.generatePerms();
-			this.permuteData();			
-		
-			// parallel processing coordination by deciding set of blocks
-			ArrayList<Thread> threadList;
-			final Integer numProcsFinal = numProcs;
-			for (int u=0; u<this.numProcs; u++){
-				threadList = new ArrayList<Thread>();
-				for (int a=0; a<this.numProcs; a++){
-					final int aa = a;
-					final int b = blockDecider(u,aa+1);
-				
-					threadList.add ( new Thread(new Runnable() {
-						public void run(){
-							long threadId = Thread.currentThread().getId() % numProcsFinal;
-							updateParallel(aa, b-1, threadId);
-						}
-					}) );
-					threadList.get(a).start(); 		
-				}
-				for(int i=0; i<this.numProcs; i++){
-					threadList.get(i).join();		
-				}
+		// partitioning buffers, reused in every epoch
+		userBlock = new int[this.numUsers];
+		itemBlock = new int[this.numItems];
+		chunkItems = new int[this.numItems];
+		chunkOffsets = new int[this.numBlocks+1];
+		blockOrder = new int[data.size()];
+		blockOffsets = new int[this.numBlocks*this.numBlocks+1];
+		blockCounts = new int[this.numProcs][this.numBlocks*this.numBlocks];
+		random = new Random();
+		sampler.init(data, BPlus, P, Q);
+		stepSizes = RowStepSizes.resume(stepSizes, stepSizeRule, this.numUsers, this.numItems);
+		if (this.partitionStrategy == PartitionStrategy.BALANCED){
+			userDegree = new int[this.numUsers];
+			itemDegree = new int[this.numItems];
+			for (int i = 0; i < data.size(); i++){
+				userDegree[data.getUserId(i)]++;
+				itemDegree[data.getItemId(i)]++;
 			}
-		}		
+		}
+	}
+
+	// -------------------------------------
+	// one partitioning step on the calling thread
+	// (shuffle, count, offsets, scatter; used by benchmarks)
+	// -------------------------------------
+	void permuteData(){
+		generatePerms();
+		for (int w = 0; w < this.numProcs; w++){
+			countBlocks(w);
+		}
+		computeBlockOffsets();
+		for (int w = 0; w < this.numProcs; w++){
+			scatterBlocks(w);
+		}
 	}
 	
 	// -------------------------------------
+	// learn model from columnar data
 	// -------------------------------------
-	private void updateParallel(int a, int b, long id){
+	public void learn(InteractionSet data, Integer numProcs) throws InterruptedException{
 	
-		// System.out.println("Running thread " + id + " ...");
-		
-		// update model
-		for (Tuple t : C.get(a).get(b)){
+		// build user histories in the first pass (unless shared)
+		if( BPlus == null ){
+			BPlus = UserHistory.build(data, this.numUsers, this.numItems, numProcs);
+		}
+		// a finished checkpoint is not trained again
+		if( alreadyTrained() ){
+			return;
+		}
+		initPartitioning(data, numProcs);
+		metrics.start(numProcs, this.numBlocks);
 		
-			Integer user = t.getUserId();
-			Integer posItem = t.getItemId();
-			
-			// Integer negItem = t.getItemId2();
-			// sample negative item
-			Integer negItem = -1;
-			Integer numTrials = 0;
-			Integer itemChunkMappingSize = itemChunkMapping.get(b).size();			
-			while( numTrials < 10 ){
-				Integer rnd = java.util.concurrent.ThreadLocalRandom.current().nextInt(0, itemChunkMappingSize);
-				Integer rndItem = itemChunkMapping.get(b).get(rnd);
-				if( ! BPlus.get(user).contains(rndItem) ){
-					negItem = rndItem;
-					break;
-				}
-				numTrials += 1;
+		// block of worker a in stratum u (numBlocks == numProcs)
+		final int[][] schedule = new int[this.numBlocks][this.numBlocks];
+		for (int u=0; u<this.numBlocks; u++){
+			for (int a=0; a<this.numBlocks; a++){
+				schedule[u][a] = blockDecider(u,a+1) - 1;
 			}
-			if( negItem == -1 ){
-				continue;
+		}
+		final boolean workStealing = workStealing();
+		if (workStealing){
+			int numWords = (this.numBlocks + 63) >>> 6;
+			pendingBlocks = new long[this.numBlocks][numWords];
+			rowBusy = new boolean[this.numBlocks];
+			colFree = new long[numWords];
+		}
+		this.schedulerStopped = false;
+		this.barriersPerEpoch = 2 + (workStealing ? 1 : this.numBlocks);
+		
+		// permutations for the first epoch, later epochs are shuffled
+		// by the barrier action at the end of an epoch
+		// (resumed after epochsDone of a checkpoint)
+		final int startEpoch = Math.max(0, this.epochsDone);
+		this.epochsDone = startEpoch;
+		this.lastCheckpoint = startEpoch;
+		this.currentEpoch = startEpoch;
+		this.barrierCount = 0;
+		this.stoppedEarly = false;
+		if (earlyStopping != null){
+			earlyStopping.start();
+		}
+		if (startEpoch < this.numEpochs){
+			System.out.println("epoch: " + this.currentEpoch);
+			long permStart = System.nanoTime();
+			generatePerms();
+			metrics.addRepartitionNanos(System.nanoTime() - permStart);
+		}
+		final CyclicBarrier barrier = new CyclicBarrier(this.numProcs, new Runnable() {
+			public void run(){
+				barrierAction();
 			}
+		});
+		
+		// long-lived workers, synchronized between strata
+		final Throwable[] failure = new Throwable[1];
+		ArrayList<Thread> threadList = new ArrayList<Thread>();
+		for (int a=0; a<this.numProcs; a++){
+			final int aa = a;
+			threadList.add ( new Thread(new Runnable() {
+				public void run(){
+					TrainingMetrics.ThreadMetrics m = metrics.thread(aa);
+					try {
+						for (int epoch=startEpoch; epoch<numEpochs && !stoppedEarly; epoch++){
+							// parallel counting sort of the data into blocks
+							long t0 = System.nanoTime();
+							countBlocks(aa);
+							long t1 = System.nanoTime();
+							barrier.await();
+							long t2 = System.nanoTime();
+							scatterBlocks(aa);
+							long t3 = System.nanoTime();
+							barrier.await();
+							m.repartitionNanos += (t1 - t0) + (t3 - t2);
+							m.waitNanos += (t2 - t1) + (System.nanoTime() - t3);
+							
+							if (workStealing){
+								// any block whose row and column are free
+								int k;
+								while (true){
+									t0 = System.nanoTime();
+									k = nextBlock();
+									t1 = System.nanoTime();
+									m.waitNanos += t1 - t0;
+									if (k < 0)
+										break;
+									updateParallel(k / numBlocks, k % numBlocks, aa);
+									blockDone(k);
+									t2 = System.nanoTime();
+									m.busyNanos += t2 - t1;
+									metrics.addBlockNanos(k, t2 - t1);
+								}
+								t0 = System.nanoTime();
+								barrier.await();
+								m.waitNanos += System.nanoTime() - t0;
+							} else {
+								for (int u=0; u<schedule.length; u++){
+									t0 = System.nanoTime();
+									updateParallel(aa, schedule[u][aa], aa);
+									t1 = System.nanoTime();
+									barrier.await();
+									m.busyNanos += t1 - t0;
+									m.waitNanos += System.nanoTime() - t1;
+									metrics.addBlockNanos(aa * numBlocks + schedule[u][aa], t1 - t0);
+								}
+							}
+						}
+					} catch (BrokenBarrierException e) {
+						// another worker failed
+					} catch (Throwable e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+						stopScheduler();
+						barrier.reset();
+					}
+				}
+			}, "PLTRB-worker-" + a) );
+			threadList.get(a).start();
+		}
+		for(int i=0; i<this.numProcs; i++){
+			threadList.get(i).join();		
+		}
+		if (failure[0] instanceof InterruptedException){
+			throw (InterruptedException) failure[0];
+		} else if (failure[0] != null){
+			throw new RuntimeException("PLTRB worker failed", failure[0]);
+		}
+		if (earlyStopping != null){
+			earlyStopping.finish();
+		}
+		checkpoint(true);
+		refreshScoringFactors();
+	}
+
+	// -------------------------------------
+	// learn with numWorkers worker processes (DSGD over TCP, one user
+	// block per worker, see DSGDCoordinator) listening on localhost,
+	// port 0: any free port, launchLocalWorkers: start the workers as JVMs
+	// -------------------------------------
+	public void learnDistributed(InteractionSet data, int numWorkers, int port, boolean launchLocalWorkers) throws IOException, InterruptedException{
+		learnDistributed(data, numWorkers, "localhost", port, launchLocalWorkers);
+	}
+
+	// -------------------------------------
+	// learn with numWorkers worker processes, the coordinator listens
+	// on the address of host (e.g. the cluster interface of this node)
+	// -------------------------------------
+	public void learnDistributed(InteractionSet data, int numWorkers, String host, int port, boolean launchLocalWorkers) throws IOException, InterruptedException{
+		
+		// workers run plain BPR steps with uniform negatives
+		if( !(sampler instanceof UniformSampler) || stepSizeRule != StepSizeRule.CONSTANT
+			|| numNegatives != 1 || batchSize != 1 || earlyStopping != null ){
+			throw new IllegalArgumentException("Invalid setting for distributed training (uniform sampler, "
+				+ "constant step sizes, no mini-batches and no early stopping only) !!!");
+		}
+		
+		// build user histories in the first pass (unless shared)
+		if( BPlus == null ){
+			BPlus = UserHistory.build(data, this.numUsers, this.numItems, 1);
+		}
+		// a finished checkpoint is not trained again
+		if( alreadyTrained() ){
+			return;
+		}
 		
-			Double delta = 1.0 - sigmoid( MatrixOps.diffDot(P[user], Q[posItem], Q[negItem]) );
+		// resumed after epochsDone of a checkpoint
+		int startEpoch = Math.max(0, this.epochsDone);
+		this.epochsDone = startEpoch;
+		this.lastCheckpoint = startEpoch;
+		new DSGDCoordinator(this, numWorkers, host, port).run(data, startEpoch, launchLocalWorkers);
+		checkpoint(true);
+		refreshScoringFactors();
+	}
 
-			for(int f=0; f<this.numLatentFactors; f++){
-				P[user][f] += this.eta * 
-				(delta * (Q[posItem][f] - Q[negItem][f]) - this.lambP * P[user][f]);
+	// -------------------------------------
+	// barrier action, run once all workers reached a barrier
+	// (per epoch: counted, scattered, then one per stratum
+	// or a single one after work-stealing)
+	// -------------------------------------
+	private void barrierAction(){
+		this.barrierCount++;
+		long start = System.nanoTime();
+		if (this.barrierCount == 1){
+			computeBlockOffsets();
+			metrics.addRepartitionNanos(System.nanoTime() - start);
+		} else if (this.barrierCount == 2 && workStealing()){
+			resetScheduler();
+		} else if (this.barrierCount == this.barriersPerEpoch){
+			this.barrierCount = 0;
+			metrics.epochDone(this.currentEpoch);
+			this.currentEpoch++;
+			
+			// all workers wait at the barrier: consistent snapshot
+			this.epochsDone = this.currentEpoch;
+			checkpoint(false);
+			if (earlyStopping != null){
+				earlyStopping.epochDone(this.currentEpoch - 1, P, Q, BPlus);
+				this.stoppedEarly = earlyStopping.shouldStop();
+			}
+			if (this.currentEpoch < this.numEpochs && !this.stoppedEarly){
+				System.out.println("epoch: " + this.currentEpoch);
+				start = System.nanoTime();
+				generatePerms();
+				metrics.addRepartitionNanos(System.nanoTime() - start);
 			}
+		}
+	}
+	
+	// -------------------------------------
+	// more blocks than workers: no strata, blocks are handed out
+	// as soon as their row and column are free
+	// -------------------------------------
+	private boolean workStealing(){
+		return this.numBlocks > this.numProcs;
+	}
 
-			for(int f=0; f<this.numLatentFactors; f++){
-				Q[posItem][f] += this.eta * 
-				(delta * P[user][f] - this.lambQPlus * Q[posItem][f]);
+	// -------------------------------------
+	// all non-empty blocks pending, all rows and columns free
+	// -------------------------------------
+	private void resetScheduler(){
+		synchronized (schedLock) {
+			numPendingBlocks = 0;
+			Arrays.fill(rowBusy, false);
+			Arrays.fill(colFree, 0L);
+			for (int b = 0; b < this.numBlocks; b++){
+				colFree[b >>> 6] |= 1L << b;
+			}
+			for (int a = 0; a < this.numBlocks; a++){
+				Arrays.fill(pendingBlocks[a], 0L);
+				for (int b = 0; b < this.numBlocks; b++){
+					int k = a * this.numBlocks + b;
+					if (blockOffsets[k+1] > blockOffsets[k]){
+						pendingBlocks[a][b >>> 6] |= 1L << b;
+						numPendingBlocks++;
+					}
+				}
 			}
+		}
+	}
 
-			for(int f=0; f<this.numLatentFactors; f++){
-				Q[negItem][f] += this.eta * 
-				(delta * -1.0*P[user][f] - this.lambQMinus * Q[negItem][f]);
+	// -------------------------------------
+	// claim a pending block with free row and column
+	// (waits while none is available, -1 when the epoch is done)
+	// -------------------------------------
+	private int nextBlock() throws InterruptedException {
+		synchronized (schedLock) {
+			while (true){
+				if (numPendingBlocks == 0 || schedulerStopped){
+					return -1;
+				}
+				int start = java.util.concurrent.ThreadLocalRandom.current().nextInt(0, this.numBlocks);
+				for (int r = 0; r < this.numBlocks; r++){
+					int a = (start + r) % this.numBlocks;
+					if (rowBusy[a])
+						continue;
+					long[] pending = pendingBlocks[a];
+					for (int w = 0; w < pending.length; w++){
+						long candidates = pending[w] & colFree[w];
+						if (candidates != 0){
+							int b = (w << 6) + Long.numberOfTrailingZeros(candidates);
+							pending[w] &= ~(1L << b);
+							colFree[w] &= ~(1L << b);
+							rowBusy[a] = true;
+							numPendingBlocks--;
+							return a * this.numBlocks + b;
+						}
+					}
+				}
+				schedLock.wait();
 			}
-		}		
+		}
 	}
 
 	// -------------------------------------
+	// release row and column of a finished block
 	// -------------------------------------
-	private Double sigmoid(Double x){
-		if( x > 0 ){
-			return 1.0 / (1.0 + Math.exp(-x));
-		} else if (x <= 0) {
-			return Math.exp(x) / (1.0 + Math.exp(x));
-		} else {
-			System.out.println("Sigmoid value error ...");
-			return 0.0;
+	private void blockDone(int k){
+		int a = k / this.numBlocks;
+		int b = k % this.numBlocks;
+		synchronized (schedLock) {
+			rowBusy[a] = false;
+			colFree[b >>> 6] |= 1L << b;
+			schedLock.notifyAll();
 		}
-	}	
-	
-	// -----------------------------------------------
-	// evaluate a single (user,item) test pair for AUC
-	// -----------------------------------------------	
-	public double getAUCUserItem(Integer user, Integer item){
+	}
+
+	private void stopScheduler(){
+		synchronized (schedLock) {
+			schedulerStopped = true;
+			schedLock.notifyAll();
+		}
+	}
+
+	// -------------------------------------
+	// number of blocks per dimension (before learn), 0: numProcs
+	// more blocks than numProcs enables work-stealing scheduling
+	// -------------------------------------
+	public void setNumBlocks(int numBlocks){
+		this.numBlocksRequested = numBlocks;
+	}
+
+	// -------------------------------------
+	// block partitioning strategy (before learn)
+	// -------------------------------------
+	public void setPartitionStrategy(PartitionStrategy partitionStrategy){
+		this.partitionStrategy = partitionStrategy;
+	}
+
+	// -------------------------------------
+	// -------------------------------------
+	private void updateParallel(int a, int b, long id){
 	
-		Double estimatedRankingScoreItem = MatrixOps.dot(P[user],Q[item]);
-		Integer numNoInversions = 0;
-		Integer numEligibleItems = 0;
+		// System.out.println("Running thread " + id + " ...");
 		
-		for(int i=0; i<this.numItems; i++){
-			if( ( ! BPlus.get(user).contains(i) ) && item != i ) {
-				numEligibleItems++;
-				if ( estimatedRankingScoreItem > MatrixOps.dot(P[user],Q[i]) ) {
-					numNoInversions++;
-				}
-			}		
+		// update model
+		int end = blockOffsets[a*this.numBlocks+b+1];
+		if (chunkOffsets[b+1] == chunkOffsets[b]){
+			return;
 		}
+		TrainingMetrics.ThreadMetrics m = metrics.thread((int) id);
+		java.util.concurrent.ThreadLocalRandom localRandom = java.util.concurrent.ThreadLocalRandom.current();
+		MiniBatch batch = newBatch();
+		for (int k = blockOffsets[a*this.numBlocks+b]; k < end; k++){
+		
+			int user = this.data.getUserId(blockOrder[k]);
+			int posItem = this.data.getItemId(blockOrder[k]);
+			
+			if (batch != null){
+				batch.add(user, posItem, b, P, Q, sampler, stepSizes, this.eta, this.lambP, this.lambQPlus, this.lambQMinus, localRandom, m);
+				continue;
+			}
+			
+			// Integer negItem = t.getItemId2();
+			// sample negative item
+			int negItem = sampler.sample(user, b, localRandom, m);
+			if( negItem == -1 ){
+				continue;
+			}
 		
-		return 1.0 * numNoInversions / numEligibleItems;
+			m.updated(update(user, posItem, negItem));
+		}		
+		if (batch != null){
+			batch.flush(P, Q, stepSizes, this.eta, this.lambP, this.lambQPlus, this.lambQMinus, m);
+		}
 	}
-
+	
 }
 
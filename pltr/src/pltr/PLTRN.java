@@ -7,27 +7,25 @@ package pltr;
 	
 	In this version:
 	- Loss function and sampling are based on BPR-MF (Rendle et al., 2009)
+	- Optional sharded mode: every thread streams through its own shard of 
+	  the data (users are split between shards), in shuffled user-grouped runs
 
 	tested with Java 1.7
 	@author: M. Yagci
  */
 import java.util.*;
 
-public class PLTRN implements PLTR {
-
-	int numUsers;
-	int numItems;
-	int numLatentFactors;
-	double[][] P; // user component matrix
-	double[][] Q; // item component matrix
-	double lambP; // regularization parameter
-	double lambQPlus; // regularization parameter
-	double lambQMinus; // regularization parameter
-	double eta; // learning rate
-	int numEpochs; // number of training epochs
-	Map<Integer,Set<Integer>> BPlus; // user histories
-	ArrayList<Tuple> data; // training data 
+public class PLTRN extends FactorModel {
+
+	InteractionSet data; // training data
 	Integer numProcs; // number of processors
+	
+	// Variables for sharded mode
+	boolean sharded = false;
+	int runLength = 16; // max. interactions of one user in a run
+	int[][] shardUsers; // per thread: user column of its shard (in run order)
+	int[][] shardItems; // per thread: item column of its shard (in run order)
+	int[][] shardRuns; // per thread: run offsets in its shard
 
 	// -------------------------------------
 	// Constructor
@@ -42,45 +40,111 @@ public class PLTRN implements PLTR {
 					double lambQMinus,
 					double eta,
 					int numEpochs) {
-		
-		this.numUsers = numUsers;
-		this.numItems = numItems;
-		this.numLatentFactors = numLatentFactors;
-		this.P = MatrixOps.gaussianMatrixBuilder(mu, sigma, numUsers, numLatentFactors);
-		this.Q = MatrixOps.gaussianMatrixBuilder(mu, sigma, numItems, numLatentFactors);
-		this.lambP = lambP;
-		this.lambQPlus = lambQPlus;
-		this.lambQMinus = lambQMinus;
-		this.eta = eta;
-		this.numEpochs = numEpochs;
-		this.BPlus = new HashMap<Integer,Set<Integer>>();
+		this(numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs, FactorStorage.HEAP);
+	}
+
+	// -------------------------------------
+	// Constructor with explicit factor storage
+	// -------------------------------------
+	public PLTRN(	int numUsers, 
+					int numItems,
+					int numLatentFactors, 
+					double mu,
+					double sigma,
+					double lambP,
+					double lambQPlus,
+					double lambQMinus,
+					double eta,
+					int numEpochs,
+					FactorStorage storage) {
+		this(numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs, storage,
+			FactorPrecision.DOUBLE, ScoringPrecision.EXACT);
+	}
+
+	// -------------------------------------
+	// Constructor with explicit factor storage and precision
+	// -------------------------------------
+	public PLTRN(	int numUsers, 
+					int numItems,
+					int numLatentFactors, 
+					double mu,
+					double sigma,
+					double lambP,
+					double lambQPlus,
+					double lambQMinus,
+					double eta,
+					int numEpochs,
+					FactorStorage storage,
+					FactorPrecision precision,
+					ScoringPrecision scoringPrecision) {
+		super("PLTRN", ModelFile.ALGORITHM_PLTRN, numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs,
+			storage, precision, scoringPrecision);
+	}
+
+	// -------------------------------------
+	// Constructor from existing factors (model file)
+	// -------------------------------------
+	PLTRN(	FactorMatrix P,
+		FactorMatrix Q,
+		double lambP,
+		double lambQPlus,
+		double lambQMinus,
+		double eta,
+		int numEpochs,
+		int epochsDone,
+		ScoringPrecision scoringPrecision,
+		FactorMatrix PScore,
+		FactorMatrix QScore,
+		RowStepSizes stepSizes) {
+		super("PLTRN", ModelFile.ALGORITHM_PLTRN, P, Q, lambP, lambQPlus, lambQMinus, eta, numEpochs, epochsDone, scoringPrecision,
+			PScore, QScore, stepSizes);
 	}
 	
 	// -------------------------------------
-	// learn model (with uniform sampling)
+	// learn model from columnar data
 	// -------------------------------------
-	public void learn(ArrayList<Tuple> data, Integer numProcs) throws InterruptedException{
+	public void learn(InteractionSet data, Integer numProcs) throws InterruptedException{
 	
 		this.data = data;
 		this.numProcs = numProcs;
 		
-		// build user histories in the first pass
-		for( Tuple user_item : data){
-			Integer user = user_item.getUserId();
-			Integer item = user_item.getItemId();
-			
-			if( ! BPlus.containsKey(user) ){
-				BPlus.put(user, new HashSet<Integer>());
-			}
-			BPlus.get(user).add(item);
+		// build user histories in the first pass (unless shared)
+		if( BPlus == null ){
+			BPlus = UserHistory.build(data, this.numUsers, this.numItems, numProcs);
+		}
+		// a finished checkpoint is not trained again
+		if( alreadyTrained() ){
+			return;
+		}
+		sampler.init(data, BPlus, P, Q);
+		stepSizes = RowStepSizes.resume(stepSizes, stepSizeRule, this.numUsers, this.numItems);
+		
+		if( this.sharded ){
+			buildShards();
+		}
+		metrics.start(numProcs, 0);
+		
+		// resume after epochsDone of a checkpoint
+		if( epochsDone <= 0 ){
+			epochsDone = 0;
+		}
+		lastCheckpoint = epochsDone;
+		final int startEpochsDone = epochsDone;
+		if( earlyStopping != null ){
+			earlyStopping.start();
 		}
 		
 		// parallel processing coordination		
 		ArrayList<Thread> threadList = new ArrayList<Thread>();
 		for(int i=0; i<numProcs; i++){
+			final int t = i;
 			threadList.add ( new Thread(new Runnable() {
 				public void run(){
-					updateParallel();
+					if( sharded ){
+						updateSharded(t, startEpochsDone);
+					} else {
+						updateParallel(t, startEpochsDone / PLTRN.this.numProcs);
+					}
 				}
 			}) );  
 			threadList.get(i).start();		
@@ -88,89 +152,254 @@ public class PLTRN implements PLTR {
 		for(int i=0; i<numProcs; i++){
 			threadList.get(i).join();		
 		}
+		if( earlyStopping != null ){
+			earlyStopping.finish();
+		}
+		checkpoint(true);
+		refreshScoringFactors();
 	}
 	
+	// -------------------------------------
+	// sharded mode (before learn): every thread streams through its own
+	// shard in shuffled runs of at most runLength interactions of one user
+	// -------------------------------------
+	public void setSharded(boolean sharded){
+		this.sharded = sharded;
+	}
+
+	public void setRunLength(int runLength){
+		if( runLength < 1 ){
+			throw new IllegalArgumentException("Run length must be positive");
+		}
+		this.runLength = runLength;
+	}
+
 	// -------------------------------------
 	// -------------------------------------
-	private void updateParallel(){
+	private void updateParallel(int t, int startEpoch){
 		
 		// update model
-		int epoch = 0;
+		TrainingMetrics.ThreadMetrics m = metrics.thread(t);
+		MiniBatch batch = newBatch();
+		int epoch = startEpoch;
 		int lenData = data.size();
-		for( int k=0; k<this.numEpochs/numProcs; k++ ){
+		for( int k=startEpoch; k<this.numEpochs/numProcs; k++ ){
+			if( earlyStopping != null && earlyStopping.shouldStop() ){
+				break;
+			}
 			System.out.println("epoch: " + epoch);
+			long epochStart = System.nanoTime();
 			for( int j=0; j<lenData; j++ ){
 				// sample with repetition
-				Integer rnd = java.util.concurrent.ThreadLocalRandom.current().nextInt(0, lenData);
-				Integer user = data.get(rnd).getUserId();
-				Integer posItem = data.get(rnd).getItemId();
-				Integer negItem = -1;
-				int numTrials = 0;
-				while( numTrials < 10 ){
-					Integer rnd2 = java.util.concurrent.ThreadLocalRandom.current().nextInt(0, this.numItems);
-					if( ! BPlus.get(user).contains(rnd2)){
-						negItem = rnd2;
-						break;
-					}
-					numTrials += 1;
+				int rnd = java.util.concurrent.ThreadLocalRandom.current().nextInt(0, lenData);
+				int user = data.getUserId(rnd);
+				int posItem = data.getItemId(rnd);
+				if( batch != null ){
+					batch.add(user, posItem, 0, P, Q, sampler, stepSizes, this.eta, this.lambP, this.lambQPlus, this.lambQMinus,
+						java.util.concurrent.ThreadLocalRandom.current(), m);
+					continue;
 				}
+				int negItem = sampler.sample(user, 0, java.util.concurrent.ThreadLocalRandom.current(), m);
 				if( negItem != -1 ){
-					
-					double delta = 1.0 - sigmoid( MatrixOps.diffDot(P[user], Q[posItem], Q[negItem]) );
-		
-					for(int f=0; f<this.numLatentFactors; f++){
-						P[user][f] += this.eta * 
-						(delta * (Q[posItem][f] - Q[negItem][f]) - this.lambP * P[user][f]);
-					}
-		
-					for(int f=0; f<this.numLatentFactors; f++){
-						Q[posItem][f] += this.eta * 
-						(delta * P[user][f] - this.lambQPlus * Q[posItem][f]);
-					}
-		
-					for(int f=0; f<this.numLatentFactors; f++){
-						Q[negItem][f] += this.eta * 
-						(delta * -1.0*P[user][f] - this.lambQMinus * Q[negItem][f]);
-					}
+					m.updated(update(user, posItem, negItem));
 				}				
 			}
+			if( batch != null ){
+				batch.flush(P, Q, stepSizes, this.eta, this.lambP, this.lambQPlus, this.lambQMinus, m);
+			}
+			m.busyNanos += System.nanoTime() - epochStart;
+			if( t == 0 ){
+				// all threads together made numProcs passes (snapshot is not synchronized)
+				metrics.epochDone(epoch);
+				if( earlyStopping != null ){
+					earlyStopping.epochDone(epoch, P, Q, BPlus);
+				}
+				epochsDone = (epoch + 1) * numProcs;
+				checkpoint(false);
+			}
 			epoch += 1;	
 		}
 	}
 
 	// -------------------------------------
+	// split data into one shard per thread: users in random order are
+	// cut into ranges of equal numbers of interactions, and every shard
+	// keeps its users' interactions contiguous, in runs of at most runLength
 	// -------------------------------------
-	private double sigmoid(double x){
-		if( x > 0 ){
-			return 1.0 / (1.0 + Math.exp(-x));
-		} else if (x <= 0) {
-			return Math.exp(x) / (1.0 + Math.exp(x));
-		} else {
-			System.out.println("Sigmoid value error ...");
-			return 0.0;
+	private void buildShards() throws InterruptedException {
+		final int lenData = data.size();
+		Random random = new Random();
+
+		// data indices grouped by user (counting sort)
+		final int[] userOffsets = new int[this.numUsers+1];
+		for( int i=0; i<lenData; i++ ){
+			userOffsets[data.getUserId(i)+1]++;
+		}
+		for( int u=0; u<this.numUsers; u++ ){
+			userOffsets[u+1] += userOffsets[u];
 		}
+		final int[] userData = new int[lenData];
+		int[] cursor = Arrays.copyOf(userOffsets, this.numUsers);
+		for( int i=0; i<lenData; i++ ){
+			userData[cursor[data.getUserId(i)]++] = i;
+		}
+		cursor = null;
+
+		// users in random order, cut into balanced ranges
+		final int[] userOrder = new int[this.numUsers];
+		for( int u=0; u<this.numUsers; u++ ){
+			userOrder[u] = u;
+		}
+		for( int i=this.numUsers-1; i>0; i-- ){
+			int index = random.nextInt(i + 1);
+			int temp = userOrder[index];
+			userOrder[index] = userOrder[i];
+			userOrder[i] = temp;
+		}
+		final int[] shardStart = new int[numProcs+1]; // ranges of userOrder
+		long cumulative = 0;
+		int shard = 0;
+		for( int k=0; k<this.numUsers; k++ ){
+			int u = userOrder[k];
+			while( shard < numProcs && cumulative >= (long) lenData * shard / numProcs ){
+				shardStart[shard++] = k;
+			}
+			cumulative += userOffsets[u+1] - userOffsets[u];
+		}
+		while( shard <= numProcs ){
+			shardStart[shard++] = this.numUsers;
+		}
+
+		// fill shards in parallel
+		shardUsers = new int[numProcs][];
+		shardItems = new int[numProcs][];
+		shardRuns = new int[numProcs][];
+		ParallelOps.runRanges(numProcs, numProcs, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				for( int t=from; t<to; t++ ){
+					int size = 0;
+					int numRuns = 0;
+					for( int k=shardStart[t]; k<shardStart[t+1]; k++ ){
+						int degree = userOffsets[userOrder[k]+1] - userOffsets[userOrder[k]];
+						size += degree;
+						numRuns += (degree + runLength - 1) / runLength;
+					}
+					int[] users = new int[size];
+					int[] items = new int[size];
+					int[] runs = new int[numRuns+1];
+					int n = 0;
+					int r = 0;
+					for( int k=shardStart[t]; k<shardStart[t+1]; k++ ){
+						int u = userOrder[k];
+						for( int j=userOffsets[u]; j<userOffsets[u+1]; j++ ){
+							if( (j - userOffsets[u]) % runLength == 0 ){
+								runs[r++] = n;
+							}
+							users[n] = u;
+							items[n] = data.getItemId(userData[j]);
+							n++;
+						}
+					}
+					runs[r] = n;
+					shardUsers[t] = users;
+					shardItems[t] = items;
+					shardRuns[t] = runs;
+				}
+			}
+		});
 	}
-	
-	// -----------------------------------------------
-	// evaluate a single (user,item) test pair for AUC
-	// -----------------------------------------------	
-	public double getAUCUserItem(Integer user, Integer item){
-	
-		Double estimatedRankingScoreItem = MatrixOps.dot(P[user],Q[item]);
-		Integer numNoInversions = 0;
-		Integer numEligibleItems = 0;
+
+	// -------------------------------------
+	// epochs over the shard of thread t
+	// -------------------------------------
+	private void updateSharded(int t, int startEpoch){
 		
-		for(int i=0; i<this.numItems; i++){
-			if( ( ! BPlus.get(user).contains(i) ) && item != i ) {
-				numEligibleItems++;
-				if ( estimatedRankingScoreItem > MatrixOps.dot(P[user],Q[i]) ) {
-					numNoInversions++;
-				}
-			}		
+		java.util.concurrent.ThreadLocalRandom random = java.util.concurrent.ThreadLocalRandom.current();
+		TrainingMetrics.ThreadMetrics m = metrics.thread(t);
+		MiniBatch batch = newBatch();
+		int[] users = shardUsers[t];
+		int[] items = shardItems[t];
+		int[] runs = shardRuns[t];
+		int numRuns = runs.length - 1;
+		int size = users.length;
+		
+		// second buffer for reordering runs
+		int[] usersNext = new int[size];
+		int[] itemsNext = new int[size];
+		int[] runsNext = new int[numRuns+1];
+		int[] runOrder = new int[numRuns];
+		for( int r=0; r<numRuns; r++ ){
+			runOrder[r] = r;
 		}
 		
-		return 1.0 * numNoInversions / numEligibleItems;
+		for( int epoch=startEpoch; epoch<this.numEpochs; epoch++ ){
+			if( earlyStopping != null && earlyStopping.shouldStop() ){
+				break;
+			}
+			System.out.println("epoch: " + epoch);
+			long epochStart = System.nanoTime();
+			
+			// shuffle runs, and interactions within each run
+			for( int i=numRuns-1; i>0; i-- ){
+				int index = random.nextInt(i + 1);
+				int temp = runOrder[index];
+				runOrder[index] = runOrder[i];
+				runOrder[i] = temp;
+			}
+			int n = 0;
+			for( int r=0; r<numRuns; r++ ){
+				int start = runs[runOrder[r]];
+				int len = runs[runOrder[r]+1] - start;
+				runsNext[r] = n;
+				System.arraycopy(users, start, usersNext, n, len);
+				System.arraycopy(items, start, itemsNext, n, len);
+				for( int i=len-1; i>0; i-- ){
+					int index = n + random.nextInt(i + 1);
+					int temp = itemsNext[index];
+					itemsNext[index] = itemsNext[n+i];
+					itemsNext[n+i] = temp;
+				}
+				n += len;
+			}
+			runsNext[numRuns] = n;
+			int[] temp = users; users = usersNext; usersNext = temp;
+			temp = items; items = itemsNext; itemsNext = temp;
+			temp = runs; runs = runsNext; runsNext = temp;
+			for( int r=0; r<numRuns; r++ ){
+				runOrder[r] = r;
+			}
+			
+			// stream through the shard
+			for( int j=0; j<size; j++ ){
+				int user = users[j];
+				int posItem = items[j];
+				if( batch != null ){
+					batch.add(user, posItem, 0, P, Q, sampler, stepSizes, this.eta, this.lambP, this.lambQPlus, this.lambQMinus, random, m);
+					continue;
+				}
+				int negItem = sampler.sample(user, 0, random, m);
+				if( negItem != -1 ){
+					m.updated(update(user, posItem, negItem));
+				}
+			}
+			if( batch != null ){
+				batch.flush(P, Q, stepSizes, this.eta, this.lambP, this.lambQPlus, this.lambQMinus, m);
+			}
+			m.busyNanos += System.nanoTime() - epochStart;
+			if( t == 0 ){
+				// all shards together made one pass (snapshot is not synchronized)
+				metrics.epochDone(epoch);
+				if( earlyStopping != null ){
+					earlyStopping.epochDone(epoch, P, Q, BPlus);
+				}
+				epochsDone = epoch + 1;
+				checkpoint(false);
+			}
+		}
+		shardUsers[t] = users;
+		shardItems[t] = items;
+		shardRuns[t] = runs;
 	}
-	
+
 }
 
@@ -0,0 +1,55 @@
+package pltr;
+
+/*
+	Parallel execution utility
+ */
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class ParallelOps {
+
+	// -------------------------------------
+	// work on a range [from,to)
+	// -------------------------------------
+	public interface RangeTask {
+		void run(int from, int to);
+	}
+
+	// -------------------------------------
+	// run task on [0,n) split into numThreads equal ranges, the first
+	// exception of a range is rethrown after all ranges are done
+	// -------------------------------------
+	public static void runRanges(int numThreads, final int n, final RangeTask task) throws InterruptedException {
+		if( numThreads <= 1 || n < numThreads ){
+			task.run(0, n);
+			return;
+		}
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		ArrayList<Thread> threadList = new ArrayList<Thread>();
+		for(int i=0; i<numThreads; i++){
+			final int from = (int)((long) n * i / numThreads);
+			final int to = (int)((long) n * (i+1) / numThreads);
+			threadList.add ( new Thread(new Runnable() {
+				public void run(){
+					try {
+						task.run(from, to);
+					} catch (Throwable t) {
+						error.compareAndSet(null, t);
+					}
+				}
+			}) );
+			threadList.get(i).start();
+		}
+		for(int i=0; i<numThreads; i++){
+			threadList.get(i).join();
+		}
+		Throwable t = error.get();
+		if( t instanceof Error ){
+			throw (Error) t;
+		}
+		if( t != null ){
+			throw new RuntimeException("Parallel task failed: " + t, t);
+		}
+	}
+	
+}
@@ -0,0 +1,13 @@
+package pltr;
+
+/*
+	Assignment of users and items to blocks in PLtR-B
+
+	UNIFORM:  equal numbers of users (items) per block, by a random permutation
+	BALANCED: equal numbers of interactions per block, by greedy bin-packing
+	          of users (items) in random order, weighted by their degree
+ */
+public enum PartitionStrategy {
+	UNIFORM,
+	BALANCED
+}
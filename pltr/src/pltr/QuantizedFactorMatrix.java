@@ -0,0 +1,163 @@
+package pltr;
+
+/*
+	Read-only, quantized copy of a factor matrix for scoring
+
+	INT8: value = q * scale[row], q in [-127,127], scale = max|row| / 127
+	BF16: upper 16 bits of the float value (rounded to nearest even)
+	
+	Rows are kept in pages of whole rows (no 2GB buffer limit), either
+	on the heap (quantized from a trained matrix) or mapped from the
+	scoring section of a model file.
+ */
+import java.nio.*;
+
+public final class QuantizedFactorMatrix extends FactorMatrix {
+
+	static final int MAX_PAGE_BYTES = 1 << 30;
+
+	final ScoringPrecision precision;
+	final int rowsPerPage;
+	ByteBuffer[] int8Pages; // INT8 only
+	ShortBuffer[] bf16Pages; // BF16 only
+	float[] scales; // INT8 only, per row
+
+	// -------------------------------------
+	// Constructor (quantize a trained matrix)
+	// -------------------------------------
+	public QuantizedFactorMatrix(FactorMatrix matrix, ScoringPrecision precision){
+		super(matrix.numRows, matrix.numCols, bytesPerValue(precision));
+		this.precision = precision;
+		this.rowsPerPage = rowsPerPage(stride, bytesPerValue(precision));
+		int numPages = (numRows + rowsPerPage - 1) / rowsPerPage;
+
+		if( precision == ScoringPrecision.INT8 ){
+			int8Pages = new ByteBuffer[numPages];
+			scales = new float[numRows];
+			for( int p=0; p<numPages; p++ ){
+				int8Pages[p] = ByteBuffer.allocate(Math.min(rowsPerPage, numRows - p * rowsPerPage) * stride);
+			}
+			for( int r=0; r<numRows; r++ ){
+				float scale = int8Scale(matrix, r);
+				scales[r] = scale;
+				ByteBuffer page = int8Pages[r / rowsPerPage];
+				int off = (r % rowsPerPage) * stride;
+				for( int f=0; f<numCols; f++ ){
+					page.put(off+f, toInt8(matrix.get(r, f), scale));
+				}
+			}
+		} else {
+			bf16Pages = new ShortBuffer[numPages];
+			for( int p=0; p<numPages; p++ ){
+				bf16Pages[p] = ShortBuffer.allocate(Math.min(rowsPerPage, numRows - p * rowsPerPage) * stride);
+			}
+			for( int r=0; r<numRows; r++ ){
+				ShortBuffer page = bf16Pages[r / rowsPerPage];
+				int off = (r % rowsPerPage) * stride;
+				for( int f=0; f<numCols; f++ ){
+					page.put(off+f, toBf16((float) matrix.get(r, f)));
+				}
+			}
+		}
+	}
+
+	// -------------------------------------
+	// Constructor (pages of a model file, see ModelFile)
+	// -------------------------------------
+	QuantizedFactorMatrix(int numRows, int numCols, ByteBuffer[] int8Pages, float[] scales){
+		super(numRows, numCols, 1);
+		this.precision = ScoringPrecision.INT8;
+		this.rowsPerPage = rowsPerPage(stride, 1);
+		this.int8Pages = int8Pages;
+		this.scales = scales;
+	}
+
+	QuantizedFactorMatrix(int numRows, int numCols, ShortBuffer[] bf16Pages){
+		super(numRows, numCols, 2);
+		this.precision = ScoringPrecision.BF16;
+		this.rowsPerPage = rowsPerPage(stride, 2);
+		this.bf16Pages = bf16Pages;
+	}
+
+	static int bytesPerValue(ScoringPrecision precision){
+		switch (precision) {
+			case INT8:
+				return 1;
+			case BF16:
+				return 2;
+			default:
+				throw new IllegalArgumentException("Invalid quantized precision: " + precision);
+		}
+	}
+
+	static int rowsPerPage(int stride, int bytesPerValue){
+		return Math.max(1, MAX_PAGE_BYTES / (bytesPerValue * stride));
+	}
+
+	// scale of an INT8 row
+	static float int8Scale(FactorMatrix matrix, int row){
+		double maxAbs = 0.0;
+		for( int f=0; f<matrix.numCols; f++ ){
+			maxAbs = Math.max(maxAbs, Math.abs(matrix.get(row, f)));
+		}
+		return (float)(maxAbs / 127.0);
+	}
+
+	static byte toInt8(double value, float scale){
+		return (scale == 0.0f) ? 0 : (byte) Math.round(value / scale);
+	}
+
+	static short toBf16(float value){
+		int bits = Float.floatToRawIntBits(value);
+		if( Float.isNaN(value) ){
+			return (short)((bits >>> 16) | 0x40);
+		}
+		int rounding = 0x7FFF + ((bits >>> 16) & 1);
+		return (short)((bits + rounding) >>> 16);
+	}
+
+	static float fromBf16(short value){
+		return Float.intBitsToFloat(value << 16);
+	}
+
+	public ScoringPrecision getPrecision(){
+		return precision;
+	}
+
+	public double get(int row, int col){
+		int off = (row % rowsPerPage) * stride + col;
+		if( int8Pages != null ){
+			return int8Pages[row / rowsPerPage].get(off) * scales[row];
+		}
+		return fromBf16(bf16Pages[row / rowsPerPage].get(off));
+	}
+
+	public void set(int row, int col, double value){
+		throw new UnsupportedOperationException("Quantized factor matrix is read-only");
+	}
+
+	public double dot(int row, FactorMatrix other, int otherRow){
+		if( !(other instanceof QuantizedFactorMatrix) || ((QuantizedFactorMatrix) other).precision != precision ){
+			return super.dot(row, other, otherRow);
+		}
+		QuantizedFactorMatrix y = (QuantizedFactorMatrix) other;
+		int xOff = (row % rowsPerPage) * stride;
+		int yOff = (otherRow % y.rowsPerPage) * y.stride;
+		if( int8Pages != null ){
+			ByteBuffer xPage = int8Pages[row / rowsPerPage];
+			ByteBuffer yPage = y.int8Pages[otherRow / y.rowsPerPage];
+			int sum = 0;
+			for( int f=0; f<numCols; f++ ){
+				sum += xPage.get(xOff+f) * yPage.get(yOff+f);
+			}
+			return (double) sum * scales[row] * y.scales[otherRow];
+		}
+		ShortBuffer xPage = bf16Pages[row / rowsPerPage];
+		ShortBuffer yPage = y.bf16Pages[otherRow / y.rowsPerPage];
+		float sum = 0.0f;
+		for( int f=0; f<numCols; f++ ){
+			sum += fromBf16(xPage.get(xOff+f)) * fromBf16(yPage.get(yOff+f));
+		}
+		return sum;
+	}
+}
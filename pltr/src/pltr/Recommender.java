@@ -0,0 +1,269 @@
+package pltr;
+
+/*
+	Top-K recommendation
+
+	Scores of (user, item) pairs are computed on user tiles x item
+	tiles, so an item tile stays in cache while it is scored against
+	all users of the tile. Each user keeps a bounded min-heap of its
+	best K items, items in the user history (BPlus) are skipped.
+
+	The bulk export computes batches of users in parallel while the
+	previous batch is written to disk.
+	Output (tab-delimited): <user,item,score>, K lines per user in
+	descending score order. With id dictionaries, users and items are
+	written as their raw ids.
+ */
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+public class Recommender {
+
+	static final int USER_TILE = 64;
+	static final int ITEM_TILE = 1024;
+	static final int USERS_PER_BATCH = 1 << 14;
+
+	// -------------------------------------
+	// top-K items of a user (descending score)
+	// -------------------------------------
+	public static int[] recommendTopK(PLTR model, int user, int k){
+		FactorMatrix P = model.getUserFactors();
+		FactorMatrix Q = model.getItemFactors();
+		if( user < 0 || user >= P.getNumRows() ){
+			throw new IllegalArgumentException("Invalid user: " + user + " !!!");
+		}
+		if( k <= 0 ){
+			throw new IllegalArgumentException("Invalid k: " + k + " !!!");
+		}
+		int[] items = new int[k];
+		double[] scores = new double[k];
+		int size = topK(P, Q, model.getUserHistory(), user, 0, Q.getNumRows(), items, scores, 0, k, 0);
+		size = sortHeap(items, scores, 0, size);
+		return Arrays.copyOf(items, size);
+	}
+
+	// -------------------------------------
+	// top-K items of all users, written to outFile
+	// -------------------------------------
+	public static void exportTopK(PLTR model, int k, String outFile, int numProcs) throws IOException, InterruptedException {
+		exportTopK(model, k, outFile, numProcs, null, null);
+	}
+
+	// -------------------------------------
+	// top-K items of all users with raw ids (userIds, itemIds null: dense ids),
+	// written to outFile
+	// -------------------------------------
+	public static void exportTopK(	PLTR model, int k, String outFile, int numProcs,
+									final IdDictionary userIds, final IdDictionary itemIds) throws IOException, InterruptedException {
+		if( k <= 0 ){
+			throw new IllegalArgumentException("Invalid k: " + k + " !!!");
+		}
+		final FactorMatrix P = model.getUserFactors();
+		final FactorMatrix Q = model.getItemFactors();
+		final UserHistory BPlus = model.getUserHistory();
+		final int numUsers = P.getNumRows();
+		final int numItems = Q.getNumRows();
+		final int K = Math.min(k, numItems);
+		final int batchSize = Math.min(USERS_PER_BATCH, Math.max(1, numUsers));
+
+		// two result buffers: one is computed while the other is written
+		final int[][] items = { new int[batchSize * K], new int[batchSize * K] };
+		final double[][] scores = { new double[batchSize * K], new double[batchSize * K] };
+		final int[][] sizes = { new int[batchSize], new int[batchSize] };
+		final IOException[] errors = new IOException[1];
+
+		final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFile), StandardCharsets.US_ASCII), 1 << 20);
+		Thread writer = null;
+		try {
+			int buffer = 0;
+			for( int batchStart=0; batchStart<numUsers; batchStart+=batchSize ){
+				final int firstUser = batchStart;
+				final int lastUser = Math.min(numUsers, batchStart + batchSize);
+				final int[] batchItems = items[buffer];
+				final double[] batchScores = scores[buffer];
+				final int[] batchSizes = sizes[buffer];
+
+				// compute user tiles of the batch in parallel
+				int numTiles = (lastUser - firstUser + USER_TILE - 1) / USER_TILE;
+				ParallelOps.runRanges(numProcs, numTiles, new ParallelOps.RangeTask() {
+					public void run(int from, int to){
+						for( int tile=from; tile<to; tile++ ){
+							int u0 = firstUser + tile * USER_TILE;
+							int u1 = Math.min(lastUser, u0 + USER_TILE);
+							scoreTile(P, Q, BPlus, u0, u1, numItems, K, batchItems, batchScores, batchSizes, firstUser);
+						}
+					}
+				});
+
+				// write this batch while the next one is computed
+				if( writer != null ){
+					writer.join();
+				}
+				if( errors[0] != null ){
+					throw errors[0];
+				}
+				writer = new Thread(new Runnable() {
+					public void run(){
+						try {
+							writeBatch(out, firstUser, lastUser, K, batchItems, batchScores, batchSizes, userIds, itemIds);
+						} catch (IOException e) {
+							errors[0] = e;
+						}
+					}
+				}, "Recommender-writer");
+				writer.start();
+				buffer = 1 - buffer;
+			}
+			if( writer != null ){
+				writer.join();
+			}
+			if( errors[0] != null ){
+				throw errors[0];
+			}
+		} finally {
+			if( writer != null ){
+				writer.join();
+			}
+			out.close();
+		}
+	}
+
+	// -------------------------------------
+	// top-K of users [u0,u1) over all items, tile by tile
+	// -------------------------------------
+	static void scoreTile(	FactorMatrix P, FactorMatrix Q, UserHistory BPlus, int u0, int u1, int numItems, int K,
+							int[] items, double[] scores, int[] sizes, int firstUser){
+		for( int u=u0; u<u1; u++ ){
+			sizes[u - firstUser] = 0;
+		}
+		for( int i0=0; i0<numItems; i0+=ITEM_TILE ){
+			int i1 = Math.min(numItems, i0 + ITEM_TILE);
+			for( int u=u0; u<u1; u++ ){
+				int b = u - firstUser;
+				sizes[b] = topK(P, Q, BPlus, u, i0, i1, items, scores, b * K, K, sizes[b]);
+			}
+		}
+		for( int u=u0; u<u1; u++ ){
+			int b = u - firstUser;
+			sizes[b] = sortHeap(items, scores, b * K, sizes[b]);
+		}
+	}
+
+	// -------------------------------------
+	// push items [i0,i1) of a user into its min-heap at heap[base..base+K), returns the heap size
+	// -------------------------------------
+	static int topK(	FactorMatrix P, FactorMatrix Q, UserHistory BPlus, int user, int i0, int i1,
+						int[] items, double[] scores, int base, int K, int size){
+
+		// history items are sorted: skip them with a cursor instead of a lookup per item
+		int[] history = null;
+		int h = 0;
+		int hEnd = 0;
+		if( BPlus != null && user < BPlus.getNumUsers() ){
+			history = BPlus.getItems();
+			h = lowerBound(history, BPlus.start(user), BPlus.end(user), i0);
+			hEnd = BPlus.end(user);
+		}
+		for( int i=i0; i<i1; i++ ){
+			if( h < hEnd && history[h] == i ){
+				h++;
+				continue;
+			}
+			size = offer(items, scores, base, K, size, i, P.dot(user, Q, i));
+		}
+		return size;
+	}
+
+	private static int lowerBound(int[] a, int from, int to, int x){
+		while( from < to ){
+			int mid = (from + to) >>> 1;
+			if( a[mid] < x ){
+				from = mid + 1;
+			} else {
+				to = mid;
+			}
+		}
+		return from;
+	}
+
+	// -------------------------------------
+	// binary min-heap on parallel arrays
+	// -------------------------------------
+	static int offer(int[] items, double[] scores, int base, int K, int size, int item, double score){
+		if( size < K ){
+			items[base + size] = item;
+			scores[base + size] = score;
+			siftUp(items, scores, base, size);
+			return size + 1;
+		}
+		if( score > scores[base] ){
+			items[base] = item;
+			scores[base] = score;
+			siftDown(items, scores, base, size);
+		}
+		return size;
+	}
+
+	private static void siftUp(int[] items, double[] scores, int base, int pos){
+		while( pos > 0 ){
+			int parent = (pos - 1) >>> 1;
+			if( scores[base + parent] <= scores[base + pos] )
+				break;
+			swap(items, scores, base + parent, base + pos);
+			pos = parent;
+		}
+	}
+
+	private static void siftDown(int[] items, double[] scores, int base, int size){
+		int pos = 0;
+		while( true ){
+			int child = 2 * pos + 1;
+			if( child >= size )
+				break;
+			if( child + 1 < size && scores[base + child + 1] < scores[base + child] )
+				child++;
+			if( scores[base + pos] <= scores[base + child] )
+				break;
+			swap(items, scores, base + pos, base + child);
+			pos = child;
+		}
+	}
+
+	// heap sort in place: descending score order
+	static int sortHeap(int[] items, double[] scores, int base, int size){
+		for( int n=size-1; n>0; n-- ){
+			swap(items, scores, base, base + n);
+			siftDown(items, scores, base, n);
+		}
+		return size;
+	}
+
+	private static void swap(int[] items, double[] scores, int a, int b){
+		int ti = items[a];
+		items[a] = items[b];
+		items[b] = ti;
+		double ts = scores[a];
+		scores[a] = scores[b];
+		scores[b] = ts;
+	}
+
+	// -------------------------------------
+	// write users [firstUser,lastUser) of a batch
+	// -------------------------------------
+	private static void writeBatch(	Writer out, int firstUser, int lastUser, int K,
+									int[] items, double[] scores, int[] sizes,
+									IdDictionary userIds, IdDictionary itemIds) throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		for( int u=firstUser; u<lastUser; u++ ){
+			int b = u - firstUser;
+			long user = userIds != null ? userIds.rawId(u) : u;
+			for( int j=0; j<sizes[b]; j++ ){
+				int item = items[b * K + j];
+				line.setLength(0);
+				line.append(user).append('\t').append(itemIds != null ? itemIds.rawId(item) : item).append('\t').append((float) scores[b * K + j]).append('\n');
+				out.append(line);
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package pltr;
+
+/*
+	Per-row adaptive step sizes (see StepSizeRule)
+
+	One accumulator of squared gradients per user and per item, next to
+	P and Q. Updated without locks like the factors (hogwild), a lost
+	update only delays the decay of a step size. The accumulators are
+	saved with the model (ModelFile), so a resumed run continues with
+	the step sizes it stopped with.
+ */
+import java.util.*;
+
+public class RowStepSizes {
+
+	static final double BETA = 0.999; // decay of the second moment (ADAM)
+	static final double EPSILON = 1e-8;
+
+	StepSizeRule rule;
+	double[] userAcc; // squared gradients per user
+	double[] itemAcc; // squared gradients per item
+	int[] userSteps; // updates per user (ADAM bias correction)
+	int[] itemSteps; // updates per item
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public RowStepSizes(StepSizeRule rule, int numUsers, int numItems){
+		if( rule == StepSizeRule.CONSTANT ){
+			throw new IllegalArgumentException("Invalid step size rule !!!");
+		}
+		this.rule = rule;
+		this.userAcc = new double[numUsers];
+		this.itemAcc = new double[numItems];
+		if( rule == StepSizeRule.ADAM ){
+			this.userSteps = new int[numUsers];
+			this.itemSteps = new int[numItems];
+		}
+	}
+
+	// -------------------------------------
+	// Constructor (accumulators of a model file, steps null unless ADAM)
+	// -------------------------------------
+	RowStepSizes(StepSizeRule rule, double[] userAcc, double[] itemAcc, int[] userSteps, int[] itemSteps){
+		this.rule = rule;
+		this.userAcc = userAcc;
+		this.itemAcc = itemAcc;
+		this.userSteps = userSteps;
+		this.itemSteps = itemSteps;
+	}
+
+	// -------------------------------------
+	// side arrays of a rule (null: constant eta)
+	// -------------------------------------
+	public static RowStepSizes create(StepSizeRule rule, int numUsers, int numItems){
+		return (rule == StepSizeRule.CONSTANT) ? null : new RowStepSizes(rule, numUsers, numItems);
+	}
+
+	// -------------------------------------
+	// side arrays for a (resumed) run: the accumulators of the previous
+	// run are kept if the rule is the same (grown for new rows, which
+	// start from zero), else new ones are created
+	// -------------------------------------
+	public static RowStepSizes resume(RowStepSizes previous, StepSizeRule rule, int numUsers, int numItems){
+		if( previous == null || previous.rule != rule ){
+			return create(rule, numUsers, numItems);
+		}
+		previous.grow(numUsers, numItems);
+		return previous;
+	}
+
+	private void grow(int numUsers, int numItems){
+		if( numUsers > userAcc.length ){
+			userAcc = Arrays.copyOf(userAcc, numUsers);
+			if( userSteps != null )
+				userSteps = Arrays.copyOf(userSteps, numUsers);
+		}
+		if( numItems > itemAcc.length ){
+			itemAcc = Arrays.copyOf(itemAcc, numItems);
+			if( itemSteps != null )
+				itemSteps = Arrays.copyOf(itemSteps, numItems);
+		}
+	}
+
+	public StepSizeRule getRule(){
+		return rule;
+	}
+
+	// -------------------------------------
+	// BPR step with the step sizes of the three rows: one pass collects
+	// the dot products x_uij and the squared gradient norms are made
+	// of, then MatrixOps.bprUpdate applies the step
+	// -------------------------------------
+	public double bprStep(	FactorMatrix P, int user,
+							FactorMatrix Q, int posItem, int negItem,
+							double eta, double lambP, double lambQPlus, double lambQMinus ){
+		
+		int n = P.getNumCols();
+		double pp = 0.0;
+		double pi = 0.0;
+		double pj = 0.0;
+		double ii = 0.0;
+		double jj = 0.0;
+		double ij = 0.0;
+		if( P instanceof HeapFactorMatrix && Q instanceof HeapFactorMatrix ){
+			double[] p = ((HeapFactorMatrix) P).values;
+			double[] q = ((HeapFactorMatrix) Q).values;
+			int pOff = ((HeapFactorMatrix) P).offset(user);
+			int iOff = ((HeapFactorMatrix) Q).offset(posItem);
+			int jOff = ((HeapFactorMatrix) Q).offset(negItem);
+			for( int f=0; f<n; f++ ){
+				double pf = p[pOff+f];
+				double qi = q[iOff+f];
+				double qj = q[jOff+f];
+				pp += pf * pf;
+				pi += pf * qi;
+				pj += pf * qj;
+				ii += qi * qi;
+				jj += qj * qj;
+				ij += qi * qj;
+			}
+		} else {
+			for( int f=0; f<n; f++ ){
+				double pf = P.get(user, f);
+				double qi = Q.get(posItem, f);
+				double qj = Q.get(negItem, f);
+				pp += pf * pf;
+				pi += pf * qi;
+				pj += pf * qj;
+				ii += qi * qi;
+				jj += qj * qj;
+				ij += qi * qj;
+			}
+		}
+		double x = pi - pj;
+		double delta = 1.0 - MatrixOps.sigmoid(x);
+
+		// mean squared gradients of the rows, e.g. for the user
+		// |delta (q_i - q_j) - lambP p_u|^2 expanded into the dot products
+		double gu = delta * delta * (ii - 2.0 * ij + jj) - 2.0 * delta * lambP * x + lambP * lambP * pp;
+		double gi = delta * delta * pp - 2.0 * delta * lambQPlus * pi + lambQPlus * lambQPlus * ii;
+		double gj = delta * delta * pp + 2.0 * delta * lambQMinus * pj + lambQMinus * lambQMinus * jj;
+		double etaP = eta / stepScale(userAcc, userSteps, user, Math.max(0.0, gu) / n);
+		double etaQPlus = eta / stepScale(itemAcc, itemSteps, posItem, Math.max(0.0, gi) / n);
+		double etaQMinus = eta / stepScale(itemAcc, itemSteps, negItem, Math.max(0.0, gj) / n);
+		MatrixOps.bprUpdate(P, user, Q, posItem, negItem, delta, etaP, etaQPlus, etaQMinus, lambP, lambQPlus, lambQMinus);
+		return x;
+	}
+
+	// accumulate a squared gradient, returns the divisor of eta
+	private double stepScale(double[] acc, int[] steps, int row, double g2){
+		if( rule == StepSizeRule.ADAGRAD ){
+			double a = acc[row] + g2;
+			acc[row] = a;
+			return Math.sqrt(a) + EPSILON;
+		}
+		double a = BETA * acc[row] + (1.0 - BETA) * g2;
+		acc[row] = a;
+		int t = ++steps[row];
+		double correction = (t < 100000) ? 1.0 - Math.pow(BETA, t) : 1.0;
+		return Math.sqrt(a / correction) + EPSILON;
+	}
+
+}
@@ -0,0 +1,158 @@
+package pltr;
+
+/*
+	Scaling curves of SEQ, PLTRN and PLTRB on synthetic data
+
+	For every dataset size and numProcs, each algorithm is trained
+	from scratch (user histories are built once per dataset and not
+	timed). One CSV line per run:
+	algorithm, users, items, interactions, numProcs, seconds,
+	updates/sec (SGD updates done, skipped samples do not count),
+	speedup (vs. SEQ on the same dataset), parallel efficiency
+	(speedup / numProcs), peak heap (MB, total heap use sampled
+	during the run), direct memory (MB)
+ */
+import java.io.*;
+import java.lang.management.*;
+
+public class ScalingHarness {
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		// ------------------------------------
+		// Sweep parameters
+		// ------------------------------------
+		String csvFile = args.length > 0 ? args[0] : "scaling.csv";
+		int[][] sizes = { // users, items, interactions
+			{ 100000, 20000, 2000000 },
+			{ 1000000, 100000, 20000000 },
+		};
+		double userExponent = 0.8;
+		double itemExponent = 1.0;
+		int[] numProcsSweep = { 1, 2, 4, 8 };
+		String[] algorithms = { "SEQ", "PLTRN", "PLTRB" };
+		int numEpochs = 8; // multiple of every numProcs (PLTRN runs numEpochs/numProcs per thread)
+
+		Integer numLatentFactors = 20;
+		double mu = 0.0;
+		double sigma = 0.01;
+		double lambP = 0.0025;
+		double lambQPlus = 0.0025;
+		double lambQMinus = 0.00025;
+		double eta = 0.01;
+
+		// ------------------------------------
+		// Sweep
+		// ------------------------------------
+		PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(csvFile)));
+		try {
+			csv.println("algorithm,users,items,interactions,numProcs,seconds,updatesPerSec,speedup,efficiency,peakHeapMB,directMB");
+			int maxProcs = Runtime.getRuntime().availableProcessors();
+			for( int[] size : sizes ){
+				int numUsers = size[0];
+				int numItems = size[1];
+				System.out.println("generating " + size[2] + " interactions ...");
+				InteractionSet data = SyntheticData.generate(numUsers, numItems, size[2], userExponent, itemExponent, 1L, maxProcs);
+				UserHistory BPlus = UserHistory.build(data, numUsers, numItems, maxProcs);
+
+				double seqSeconds = Double.NaN;
+				for( String algorithm : algorithms ){
+					for( int numProcs : numProcsSweep ){
+						if( algorithm.equals("SEQ") && numProcs > 1 )
+							continue; // numProcs is neglected in SEQ
+						PLTR model = createModel(algorithm, numUsers, numItems, numLatentFactors, mu, sigma,
+							lambP, lambQPlus, lambQMinus, eta, numEpochs);
+						model.setUserHistory(BPlus);
+
+						System.gc();
+						HeapSampler heap = new HeapSampler();
+						heap.start();
+						long startTime = System.nanoTime();
+						model.learn(data, numProcs);
+						double seconds = (System.nanoTime() - startTime) / 1e9;
+						long peakHeap = heap.stop();
+						long updates = model.getMetrics().getUpdates();
+						if( algorithm.equals("SEQ") )
+							seqSeconds = seconds;
+
+						double speedup = seqSeconds / seconds;
+						csv.println(algorithm + "," + numUsers + "," + numItems + "," + data.size() + "," + numProcs + ","
+							+ seconds + "," + (long)(updates / seconds) + "," + speedup + "," + speedup / numProcs + ","
+							+ peakHeap / (1 << 20) + "," + directMemory() / (1 << 20));
+						csv.flush();
+					}
+				}
+			}
+		} finally {
+			csv.close();
+		}
+		System.out.println("wrote " + csvFile);
+	}
+
+	private static PLTR createModel(	String algorithm, int numUsers, int numItems, int numLatentFactors,
+										double mu, double sigma, double lambP, double lambQPlus, double lambQMinus,
+										double eta, int numEpochs){
+		switch (algorithm) {
+			case "SEQ":
+				return new BPR(numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs);
+			case "PLTRN":
+				return new PLTRN(numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs);
+			case "PLTRB":
+				return new PLTRB(numUsers, numItems, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs);
+			default:
+				throw new IllegalArgumentException("Invalid algorithm !!!");
+		}
+	}
+
+	// -------------------------------------
+	// high-water mark of the total heap use, sampled every few ms
+	// (the peaks of the single heap pools are reached at different
+	// times, their sum overstates the real high-water mark)
+	// -------------------------------------
+	static class HeapSampler implements Runnable {
+		static final long INTERVAL_MILLIS = 5;
+
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		volatile boolean stopped;
+		long peak;
+		Thread thread;
+
+		void start(){
+			peak = used();
+			thread = new Thread(this, "heap-sampler");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run(){
+			while( !stopped ){
+				peak = Math.max(peak, used());
+				try {
+					Thread.sleep(INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		long stop() throws InterruptedException {
+			stopped = true;
+			thread.interrupt();
+			thread.join();
+			return Math.max(peak, used());
+		}
+
+		long used(){
+			return memory.getHeapMemoryUsage().getUsed();
+		}
+	}
+
+	// direct buffers (off-heap factors, mapped files are not included)
+	private static long directMemory(){
+		for( BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class) ){
+			if( pool.getName().equals("direct") )
+				return pool.getMemoryUsed();
+		}
+		return 0;
+	}
+}
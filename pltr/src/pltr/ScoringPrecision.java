@@ -0,0 +1,15 @@
+package pltr;
+
+/*
+	Value type of the read-only factor copies used for scoring
+	(getAUCUserItem and recommendations), built after training
+
+	EXACT: score with the trained matrices
+	BF16:  16 bit brain floating point values
+	INT8:  8 bit integers with a scale factor per row
+ */
+public enum ScoringPrecision {
+	EXACT,
+	BF16,
+	INT8
+}
@@ -0,0 +1,19 @@
+package pltr;
+
+/*
+	Step sizes of the SGD updates
+
+	CONSTANT: eta for all rows
+	ADAGRAD:  eta / sqrt(sum of the squared gradients of the row)
+	ADAM:     eta / sqrt(bias-corrected moving average of the squared
+	          gradients of the row), i.e. the second moment of Adam
+	          (one value per row, no per-factor momentum)
+
+	Squared gradients are averaged over the factors of a row, so the
+	side arrays have one value per user and per item.
+ */
+public enum StepSizeRule {
+	CONSTANT,
+	ADAGRAD,
+	ADAM
+}
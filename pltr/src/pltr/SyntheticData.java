@@ -0,0 +1,147 @@
+package pltr;
+
+/*
+	Synthetic implicit feedback data
+
+	User and item ids are drawn independently from Zipf distributions
+	(P(rank r) ~ r^-exponent), so a few users and items have most of
+	the interactions, as in real feedback data. Ranks are mapped to ids
+	by a random permutation, so popularity is not ordered by id.
+	Interactions are generated in fixed-size chunks with their own
+	seeds, so the data only depends on the seed (not on numThreads).
+
+	Output: tab-delimited (<user,item>, with a header line) or the
+	binary interaction file format.
+ */
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+public class SyntheticData {
+
+	static final int CHUNK_SIZE = 1 << 20;
+
+	// -------------------------------------
+	// number of interactions for a density (interactions / (users * items))
+	// -------------------------------------
+	public static int numInteractions(int numUsers, int numItems, double density){
+		long n = Math.round(density * numUsers * numItems);
+		if( n <= 0 || n > Integer.MAX_VALUE - 8 ){
+			throw new IllegalArgumentException("Invalid density: " + density + " !!!");
+		}
+		return (int) n;
+	}
+
+	// -------------------------------------
+	// generate interactions with Zipf user and item degrees
+	// -------------------------------------
+	public static InteractionSet generate(	final int numUsers,
+											final int numItems,
+											final int numInteractions,
+											double userExponent,
+											double itemExponent,
+											final long seed,
+											int numThreads) throws InterruptedException {
+		if( numUsers <= 0 || numItems <= 0 || numInteractions < 0 ){
+			throw new IllegalArgumentException("Invalid dataset size !!!");
+		}
+		Random random = new Random(seed);
+		final double[] userCdf = zipfCdf(numUsers, userExponent);
+		final double[] itemCdf = zipfCdf(numItems, itemExponent);
+		final int[] userIds = permutation(numUsers, random);
+		final int[] itemIds = permutation(numItems, random);
+
+		final int[] users = new int[numInteractions];
+		final int[] items = new int[numInteractions];
+		int numChunks = (numInteractions + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		ParallelOps.runRanges(numThreads, numChunks, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				for( int c=from; c<to; c++ ){
+					Random chunkRandom = new Random(seed * 31 + c);
+					int end = (int) Math.min(numInteractions, (long)(c + 1) * CHUNK_SIZE);
+					for( int i=c*CHUNK_SIZE; i<end; i++ ){
+						users[i] = userIds[draw(userCdf, chunkRandom)];
+						items[i] = itemIds[draw(itemCdf, chunkRandom)];
+					}
+				}
+			}
+		});
+		return new InteractionSet(users, items, null, null);
+	}
+
+	private static double[] zipfCdf(int n, double exponent){
+		if( exponent < 0 ){
+			throw new IllegalArgumentException("Invalid Zipf exponent: " + exponent + " !!!");
+		}
+		double[] cdf = new double[n];
+		double sum = 0.0;
+		for( int i=0; i<n; i++ ){
+			sum += Math.pow(i + 1, -exponent);
+			cdf[i] = sum;
+		}
+		for( int i=0; i<n; i++ ){
+			cdf[i] /= sum;
+		}
+		return cdf;
+	}
+
+	private static int draw(double[] cdf, Random random){
+		int i = Arrays.binarySearch(cdf, random.nextDouble());
+		return Math.min(cdf.length - 1, i >= 0 ? i : -i - 1);
+	}
+
+	private static int[] permutation(int n, Random random){
+		int[] perm = new int[n];
+		for( int i=0; i<n; i++ ){
+			perm[i] = i;
+		}
+		for( int i=n-1; i>0; i-- ){
+			int j = random.nextInt(i + 1);
+			int t = perm[i];
+			perm[i] = perm[j];
+			perm[j] = t;
+		}
+		return perm;
+	}
+
+	// -------------------------------------
+	// write as a tab-delimited training file (with header line)
+	// -------------------------------------
+	public static void writeTsv(InteractionSet data, String tsvFile) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tsvFile), StandardCharsets.US_ASCII), 1 << 20);
+		try {
+			out.write("user\titem\n");
+			StringBuilder line = new StringBuilder(32);
+			for( int i=0; i<data.size(); i++ ){
+				line.setLength(0);
+				line.append(data.getUserId(i)).append('\t').append(data.getItemId(i)).append('\n');
+				out.append(line);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// -------------------------------------
+	// generate a dataset file
+	// args: <numUsers> <numItems> <density> <userExponent> <itemExponent> <seed> <out.tsv|out.bin>
+	// -------------------------------------
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if( args.length != 7 ){
+			System.out.println("Usage: SyntheticData <numUsers> <numItems> <density> <userExponent> <itemExponent> <seed> <out.tsv|out.bin>");
+			return;
+		}
+		int numUsers = Integer.parseInt(args[0]);
+		int numItems = Integer.parseInt(args[1]);
+		int numInteractions = numInteractions(numUsers, numItems, Double.parseDouble(args[2]));
+		InteractionSet data = generate(numUsers, numItems, numInteractions,
+			Double.parseDouble(args[3]), Double.parseDouble(args[4]), Long.parseLong(args[5]),
+			Runtime.getRuntime().availableProcessors());
+		if( args[6].endsWith(".bin") ){
+			InteractionFile.write(data, args[6]);
+		} else {
+			writeTsv(data, args[6]);
+		}
+		System.out.println("wrote " + data.size() + " interactions to " + args[6]);
+	}
+}
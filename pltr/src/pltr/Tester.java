@@ -24,6 +24,31 @@ public class Tester {
 		// Training file 
 		// (Tab-delimited. Columns: <user,item,...>. Ids: [0,max. id of users/items])
 		String trainingFile = "../data/train_data_format_example.csv";
+		boolean skipFirstLine = true; // first line of the training file is a header
+		
+		// Sparse ids (e.g. 64-bit account ids): mapped to dense indices by id dictionaries,
+		// saved next to the model file (modelFile + ".users"/".items"), top-K output uses raw ids
+		boolean sparseIds = false;
+
+		// Binary training file (optional, null: read the tab-delimited file, not used with sparseIds)
+		// Converted once from the training file if missing, then memory-mapped
+		String binaryFile = null; // e.g. "../data/train_data.bin"
+
+		// Test file (optional, same format as the training file, null: no evaluation)
+		String testFile = null; // e.g. "../data/test_data.csv"
+
+		// Validation file for early stopping (optional, same format, null: all numEpochs)
+		// Training stops once the sampled validation AUC has not improved for patience epochs
+		String validationFile = null; // e.g. "../data/validation_data.csv"
+		Integer patience = 2;
+		
+		// Top-K export for all users (optional, null: no export)
+		String topKFile = null; // e.g. "../data/topk.tsv"
+		Integer topK = 10;
+
+		// Approximate top-K index benchmark (optional, 0: no index)
+		Integer indexClusters = 0; // e.g. sqrt(number of items)
+		int[] indexProbes = {1, 4, 16}; // clusters scanned per query (recall vs. speed)
 
 		// BPR parameters
 		Integer numLatentFactors = 20;
@@ -35,6 +60,30 @@ public class Tester {
 		Double eta = 0.01;
 		
 		String algorithm = "PLTRN"; // Choose: "SEQ", "PLTRN", or "PLTRB"
+		boolean sharded = false; // PLTRN only. true: per-thread shards in user-grouped runs
+		Integer numBlocks = 0; // PLTRB blocks per dimension. 0: numProcs, >numProcs: work-stealing (e.g. 4*numProcs)
+		Integer dsgdWorkers = 0; // PLTRB only. >0: distributed DSGD with this many worker JVMs on localhost (DSGDWorker, default sampler and step sizes only)
+		PartitionStrategy partitionStrategy = PartitionStrategy.UNIFORM; // Choose: UNIFORM or BALANCED (PLTRB only)
+		NegativeSampler sampler = new UniformSampler(); // Choose: UniformSampler(), PopularitySampler(0.75) or AdaptiveSampler(8)
+		StepSizeRule stepSizeRule = StepSizeRule.CONSTANT; // Choose: CONSTANT, ADAGRAD or ADAM (per-row step sizes)
+		Integer numNegatives = 1; // negatives per positive (mini-batch mode if >1)
+		Integer batchSize = 1; // max. consecutive positives of one user per mini-batch (user-grouped data)
+		FactorStorage storage = FactorStorage.HEAP; // Choose: HEAP or OFF_HEAP (for very large P and Q)
+		FactorPrecision precision = FactorPrecision.DOUBLE; // Choose: DOUBLE or FLOAT
+		ScoringPrecision scoringPrecision = ScoringPrecision.EXACT; // Choose: EXACT, BF16 or INT8
+		
+		// Model file (optional, null: not saved)
+		// Saved after training and every checkpointEvery epochs, an existing file is resumed
+		String modelFile = null; // e.g. "../data/model.bin"
+		Integer checkpointEvery = 1;
+		
+		// New interactions folded in after training (optional, null: none)
+		// Same format as the training file, new user and item ids are allowed
+		String deltaFile = null; // e.g. "../data/new_data.csv"
+		Integer foldInPasses = 2; // SGD passes over the new interactions
+		
+		boolean metricsLog = false; // one structured metrics line per epoch
+		boolean metricsJmx = false; // register training metrics as an MBean (e.g. for jconsole)
 		
 		Integer numEpochs = 4; // PltR is expected to run in numEpochs/numProcs units of time	
 		Integer numProcs = 4; // >1: some parallelism, 1: no parallelism (neglected in SEQ)
@@ -44,31 +93,44 @@ public class Tester {
 		// ------------------------------------
 		System.out.println("Reading training data ...");
 
-		Integer maxUserId = 0;
-		Integer maxItemId = 0;
-		ArrayList<Tuple> trainData = new ArrayList<Tuple>();
+		InteractionSet trainData = null;
+		IdDictionary userIds = null;
+		IdDictionary itemIds = null;
 
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(trainingFile));
-			String row;
-			row = reader.readLine();			
-			while ((row = reader.readLine()) != null) {
-				String[] fields = row.split("\t");
-				Integer userId = Integer.parseInt(fields[0]);
-				Integer itemId = Integer.parseInt(fields[1]);	
-				
-				if (userId > maxUserId)
-					maxUserId = userId;
-				if (itemId > maxItemId)
-					maxItemId = itemId;
-				
-				Tuple newTuple = new Tuple(userId,itemId);
-				trainData.add(newTuple);			
+			if (sparseIds) {
+				if (modelFile != null && new File(modelFile + ".users").exists()) {
+					userIds = IdDictionary.load(modelFile + ".users");
+					itemIds = IdDictionary.load(modelFile + ".items");
+				} else {
+					userIds = new IdDictionary();
+					itemIds = new IdDictionary();
+				}
+				TsvLoader loader = new TsvLoader(numProcs);
+				trainData = loader.load(trainingFile, skipFirstLine, userIds, itemIds, true);
+				System.out.println(loader.report());
+				System.out.println("distinct ids: " + userIds.size() + " users, " + itemIds.size() + " items");
+				if (modelFile != null) {
+					userIds.save(modelFile + ".users");
+					itemIds.save(modelFile + ".items");
+				}
+			} else if (binaryFile != null) {
+				if (!new File(binaryFile).exists()) {
+					System.out.println("Converting training data to " + binaryFile + " ...");
+					InteractionFile.convertTsv(trainingFile, binaryFile, skipFirstLine);
+				}
+				trainData = InteractionFile.map(binaryFile);
+			} else {
+				TsvLoader loader = new TsvLoader(numProcs);
+				trainData = loader.load(trainingFile, skipFirstLine);
+				System.out.println(loader.report());
 			}
-			reader.close();
 		} catch (IOException e) {
-			System.out.println("File Read Error");
+			System.out.println("File Read Error: " + e.getMessage());
+			return;
 		}
+		int maxUserId = Math.max(0, trainData.getMaxUserId());
+		int maxItemId = Math.max(0, trainData.getMaxItemId());
 
 		// ------------------------------------
 		// Training
@@ -76,28 +138,162 @@ public class Tester {
 		System.out.println("initializing and learning model ...");			
 		
 		PLTR model;		
-		switch (algorithm) {
-			case "SEQ":
-				model = new BPR(maxUserId+1, maxItemId+1, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs);
-				break;
-			case "PLTRN":
-				model = new PLTRN(maxUserId+1, maxItemId+1, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs);
-				break;
-			case "PLTRB":
-				model = new PLTRB(maxUserId+1, maxItemId+1, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs);
-				break;
-			default:
-				throw new IllegalArgumentException("Invalid algorithm !!!");
+		if (modelFile != null && new File(modelFile).exists()) {
+			try {
+				model = ModelFile.loadForTraining(modelFile, storage);
+				System.out.println("resuming " + modelFile + " after epoch " + model.getEpochsDone() + " ...");
+				// training settings are those of the model file
+				ModelFile.Header saved = ModelFile.readHeader(modelFile);
+				if (saved.numLatentFactors != numLatentFactors || saved.numEpochs != numEpochs || saved.eta != eta
+					|| saved.lambP != lambP || saved.lambQPlus != lambQPlus || saved.lambQMinus != lambQMinus) {
+					System.out.println("settings above are replaced by the model file: numLatentFactors=" + saved.numLatentFactors
+						+ ", numEpochs=" + saved.numEpochs + ", eta=" + saved.eta + ", lambP=" + saved.lambP
+						+ ", lambQPlus=" + saved.lambQPlus + ", lambQMinus=" + saved.lambQMinus);
+				}
+				if (saved.stepSizeRule != stepSizeRule) {
+					System.out.println("step sizes restart: the model file was trained with " + saved.stepSizeRule);
+				}
+				// new user or item ids in the training data
+				if (maxUserId >= model.getUserFactors().getNumRows() || maxItemId >= model.getItemFactors().getNumRows()) {
+					System.out.println("growing model to " + (maxUserId+1) + " users and " + (maxItemId+1) + " items ...");
+					model.grow(maxUserId+1, maxItemId+1);
+				}
+				if (model instanceof PLTRN) {
+					((PLTRN) model).setSharded(sharded);
+				} else if (model instanceof PLTRB) {
+					((PLTRB) model).setPartitionStrategy(partitionStrategy);
+					((PLTRB) model).setNumBlocks(numBlocks);
+				}
+			} catch (IOException e) {
+				System.out.println("File Read Error: " + e.getMessage());
+				return;
+			}
+		} else {
+			switch (algorithm) {
+				case "SEQ":
+					model = new BPR(maxUserId+1, maxItemId+1, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs, storage, precision, scoringPrecision);
+					break;
+				case "PLTRN":
+					PLTRN modelN = new PLTRN(maxUserId+1, maxItemId+1, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs, storage, precision, scoringPrecision);
+					modelN.setSharded(sharded);
+					model = modelN;
+					break;
+				case "PLTRB":
+					PLTRB modelB = new PLTRB(maxUserId+1, maxItemId+1, numLatentFactors, mu, sigma, lambP, lambQPlus, lambQMinus, eta, numEpochs, storage, precision, scoringPrecision);
+					modelB.setPartitionStrategy(partitionStrategy);
+					modelB.setNumBlocks(numBlocks);
+					model = modelB;
+					break;
+				default:
+					throw new IllegalArgumentException("Invalid algorithm !!!");
+			}
+		}
+		model.setNegativeSampler(sampler);
+		model.setStepSizeRule(stepSizeRule);
+		model.setMiniBatch(numNegatives, batchSize);
+		if (validationFile != null) {
+			try {
+				InteractionSet validationData = new TsvLoader(numProcs).load(validationFile, skipFirstLine, userIds, itemIds, false);
+				model.setEarlyStopping(new EarlyStopping(validationData, 10000, 100, patience, 0.0005, 1L));
+			} catch (IOException e) {
+				System.out.println("File Read Error: " + e.getMessage());
+				return;
+			}
+		}
+		if (modelFile != null) {
+			model.setCheckpoint(modelFile, checkpointEvery);
 		}
 	
+		model.getMetrics().setLogging(metricsLog);
+		if (metricsJmx) {
+			try {
+				model.getMetrics().register();
+			} catch (javax.management.JMException e) {
+				System.out.println("JMX Error: " + e.getMessage());
+			}
+		}
+		
 		long startTime = System.nanoTime();		
 			try {
-				model.learn(trainData, numProcs);
+				if (dsgdWorkers > 0 && model instanceof PLTRB) {
+					((PLTRB) model).learnDistributed(trainData, dsgdWorkers, 0, true);
+				} else {
+					model.learn(trainData, numProcs);
+				}
 			}
 			catch(InterruptedException e) {
 				System.out.println("Threading error ...");
+			}
+			catch(IOException e) {
+				System.out.println("DSGD Error: " + e.getMessage());
+				return;
 			}		
 		System.out.println("it took (secs): "+ (System.nanoTime() - startTime) / 1e9);
+
+		// ------------------------------------
+		// Fold-in of new interactions
+		// ------------------------------------
+		if (deltaFile != null) {
+			System.out.println("folding in " + deltaFile + " ...");
+			try {
+				InteractionSet deltaData = new TsvLoader(numProcs).load(deltaFile, skipFirstLine, userIds, itemIds, true);
+				startTime = System.nanoTime();
+				model.foldIn(deltaData, foldInPasses, numProcs);
+				System.out.println("it took (secs): "+ (System.nanoTime() - startTime) / 1e9);
+			} catch (IOException e) {
+				System.out.println("File Read Error: " + e.getMessage());
+			} catch (InterruptedException e) {
+				System.out.println("Threading error ...");
+			}
+		}
+
+		// ------------------------------------
+		// Evaluation
+		// ------------------------------------
+		if (testFile != null) {
+			System.out.println("evaluating model ...");
+			try {
+				InteractionSet testData = new TsvLoader(numProcs).load(testFile, skipFirstLine, userIds, itemIds, false);
+				startTime = System.nanoTime();
+				AUCEvaluator.Result result = AUCEvaluator.evaluate(model, testData, numProcs);
+				System.out.println(result);
+				System.out.println("it took (secs): "+ (System.nanoTime() - startTime) / 1e9);
+			} catch (IOException e) {
+				System.out.println("File Read Error: " + e.getMessage());
+			} catch (InterruptedException e) {
+				System.out.println("Threading error ...");
+			}
+		}
+
+		// ------------------------------------
+		// Top-K export
+		// ------------------------------------
+		if (topKFile != null) {
+			System.out.println("exporting top-" + topK + " recommendations to " + topKFile + " ...");
+			startTime = System.nanoTime();
+			try {
+				Recommender.exportTopK(model, topK, topKFile, numProcs, userIds, itemIds);
+			} catch (IOException e) {
+				System.out.println("File Write Error: " + e.getMessage());
+			} catch (InterruptedException e) {
+				System.out.println("Threading error ...");
+			}
+			System.out.println("it took (secs): "+ (System.nanoTime() - startTime) / 1e9);
+		}
+		// ------------------------------------
+		// Approximate top-K index
+		// ------------------------------------
+		if (indexClusters > 0) {
+			System.out.println("building item index (" + indexClusters + " clusters) ...");
+			startTime = System.nanoTime();
+			try {
+				ItemIndex index = ItemIndex.build(model, indexClusters, 10, numProcs, 1L);
+				System.out.println("it took (secs): "+ (System.nanoTime() - startTime) / 1e9);
+				System.out.print(index.benchmark(topK, indexProbes, 1000, 1L));
+			} catch (InterruptedException e) {
+				System.out.println("Threading error ...");
+			}
+		}
 	}
 	
 }
@@ -0,0 +1,316 @@
+package pltr;
+
+/*
+	Training metrics
+
+	Every worker thread counts into its own slot (no locks, no shared
+	cache lines in the hot loop): SGD updates, rejected negative
+	samples, failed samples (no negative item after 10 tries), busy
+	and wait time, and the BPR loss -ln sigmoid(x_uij) of every 64th
+	update. Values read while training are approximate.
+
+	Exposed as an MBean (register()) and, if enabled, as one
+	key=value log line per epoch.
+ */
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+public class TrainingMetrics implements TrainingMetricsMBean {
+
+	static final int LOSS_SAMPLE_MASK = 63; // loss of every 64th update
+	static final AtomicInteger instances = new AtomicInteger();
+
+	String algorithm;
+	boolean logging = false;
+	ObjectName objectName;
+	volatile int epoch;
+	long startNanos;
+	ThreadMetrics[] threads = new ThreadMetrics[0];
+	long[] blockNanos = new long[0]; // per block (PLTRB), one thread at a time
+	volatile long repartitionNanos; // serial repartition steps (PLTRB)
+	volatile double blockImbalance = Double.NaN; // max/mean block size of the last repartition (PLTRB)
+	volatile double stratumImbalance = Double.NaN; // worst stratum of the last repartition, NaN with work stealing
+
+	// totals at the last epoch boundary
+	long lastNanos;
+	long lastUpdates;
+	long lastRejections;
+	long lastFailures;
+	double lastLossSum;
+	long lastLossCount;
+	volatile double epochLoss = Double.NaN;
+
+	// -------------------------------------
+	// counters of one worker thread
+	// -------------------------------------
+	static final class ThreadMetrics {
+		long updates;
+		long rejections;
+		long failures;
+		long busyNanos;
+		long waitNanos;
+		long repartitionNanos;
+		double lossSum;
+		long lossCount;
+		long p0, p1, p2, p3, p4, p5, p6, p7; // padding against false sharing
+
+		// outcome of one negative sampling loop
+		void sampled(int numTrials, boolean found){
+			rejections += numTrials;
+			if( !found )
+				failures++;
+		}
+
+		// one SGD step with x_uij
+		void updated(double x){
+			if( (updates++ & LOSS_SAMPLE_MASK) == 0 ){
+				lossSum += (x < -30.0) ? -x : Math.log1p(Math.exp(-x));
+				lossCount++;
+			}
+		}
+	}
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public TrainingMetrics(String algorithm){
+		this.algorithm = algorithm;
+	}
+
+	// -------------------------------------
+	// reset for a learn() run
+	// -------------------------------------
+	void start(int numThreads, int numBlocks){
+		ThreadMetrics[] slots = new ThreadMetrics[numThreads];
+		for( int t=0; t<numThreads; t++ ){
+			slots[t] = new ThreadMetrics();
+		}
+		this.blockNanos = new long[numBlocks * numBlocks];
+		this.repartitionNanos = 0;
+		this.blockImbalance = Double.NaN;
+		this.stratumImbalance = Double.NaN;
+		this.epoch = 0;
+		this.epochLoss = Double.NaN;
+		this.startNanos = System.nanoTime();
+		this.lastNanos = startNanos;
+		this.lastUpdates = 0;
+		this.lastRejections = 0;
+		this.lastFailures = 0;
+		this.lastLossSum = 0.0;
+		this.lastLossCount = 0;
+		this.threads = slots;
+	}
+
+	ThreadMetrics thread(int t){
+		return threads[t];
+	}
+
+	void addBlockNanos(int block, long nanos){
+		blockNanos[block] += nanos;
+	}
+
+	void addRepartitionNanos(long nanos){
+		repartitionNanos += nanos;
+	}
+
+	void setBlockImbalance(double block, double stratum){
+		this.blockImbalance = block;
+		this.stratumImbalance = stratum;
+	}
+
+	// -------------------------------------
+	// epoch boundary: loss of the epoch and optional log line
+	// -------------------------------------
+	synchronized void epochDone(int epoch){
+		long now = System.nanoTime();
+		long updates = getUpdates();
+		long rejections = getRejections();
+		long failures = getFailures();
+		double lossSum = 0.0;
+		long lossCount = 0;
+		for( ThreadMetrics m : threads ){
+			lossSum += m.lossSum;
+			lossCount += m.lossCount;
+		}
+		long epochUpdates = updates - lastUpdates;
+		long epochSamples = epochUpdates + failures - lastFailures;
+		double seconds = (now - lastNanos) / 1e9;
+		this.epochLoss = (lossCount > lastLossCount) ? (lossSum - lastLossSum) / (lossCount - lastLossCount) : Double.NaN;
+		this.epoch = epoch + 1;
+
+		// block imbalance of the epoch's partition (PLTRB), also without logging
+		if( !Double.isNaN(blockImbalance) ){
+			String imbalance = "block imbalance (max/mean): " + blockImbalance;
+			if( !Double.isNaN(stratumImbalance) )
+				imbalance += ", worst stratum (max/mean): " + stratumImbalance;
+			System.out.println(imbalance);
+		}
+		if( logging ){
+			StringBuilder line = new StringBuilder("metrics");
+			line.append(" algorithm=").append(algorithm);
+			line.append(" epoch=").append(epoch);
+			line.append(" seconds=").append(seconds);
+			line.append(" updates=").append(epochUpdates);
+			line.append(" updatesPerSec=").append((long)(epochUpdates / Math.max(seconds, 1e-9)));
+			line.append(" rejectionsPerSample=").append(epochSamples > 0 ? 1.0 * (rejections - lastRejections) / epochSamples : 0.0);
+			line.append(" failures=").append(failures - lastFailures);
+			line.append(" skipRate=").append(epochSamples > 0 ? 1.0 * (failures - lastFailures) / epochSamples : 0.0);
+			line.append(" loss=").append(epochLoss);
+			line.append(" repartitionSecs=").append(getRepartitionSeconds());
+			if( !Double.isNaN(blockImbalance) ){
+				line.append(" blockImbalance=").append(blockImbalance);
+				if( !Double.isNaN(stratumImbalance) )
+					line.append(" stratumImbalance=").append(stratumImbalance);
+			}
+			line.append(" busySecs=").append(Arrays.toString(getThreadBusySeconds()).replace(" ", ""));
+			line.append(" waitSecs=").append(Arrays.toString(getThreadWaitSeconds()).replace(" ", ""));
+			line.append(" straggler=").append(getStragglerRatio());
+			System.out.println(line);
+		}
+		lastNanos = now;
+		lastUpdates = updates;
+		lastRejections = rejections;
+		lastFailures = failures;
+		lastLossSum = lossSum;
+		lastLossCount = lossCount;
+	}
+
+	// -------------------------------------
+	// structured log line per epoch
+	// -------------------------------------
+	public void setLogging(boolean logging){
+		this.logging = logging;
+	}
+
+	// -------------------------------------
+	// register with the platform MBean server
+	// -------------------------------------
+	public void register() throws JMException {
+		if( objectName == null ){
+			objectName = new ObjectName("pltr:type=TrainingMetrics,name=" + algorithm + "-" + instances.incrementAndGet());
+		}
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+	}
+
+	public void unregister() throws JMException {
+		if( objectName != null ){
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+	}
+
+	// -------------------------------------
+	// MBean attributes
+	// -------------------------------------
+	public String getAlgorithm(){
+		return algorithm;
+	}
+
+	public int getEpoch(){
+		return epoch;
+	}
+
+	public long getUpdates(){
+		long n = 0;
+		for( ThreadMetrics m : threads ){
+			n += m.updates;
+		}
+		return n;
+	}
+
+	public double getUpdatesPerSec(){
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return getUpdates() / Math.max(seconds, 1e-9);
+	}
+
+	public long getRejections(){
+		long n = 0;
+		for( ThreadMetrics m : threads ){
+			n += m.rejections;
+		}
+		return n;
+	}
+
+	public long getFailures(){
+		long n = 0;
+		for( ThreadMetrics m : threads ){
+			n += m.failures;
+		}
+		return n;
+	}
+
+	public double getRejectionsPerSample(){
+		long samples = getUpdates() + getFailures();
+		return (samples > 0) ? 1.0 * getRejections() / samples : 0.0;
+	}
+
+	public double getFailureRate(){
+		long failures = getFailures();
+		long samples = getUpdates() + failures;
+		return (samples > 0) ? 1.0 * failures / samples : 0.0;
+	}
+
+	// sampled loss of the last completed epoch
+	public double getSampledLoss(){
+		return epochLoss;
+	}
+
+	// serial steps plus the slowest thread's count/scatter steps
+	public double getRepartitionSeconds(){
+		long max = 0;
+		for( ThreadMetrics m : threads ){
+			max = Math.max(max, m.repartitionNanos);
+		}
+		return (repartitionNanos + max) / 1e9;
+	}
+
+	// largest block / mean block of the last repartition
+	public double getBlockImbalance(){
+		return blockImbalance;
+	}
+
+	// largest block / mean block of the worst stratum, NaN with work stealing
+	public double getStratumImbalance(){
+		return stratumImbalance;
+	}
+
+	public double[] getThreadBusySeconds(){
+		ThreadMetrics[] slots = threads;
+		double[] seconds = new double[slots.length];
+		for( int t=0; t<slots.length; t++ ){
+			seconds[t] = slots[t].busyNanos / 1e9;
+		}
+		return seconds;
+	}
+
+	public double[] getThreadWaitSeconds(){
+		ThreadMetrics[] slots = threads;
+		double[] seconds = new double[slots.length];
+		for( int t=0; t<slots.length; t++ ){
+			seconds[t] = slots[t].waitNanos / 1e9;
+		}
+		return seconds;
+	}
+
+	public double[] getBlockSeconds(){
+		long[] nanos = blockNanos;
+		double[] seconds = new double[nanos.length];
+		for( int k=0; k<nanos.length; k++ ){
+			seconds[k] = nanos[k] / 1e9;
+		}
+		return seconds;
+	}
+
+	// busy time of the slowest thread / mean busy time
+	public double getStragglerRatio(){
+		ThreadMetrics[] slots = threads;
+		long max = 0;
+		long sum = 0;
+		for( ThreadMetrics m : slots ){
+			max = Math.max(max, m.busyNanos);
+			sum += m.busyNanos;
+		}
+		return (sum > 0) ? 1.0 * max * slots.length / sum : 1.0;
+	}
+}
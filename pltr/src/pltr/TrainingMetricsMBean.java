@@ -0,0 +1,23 @@
+package pltr;
+
+/*
+	JMX view of TrainingMetrics
+ */
+public interface TrainingMetricsMBean {
+	public String getAlgorithm();
+	public int getEpoch();
+	public long getUpdates();
+	public double getUpdatesPerSec();
+	public long getRejections();
+	public long getFailures();
+	public double getRejectionsPerSample();
+	public double getFailureRate();
+	public double getSampledLoss();
+	public double getRepartitionSeconds();
+	public double getBlockImbalance();
+	public double getStratumImbalance();
+	public double[] getThreadBusySeconds();
+	public double[] getThreadWaitSeconds();
+	public double[] getBlockSeconds();
+	public double getStragglerRatio();
+}
@@ -0,0 +1,447 @@
+package pltr;
+
+/*
+	Parallel loader for tab-delimited training files
+	(Columns: <user,item[,rating[,timestamp]]>)
+
+	The file is split into byte ranges aligned to line starts. Each
+	range is memory-mapped and parsed on its own thread without
+	creating Strings, and the per-range columns are merged at the end.
+	Optional columns are decided by the first data line. Lines that
+	cannot be parsed are counted and skipped.
+
+	With id dictionaries, raw ids may be any 64-bit value: they are
+	kept as longs per range and mapped to dense indices in file order
+	on merge (so the indices do not depend on the number of threads).
+	Rows with ids unknown to the dictionaries are added as new ids or
+	counted and skipped (e.g. test data of a trained model).
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+public class TsvLoader {
+
+	static final long MAX_CHUNK_BYTES = 1L << 30;
+
+	int numThreads;
+	long numRows; // rows loaded by the last load()
+	long numMalformed; // lines skipped by the last load()
+	long numUnknown; // rows with unknown ids skipped by the last load()
+	double seconds; // duration of the last load()
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public TsvLoader(int numThreads){
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	// -------------------------------------
+	// load a tab-delimited file into primitive columns
+	// -------------------------------------
+	public InteractionSet load(String tsvFile, boolean skipFirstLine) throws IOException {
+		return load(tsvFile, skipFirstLine, null, null, false);
+	}
+
+	// -------------------------------------
+	// load with raw ids mapped by userIds and itemIds (null: ids are dense already),
+	// addNewIds false: rows with unknown ids are skipped
+	// -------------------------------------
+	public InteractionSet load(	String tsvFile, boolean skipFirstLine,
+								IdDictionary userIds, IdDictionary itemIds, boolean addNewIds) throws IOException {
+		if( (userIds == null) != (itemIds == null) ){
+			throw new IllegalArgumentException("Invalid id dictionaries !!!");
+		}
+		final boolean rawIds = userIds != null;
+		long startTime = System.nanoTime();
+		RandomAccessFile file = new RandomAccessFile(tsvFile, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			long fileSize = channel.size();
+
+			// first data line decides optional columns
+			long dataStart = skipFirstLine ? lineStart(channel, 1) : 0;
+			int numFields = countFields(channel, dataStart);
+			final boolean withRatings = numFields > 2;
+			final boolean withTimestamps = numFields > 3;
+
+			// byte ranges aligned to line starts
+			int numChunks = (int) Math.max(numThreads, (fileSize - dataStart + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+			final long[] bounds = new long[numChunks+1];
+			for( int c=0; c<=numChunks; c++ ){
+				long p = dataStart + (fileSize - dataStart) * c / numChunks;
+				bounds[c] = (c == 0) ? dataStart : lineStart(channel, p);
+			}
+
+			// parse ranges in parallel
+			final ChunkParser[] parsers = new ChunkParser[numChunks];
+			final IOException[] errors = new IOException[1];
+			ParallelOps.runRanges(numThreads, numChunks, new ParallelOps.RangeTask() {
+				public void run(int from, int to){
+					for( int c=from; c<to; c++ ){
+						try {
+							long len = bounds[c+1] - bounds[c];
+							ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, bounds[c], len);
+							parsers[c] = new ChunkParser(buf, withRatings, withTimestamps, rawIds, len);
+							parsers[c].parse();
+						} catch (IOException e) {
+							synchronized (errors) {
+								errors[0] = e;
+							}
+						}
+					}
+				}
+			});
+			if( errors[0] != null ){
+				throw errors[0];
+			}
+
+			InteractionSet data = rawIds
+				? mergeRaw(parsers, withRatings, withTimestamps, userIds, itemIds, addNewIds)
+				: merge(parsers, withRatings, withTimestamps);
+			this.seconds = (System.nanoTime() - startTime) / 1e9;
+			return data;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while loading " + tsvFile);
+		} finally {
+			file.close();
+		}
+	}
+
+	// -------------------------------------
+	// concatenate per-range columns
+	// -------------------------------------
+	private InteractionSet merge(ChunkParser[] parsers, boolean withRatings, boolean withTimestamps) throws IOException {
+		long total = 0;
+		long malformed = 0;
+		for( ChunkParser p : parsers ){
+			total += p.data.size();
+			malformed += p.numMalformed;
+		}
+		if( total > Integer.MAX_VALUE - 8 ){
+			throw new IOException("Too many interactions: " + total);
+		}
+		InteractionSet data = new InteractionSet((int) total, withRatings, withTimestamps);
+		int n = 0;
+		for( ChunkParser p : parsers ){
+			InteractionSet part = p.data;
+			System.arraycopy(part.users, 0, data.users, n, part.size);
+			System.arraycopy(part.items, 0, data.items, n, part.size);
+			if( withRatings )
+				System.arraycopy(part.ratings, 0, data.ratings, n, part.size);
+			if( withTimestamps )
+				System.arraycopy(part.timestamps, 0, data.timestamps, n, part.size);
+			data.maxUserId = Math.max(data.maxUserId, part.maxUserId);
+			data.maxItemId = Math.max(data.maxItemId, part.maxItemId);
+			n += part.size;
+			p.data = null;
+		}
+		data.size = n;
+		data.trimToSize();
+		this.numRows = n;
+		this.numMalformed = malformed;
+		this.numUnknown = 0;
+		return data;
+	}
+
+	// -------------------------------------
+	// concatenate per-range columns, mapping raw ids in file order
+	// -------------------------------------
+	private InteractionSet mergeRaw(	ChunkParser[] parsers, boolean withRatings, boolean withTimestamps,
+										IdDictionary userIds, IdDictionary itemIds, boolean addNewIds) throws IOException {
+		long total = 0;
+		long malformed = 0;
+		for( ChunkParser p : parsers ){
+			total += p.data.size();
+			malformed += p.numMalformed;
+		}
+		if( total > Integer.MAX_VALUE - 8 ){
+			throw new IOException("Too many interactions: " + total);
+		}
+		InteractionSet data = new InteractionSet((int) total, withRatings, withTimestamps);
+		long unknown = 0;
+		for( ChunkParser p : parsers ){
+			InteractionSet part = p.data;
+			for( int i=0; i<part.size; i++ ){
+				int user = addNewIds ? userIds.getOrAdd(p.rawUsers[i]) : userIds.get(p.rawUsers[i]);
+				int item = addNewIds ? itemIds.getOrAdd(p.rawItems[i]) : itemIds.get(p.rawItems[i]);
+				if( user == -1 || item == -1 ){
+					unknown++;
+					continue;
+				}
+				data.add(user, item, withRatings ? part.ratings[i] : 0.0f, withTimestamps ? part.timestamps[i] : 0L);
+			}
+			p.data = null;
+			p.rawUsers = null;
+			p.rawItems = null;
+		}
+		data.trimToSize();
+		this.numRows = data.size();
+		this.numMalformed = malformed;
+		this.numUnknown = unknown;
+		return data;
+	}
+
+	// -------------------------------------
+	// start of the first line at or after position p
+	// -------------------------------------
+	private static long lineStart(FileChannel channel, long p) throws IOException {
+		long pos = p - 1;
+		if( pos < 0 ){
+			return 0;
+		}
+		long size = channel.size();
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		while( pos < size ){
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if( n <= 0 )
+				break;
+			for( int i=0; i<n; i++ ){
+				if( buf.get(i) == '\n' ){
+					return pos + i + 1;
+				}
+			}
+			pos += n;
+		}
+		return size;
+	}
+
+	// -------------------------------------
+	// number of tab-separated fields of the first non-empty line at position p
+	// -------------------------------------
+	private static int countFields(FileChannel channel, long p) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(1 << 12);
+		int numFields = 1;
+		boolean inLine = false;
+		long pos = p;
+		while( true ){
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if( n <= 0 )
+				return numFields;
+			for( int i=0; i<n; i++ ){
+				byte b = buf.get(i);
+				if( b == '\n' || b == '\r' ){
+					if( inLine )
+						return numFields;
+					continue;
+				}
+				inLine = true;
+				if( b == '\t' )
+					numFields++;
+			}
+			pos += n;
+		}
+	}
+
+	public long getNumRows(){
+		return numRows;
+	}
+
+	public long getNumMalformed(){
+		return numMalformed;
+	}
+
+	public long getNumUnknown(){
+		return numUnknown;
+	}
+
+	public double getSeconds(){
+		return seconds;
+	}
+
+	// -------------------------------------
+	// summary of the last load
+	// -------------------------------------
+	public String report(){
+		return "loaded " + numRows + " rows (" + numMalformed + " malformed lines skipped"
+			+ (numUnknown > 0 ? ", " + numUnknown + " rows with unknown ids skipped" : "") + ") in "
+			+ seconds + " secs (" + (long)(numRows / Math.max(seconds, 1e-9)) + " rows/sec)";
+	}
+
+	// -------------------------------------
+	// String-free parser for one byte range
+	// -------------------------------------
+	static class ChunkParser {
+
+		ByteBuffer buf;
+		int end;
+		int pos;
+		boolean withRatings;
+		boolean withTimestamps;
+		boolean rawIds;
+		InteractionSet data;
+		long[] rawUsers; // raw id columns (rawIds only)
+		long[] rawItems;
+		long numMalformed;
+
+		ChunkParser(ByteBuffer buf, boolean withRatings, boolean withTimestamps, boolean rawIds, long len){
+			this.buf = buf;
+			this.end = (int) len;
+			this.withRatings = withRatings;
+			this.withTimestamps = withTimestamps;
+			this.rawIds = rawIds;
+			// roughly 16 bytes per line
+			int capacity = (int) Math.min(len / 16 + 16, Integer.MAX_VALUE - 8);
+			this.data = new InteractionSet(capacity, withRatings, withTimestamps);
+			if( rawIds ){
+				this.rawUsers = new long[capacity];
+				this.rawItems = new long[capacity];
+			}
+		}
+
+		void parse(){
+			while( pos < end ){
+				int lineStart = pos;
+				byte b = buf.get(pos);
+				if( b == '\n' || b == '\r' ){
+					pos++;
+					continue; // empty line
+				}
+				if( !parseLine() ){
+					numMalformed++;
+					pos = lineStart;
+					skipLine();
+				}
+			}
+			buf = null;
+		}
+
+		private boolean parseLine(){
+			long userId = parseLong();
+			if( !validId(userId) || !separator() )
+				return false;
+			long itemId = parseLong();
+			if( !validId(itemId) )
+				return false;
+			float rating = 0.0f;
+			long timestamp = 0L;
+			if( withRatings ){
+				if( !separator() )
+					return false;
+				rating = parseFloat();
+				if( Float.isNaN(rating) )
+					return false;
+			}
+			if( withTimestamps ){
+				if( !separator() )
+					return false;
+				timestamp = parseLong();
+				if( timestamp == Long.MIN_VALUE )
+					return false;
+			}
+			// further columns are ignored
+			if( pos < end && buf.get(pos) == '\t' ){
+				skipLine();
+			} else if( !lineEnd() ){
+				return false;
+			}
+			if( rawIds ){
+				int n = data.size();
+				if( n == rawUsers.length ){
+					int capacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * n);
+					rawUsers = Arrays.copyOf(rawUsers, capacity);
+					rawItems = Arrays.copyOf(rawItems, capacity);
+				}
+				rawUsers[n] = userId;
+				rawItems[n] = itemId;
+				data.add(0, 0, rating, timestamp);
+			} else {
+				data.add((int) userId, (int) itemId, rating, timestamp);
+			}
+			return true;
+		}
+
+		// any 64-bit id with dictionaries, else a non-negative int
+		private boolean validId(long id){
+			if( rawIds )
+				return id != Long.MIN_VALUE;
+			return id >= 0 && id <= Integer.MAX_VALUE;
+		}
+
+		// signed decimal integer, Long.MIN_VALUE if malformed
+		private long parseLong(){
+			boolean negative = false;
+			if( pos < end && buf.get(pos) == '-' ){
+				negative = true;
+				pos++;
+			}
+			int start = pos;
+			long value = 0;
+			while( pos < end ){
+				int d = buf.get(pos) - '0';
+				if( d < 0 || d > 9 )
+					break;
+				if( value > (Long.MAX_VALUE - d) / 10 )
+					return Long.MIN_VALUE;
+				value = value * 10 + d;
+				pos++;
+			}
+			if( pos == start )
+				return Long.MIN_VALUE;
+			return negative ? -value : value;
+		}
+
+		// plain decimal number (no exponent), NaN if malformed
+		private float parseFloat(){
+			boolean negative = false;
+			if( pos < end && buf.get(pos) == '-' ){
+				negative = true;
+				pos++;
+			}
+			int start = pos;
+			double value = 0.0;
+			while( pos < end ){
+				int d = buf.get(pos) - '0';
+				if( d < 0 || d > 9 )
+					break;
+				value = value * 10 + d;
+				pos++;
+			}
+			if( pos < end && buf.get(pos) == '.' ){
+				pos++;
+				double scale = 0.1;
+				while( pos < end ){
+					int d = buf.get(pos) - '0';
+					if( d < 0 || d > 9 )
+						break;
+					value += d * scale;
+					scale *= 0.1;
+					pos++;
+				}
+			}
+			if( pos == start )
+				return Float.NaN;
+			return (float)(negative ? -value : value);
+		}
+
+		private boolean separator(){
+			if( pos < end && buf.get(pos) == '\t' ){
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private boolean lineEnd(){
+			if( pos < end && buf.get(pos) == '\r' )
+				pos++;
+			if( pos >= end )
+				return true;
+			if( buf.get(pos) == '\n' ){
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void skipLine(){
+			while( pos < end && buf.get(pos) != '\n' )
+				pos++;
+			pos++;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package pltr;
+
+/*
+	Uniform negative sampling with rejection of history items
+	(up to maxTrials draws, as in BPR-MF (Rendle et al., 2009))
+ */
+import java.util.concurrent.*;
+
+public class UniformSampler implements NegativeSampler {
+
+	int maxTrials;
+	UserHistory BPlus;
+	int[] chunkItems; // null: identity (one chunk of all items)
+	int[] chunkOffsets;
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	public UniformSampler(){
+		this(10);
+	}
+
+	public UniformSampler(int maxTrials){
+		if( maxTrials < 1 ){
+			throw new IllegalArgumentException("Invalid number of trials !!!");
+		}
+		this.maxTrials = maxTrials;
+	}
+
+	public void init(InteractionSet data, UserHistory BPlus, FactorMatrix P, FactorMatrix Q){
+		this.BPlus = BPlus;
+		this.chunkItems = null;
+		this.chunkOffsets = new int[] { 0, Q.getNumRows() };
+	}
+
+	public void foldIn(InteractionSet delta, UserHistory BPlus, FactorMatrix P, FactorMatrix Q){
+		init(delta, BPlus, P, Q);
+	}
+
+	public void setChunks(int[] chunkItems, int[] chunkOffsets){
+		this.chunkItems = chunkItems;
+		this.chunkOffsets = chunkOffsets;
+	}
+
+	// -------------------------------------
+	// sample negative item
+	// -------------------------------------
+	public int sample(int user, int chunk, ThreadLocalRandom random, TrainingMetrics.ThreadMetrics m){
+		int chunkStart = chunkOffsets[chunk];
+		int chunkSize = chunkOffsets[chunk+1] - chunkStart;
+		int negItem = -1;
+		int numTrials = 0;
+		if( chunkSize > 0 ){
+			while( numTrials < maxTrials ){
+				int rnd = chunkStart + random.nextInt(0, chunkSize);
+				int rndItem = (chunkItems == null) ? rnd : chunkItems[rnd];
+				if( ! BPlus.contains(user, rndItem) ){
+					negItem = rndItem;
+					break;
+				}
+				numTrials += 1;
+			}
+		}
+		m.sampled(numTrials, negItem != -1);
+		return negItem;
+	}
+
+}
@@ -0,0 +1,265 @@
+package pltr;
+
+/*
+	User histories (B+) as a compressed sparse row index
+
+	Items of user u are items[offsets[u]] ... items[offsets[u+1]-1],
+	sorted and without duplicates. Membership is a binary search,
+	or a bitset lookup for users whose history is dense.
+ */
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class UserHistory {
+
+	int numUsers;
+	int numItems;
+	int[] offsets; // length numUsers+1
+	int[] items; // sorted item ids per user
+	long[][] bitsets; // null for sparse users
+
+	// -------------------------------------
+	// Constructor
+	// -------------------------------------
+	UserHistory(int numUsers, int numItems, int[] offsets, int[] items){
+		this.numUsers = numUsers;
+		this.numItems = numItems;
+		this.offsets = offsets;
+		this.items = items;
+		this.bitsets = new long[numUsers][];
+		for( int u=0; u<numUsers; u++ ){
+			buildBitset(u);
+		}
+	}
+
+	// -------------------------------------
+	// a bitset is kept when it is not larger than the sorted list
+	// -------------------------------------
+	void buildBitset(int user){
+		int start = offsets[user];
+		int end = offsets[user+1];
+		if( (long)(end - start) * 32 < numItems ){
+			bitsets[user] = null;
+			return;
+		}
+		long[] bits = new long[(numItems + 63) >>> 6];
+		for( int i=start; i<end; i++ ){
+			bits[items[i] >>> 6] |= 1L << items[i];
+		}
+		bitsets[user] = bits;
+	}
+
+	// -------------------------------------
+	// build the index from training data (in parallel)
+	// -------------------------------------
+	public static UserHistory build(	final InteractionSet data,
+										final int numUsers,
+										final int numItems,
+										int numProcs ) throws InterruptedException {
+
+		final int lenData = data.size();
+		final int numThreads = Math.max(1, numProcs);
+
+		// count interactions per user
+		final AtomicIntegerArray counts = new AtomicIntegerArray(numUsers);
+		ParallelOps.runRanges(numThreads, lenData, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				for( int i=from; i<to; i++ ){
+					counts.incrementAndGet(data.getUserId(i));
+				}
+			}
+		});
+
+		// scatter items into user segments
+		final int[] rawOffsets = new int[numUsers+1];
+		for( int u=0; u<numUsers; u++ ){
+			rawOffsets[u+1] = rawOffsets[u] + counts.get(u);
+		}
+		final AtomicIntegerArray cursors = new AtomicIntegerArray(numUsers);
+		final int[] rawItems = new int[lenData];
+		ParallelOps.runRanges(numThreads, lenData, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				for( int i=from; i<to; i++ ){
+					int user = data.getUserId(i);
+					rawItems[rawOffsets[user] + cursors.getAndIncrement(user)] = data.getItemId(i);
+				}
+			}
+		});
+
+		return fromSegments(numUsers, numItems, rawOffsets, rawItems, numThreads);
+	}
+
+	// -------------------------------------
+	// sort and de-duplicate unsorted user segments (in parallel)
+	// -------------------------------------
+	static UserHistory fromSegments(	final int numUsers,
+										int numItems,
+										final int[] rawOffsets,
+										final int[] rawItems,
+										int numThreads ) throws InterruptedException {
+
+		final int[] uniqueCounts = new int[numUsers];
+		ParallelOps.runRanges(numThreads, numUsers, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				for( int u=from; u<to; u++ ){
+					int start = rawOffsets[u];
+					int end = rawOffsets[u+1];
+					Arrays.sort(rawItems, start, end);
+					int n = 0;
+					for( int i=start; i<end; i++ ){
+						if( n == 0 || rawItems[start+n-1] != rawItems[i] ){
+							rawItems[start+n] = rawItems[i];
+							n++;
+						}
+					}
+					uniqueCounts[u] = n;
+				}
+			}
+		});
+
+		final int[] offsets = new int[numUsers+1];
+		for( int u=0; u<numUsers; u++ ){
+			offsets[u+1] = offsets[u] + uniqueCounts[u];
+		}
+		final int[] items = new int[offsets[numUsers]];
+		ParallelOps.runRanges(numThreads, numUsers, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				for( int u=from; u<to; u++ ){
+					System.arraycopy(rawItems, rawOffsets[u], items, offsets[u], uniqueCounts[u]);
+				}
+			}
+		});
+
+		return new UserHistory(numUsers, numItems, offsets, items);
+	}
+
+	// -------------------------------------
+	// add new interactions (ids may exceed the current bounds): a copying
+	// merge into new offsets and items arrays, O(total history) copying
+	// but only the users of the delta are merged and get new bitsets
+	// (not while a model is trained with this index)
+	// -------------------------------------
+	public void addAll(	InteractionSet delta,
+						int newNumUsers,
+						int newNumItems,
+						int numProcs ) throws InterruptedException {
+
+		final int numThreads = Math.max(1, numProcs);
+		final int oldNumUsers = this.numUsers;
+		final int numUsers = Math.max(oldNumUsers, newNumUsers);
+		final int numItems = Math.max(this.numItems, newNumItems);
+		final UserHistory added = build(delta, numUsers, numItems, numThreads);
+		final int[] oldOffsets = this.offsets;
+		final int[] oldItems = this.items;
+
+		// merged segment sizes
+		final int[] mergedCounts = new int[numUsers];
+		ParallelOps.runRanges(numThreads, numUsers, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				for( int u=from; u<to; u++ ){
+					int oldStart = (u < oldNumUsers) ? oldOffsets[u] : 0;
+					int oldEnd = (u < oldNumUsers) ? oldOffsets[u+1] : 0;
+					if( added.offsets[u] == added.offsets[u+1] ){
+						mergedCounts[u] = oldEnd - oldStart;
+					} else {
+						mergedCounts[u] = merge(oldItems, oldStart, oldEnd, added.items, added.offsets[u], added.offsets[u+1], null, 0);
+					}
+				}
+			}
+		});
+		final int[] offsets = new int[numUsers+1];
+		for( int u=0; u<numUsers; u++ ){
+			offsets[u+1] = offsets[u] + mergedCounts[u];
+		}
+
+		// merge sorted segments
+		final int[] items = new int[offsets[numUsers]];
+		ParallelOps.runRanges(numThreads, numUsers, new ParallelOps.RangeTask() {
+			public void run(int from, int to){
+				for( int u=from; u<to; u++ ){
+					int oldStart = (u < oldNumUsers) ? oldOffsets[u] : 0;
+					int oldEnd = (u < oldNumUsers) ? oldOffsets[u+1] : 0;
+					if( added.offsets[u] == added.offsets[u+1] ){
+						System.arraycopy(oldItems, oldStart, items, offsets[u], oldEnd - oldStart);
+					} else {
+						merge(oldItems, oldStart, oldEnd, added.items, added.offsets[u], added.offsets[u+1], items, offsets[u]);
+					}
+				}
+			}
+		});
+
+		// new bitsets for users of the delta, the other bitsets grow
+		// (with headroom) only when new items need more words
+		int numWords = (numItems + 63) >>> 6;
+		this.numUsers = numUsers;
+		this.numItems = numItems;
+		this.offsets = offsets;
+		this.items = items;
+		this.bitsets = Arrays.copyOf(this.bitsets, numUsers);
+		for( int u=0; u<numUsers; u++ ){
+			if( added.offsets[u] != added.offsets[u+1] ){
+				buildBitset(u);
+			} else if( bitsets[u] != null && bitsets[u].length < numWords ){
+				bitsets[u] = Arrays.copyOf(bitsets[u], numWords + (numWords >>> 3));
+			}
+		}
+	}
+
+	// union of two sorted, duplicate-free ranges (count only if out is null)
+	private static int merge(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, int[] out, int outFrom){
+		int n = 0;
+		while( aFrom < aTo || bFrom < bTo ){
+			int v;
+			if( bFrom >= bTo || (aFrom < aTo && a[aFrom] < b[bFrom]) ){
+				v = a[aFrom++];
+			} else if( aFrom >= aTo || b[bFrom] < a[aFrom] ){
+				v = b[bFrom++];
+			} else {
+				v = a[aFrom++];
+				bFrom++;
+			}
+			if( out != null )
+				out[outFrom + n] = v;
+			n++;
+		}
+		return n;
+	}
+
+	// -------------------------------------
+	// is item in the history of user
+	// -------------------------------------
+	public boolean contains(int user, int item){
+		long[] bits = bitsets[user];
+		if( bits != null ){
+			return (bits[item >>> 6] & (1L << item)) != 0;
+		}
+		return Arrays.binarySearch(items, offsets[user], offsets[user+1], item) >= 0;
+	}
+
+	// -------------------------------------
+	// number of distinct items of user
+	// -------------------------------------
+	public int size(int user){
+		return offsets[user+1] - offsets[user];
+	}
+
+	public int start(int user){
+		return offsets[user];
+	}
+
+	public int end(int user){
+		return offsets[user+1];
+	}
+
+	public int[] getItems(){
+		return items;
+	}
+
+	public int getNumUsers(){
+		return numUsers;
+	}
+
+	public int getNumItems(){
+		return numItems;
+	}
+}